@@ -1,49 +1,87 @@
 package cliente;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import comun.CanalTramas;
+import comun.Configuracion;
+import comun.TipoTrama;
+import comun.Trama;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.Socket;
-import javax.swing.JTextArea;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * En esta clase, que hereda de JTextArea (como ventana de mensajes del chat) e
- * implementa Runnable para actuar como Thread, se gestiona la conexión del
+ * En esta clase, que implementa Runnable para actuar como Thread, se gestiona la conexión del
  * cliente con el servidor y el envío y recepción de mensajes por TCP entre
  * ambos. El flujo del hilo consta de la conexión por socket TCP con el
  * servidor, seguidamente se conecta y une al grupo multicast para
  * posteriormente iniciar un HiloMulticast que mantendrá la escucha de mensajes
  * recibidos por multicast provenientes del servidor, dejando este hilo
  * exclusivamente para el intercambio de mensajes por TCP.
+ * Si la conexión TCP se pierde, el hilo vuelve a conectarse con esperas
+ * exponenciales con variación aleatoria, y reanuda la sesión con el token que
+ * el servidor le entregó al darle acceso, recuperando su nick y los mensajes
+ * que se perdió. El socket multicast se mantiene abierto entre reconexiones.
+ * Si la red no permite unirse al grupo multicast, se pide al servidor que
+ * envíe el chat por la propia conexión TCP.
+ * Las direcciones, puertos y ajustes de los sockets se leen de la
+ * Configuracion (fichero cliente.properties), donde además la clave
+ * chat.multicast.desactivado permite forzar la recepción por TCP.
+ * Los mensajes recibidos se dejan en una cola que la VistaChat muestra en la
+ * ventana. El Cliente no depende de Swing, de forma que MainCliente lo pone en
+ * marcha antes de construir la interfaz y la conexión con el servidor avanza
+ * mientras se carga la ventana.
  *
  * @author Ivan Martin
  */
-public class Cliente extends JTextArea implements Runnable {
+public class Cliente implements Runnable {
 
-    private static final String HOST = "localhost";
-    private static final int PUERTO = 2000;
-    private static final String IP_MULTICAST = "231.0.0.1";
-    private static final int PUERTO_MULTICAST = 10000;
+    private static final String FICHERO_CONFIGURACION = "cliente.properties";
 
+    // Esperas entre intentos de reconexión
+    private static final long ESPERA_INICIAL_MS = 500;
+    private static final long ESPERA_MAXIMA_MS = 30000;
+
+    // Versión del protocolo y capacidades que se anuncian en la trama HOLA
+    private static final int VERSION_PROTOCOLO = 3;
+    private static final int CAPACIDAD_MULTICAST = 1;
+    private static final int CAPACIDAD_COMPRESION = 2;
+
+    // Comando que el usuario puede escribir en el chat para desconectarse
+    private static final String COMANDO_SALIR = "!salir";
+
+    private Configuracion configuracion;
     private Socket socket;
     private MulticastSocket socketMulticast;
 
-    private InetAddress grupo;
-    private DataInputStream entrada;
-    private DataOutputStream salida;
+    private InetSocketAddress grupo;
+    private NetworkInterface interfazMulticast;
+    private volatile CanalTramas canal;
 
     private String nick;
+    private boolean enChat;
+    private String token;
+    private long ultimaSecuencia;
+    private boolean multicastDisponible;
+    private int intentosReconexion;
+    private long esperaIndicada;
     private Thread hilo;
 
+    private final Queue<String> pendientes;
+
     public Cliente() {
-        // Valores para el JTextArea
-        this.setEditable(false);
-        this.setColumns(20);
-        this.setRows(5);
-        this.setFocusable(false);
+        configuracion = Configuracion.cargar(FICHERO_CONFIGURACION);
 
+        pendientes = new ConcurrentLinkedQueue<>();
+
+        multicastDisponible = !configuracion.getBooleano("chat.multicast.desactivado", false);
+        esperaIndicada = -1;
         hilo = new Thread(this);
     }
 
@@ -61,16 +99,77 @@ public class Cliente extends JTextArea implements Runnable {
 
     /**
      * Envia un mensaje a través del socket TCP con el mensaje proveniente del
-     * JTextField de la interfaz. Se usa tanto para enviar el nick como los
-     * mensajes de chat.
+     * JTextField de la interfaz. Si el usuario escribe "!salir" se solicita la
+     * desconexión en lugar de enviarlo.
      *
      * @param mensaje el mensaje a enviar.
      */
     public void enviarMensajeAlServidor(String mensaje) {
+        if (mensaje.equals(COMANDO_SALIR)) {
+            solicitarDesconexion();
+            return;
+        }
+        try {
+            canal.enviar(TipoTrama.MENSAJE, mensaje);
+        } catch (IOException ex) {
+            escribirEnChat(">> Error. No se pudo enviar el mensaje.");
+        }
+    }
+
+    /**
+     * Solicita al servidor la desconexión. El servidor responde con la trama
+     * TERMINAR_SESION una vez procesados los mensajes enviados antes.
+     */
+    public void solicitarDesconexion() {
         try {
-            salida.writeUTF(mensaje);
+            canal.enviar(TipoTrama.SALIR);
         } catch (IOException ex) {
-            escribirEnTextArea(">> Error. No se pudo enviar el mensaje.");
+            escribirEnChat(">> Error. No se pudo solicitar la desconexión.");
+        }
+    }
+
+    /**
+     * Envía la solicitud de acceso con los nicks introducidos en la interfaz,
+     * que pueden ser varios separados por comas en orden de preferencia.
+     *
+     * @param nicksSolicitados el texto introducido en la interfaz.
+     */
+    public void enviarNick(String nicksSolicitados) {
+        List<String> candidatos = new ArrayList<>();
+        for (String candidato : nicksSolicitados.split(",")) {
+            if (!candidato.isBlank()) {
+                candidatos.add(candidato.trim());
+            }
+        }
+        try {
+            enviarHola(candidatos);
+        } catch (IOException ex) {
+            escribirEnChat(">> Error. No se pudo enviar el nick.");
+        }
+    }
+
+    /**
+     * Envía la solicitud de acceso en una única trama HOLA: versión del
+     * protocolo, capacidades del cliente, token de la sesión anterior (vacío
+     * si no la hay), última secuencia recibida y nicks candidatos. El servidor
+     * responde con una trama ACEPTADO o RECHAZADO.
+     *
+     * @param candidatos los nicks candidatos en orden de preferencia.
+     * @throws IOException si no se puede enviar.
+     */
+    private void enviarHola(List<String> candidatos) throws IOException {
+        synchronized (canal) {
+            canal.iniciar(TipoTrama.HOLA);
+            canal.ponerEntero(VERSION_PROTOCOLO);
+            canal.ponerEntero(multicastDisponible ? CAPACIDAD_MULTICAST | CAPACIDAD_COMPRESION : 0);
+            canal.ponerTexto(token == null ? "" : token);
+            canal.ponerLargo(getUltimaSecuencia());
+            canal.ponerEntero(candidatos.size());
+            for (String candidato : candidatos) {
+                canal.ponerTexto(candidato);
+            }
+            canal.terminar();
+            canal.vaciar();
         }
     }
 
@@ -90,64 +189,263 @@ public class Cliente extends JTextArea implements Runnable {
     }
 
     /**
-     * Método que escribe todos los mensajes en el JTextArea del chat.
+     * Método que escribe todos los mensajes en la ventana del chat. Se puede
+     * llamar desde cualquier hilo: el mensaje se encola y se mostrará en el
+     * siguiente refresco de la interfaz.
      *
-     * @param mensaje el mensaje que se escribirá en el JTextArea.
+     * @param mensaje el mensaje que se escribirá en el chat.
      */
-    public synchronized void escribirEnTextArea(String mensaje) {
-        String textoActual = this.getText();
-        this.setText(textoActual += mensaje + "\n");
+    public void escribirEnChat(String mensaje) {
+        pendientes.offer(mensaje);
+    }
+
+    /**
+     * @return la cola de mensajes pendientes de mostrar en la VistaChat.
+     */
+    public Queue<String> getPendientes() {
+        return pendientes;
+    }
+
+    public Configuracion getConfiguracion() {
+        return configuracion;
+    }
+
+    /**
+     * Método que procesa un mensaje difundido por el servidor, recibido por
+     * multicast o por TCP. Los mensajes con una secuencia ya vista se
+     * descartan, ya que pueden llegar por ambas vías, y también los que llegan
+     * por multicast antes de tener acceso al chat.
+     *
+     * @param secuencia el número de secuencia del mensaje.
+     * @param mensaje el texto del mensaje.
+     */
+    public synchronized void recibirDifusion(long secuencia, String mensaje) {
+        if (!enChat || secuencia <= ultimaSecuencia) {
+            return;
+        }
+        ultimaSecuencia = secuencia;
+        escribirEnChat(mensaje);
+    }
+
+    private synchronized long getUltimaSecuencia() {
+        return ultimaSecuencia;
     }
 
     @Override
     public void run() {
-        try {
-            socket = new Socket(HOST, PUERTO);
+        boolean terminada = false;
+        while (!terminada) {
+            try {
+                socket = new Socket();
+                configuracion.ajustarTcp(socket);
+                socket.connect(new InetSocketAddress(configuracion.getTexto("chat.host", "localhost"),
+                        configuracion.getPuerto()));
+                terminada = atenderSesion();
+            } catch (IOException ex) {
+                if (hayConexion()) {
+                    MainCliente.concederAcceso(false);
+                    escribirEnChat(">> Se ha perdido la conexión con el servidor.");
+                }
+                System.out.println(ex.getMessage());
+            } finally {
+                cerrarConexion();
+            }
+
+            if (!terminada) {
+                long espera = calcularEspera();
+                escribirEnChat(">> Reintentando la conexión en " + (espera / 1000.0) + " s...");
+                try {
+                    Thread.sleep(espera);
+                } catch (InterruptedException ex) {
+                    terminada = true;
+                }
+            }
+        }
+        cerrarRecusos();
+    }
 
-            entrada = new DataInputStream(socket.getInputStream());
-            salida = new DataOutputStream(socket.getOutputStream());
+    /**
+     * Calcula la espera antes del siguiente intento de reconexión. Si el
+     * servidor ha indicado una espera al apagarse, se usa esa más un margen
+     * aleatorio de hasta la mitad. Si no, la espera crece de forma exponencial
+     * con los intentos fallidos hasta ESPERA_MAXIMA_MS, y se escoge al azar
+     * entre la mitad y el total de ese valor. En ambos casos el azar evita que
+     * los clientes se reconecten todos a la vez.
+     *
+     * @return los milisegundos de espera.
+     */
+    private long calcularEspera() {
+        if (esperaIndicada >= 0) {
+            long espera = esperaIndicada;
+            esperaIndicada = -1;
+            return espera + ThreadLocalRandom.current().nextLong(espera / 2 + 1);
+        }
+        long espera = Math.min(ESPERA_MAXIMA_MS, ESPERA_INICIAL_MS << Math.min(intentosReconexion++, 16));
+        return espera / 2 + ThreadLocalRandom.current().nextLong(espera / 2 + 1);
+    }
 
-            /* A la espera del mensaje de bienvenida. Una vez recibido se escribe
-            en el TextArea */
-            escribirEnTextArea(entrada.readUTF());
+    /**
+     * Método que atiende una conexión con el servidor, desde el acceso con el
+     * nick hasta su finalización.
+     *
+     * @return true si la sesión ha terminado por orden del servidor, en cuyo
+     * caso no se debe intentar reconectar.
+     * @throws IOException si se pierde la conexión con el servidor.
+     */
+    private boolean atenderSesion() throws IOException {
+        canal = new CanalTramas(socket);
+
+        /* Se une al grupo multicast (sólo la primera vez) antes de pedir
+        acceso, para poder indicar al servidor si debe enviar el chat por TCP. */
+        if (socketMulticast == null && multicastDisponible) {
+            unirseAlGrupo();
+        }
 
-            /* A la espera de recibir 'true' por parte del servidor, lo que indica
-            que el nick ha sido aceptado. NOTA: la tarea de enviar el nick no le
-            corresponde a este hilo, sino que se produce por el evento del botón
-            correspondiente en la interfaz gráfica. */
-            while (!entrada.readBoolean()) {
-                escribirEnTextArea(">> El nick introducido no está disponible. Por favor, escoge otro.");
+        /* Si había una sesión anterior, la solicitud de acceso con el token y
+        el nick anterior se envía sin esperar a la bienvenida del servidor. */
+        boolean reanudando = token != null;
+        if (reanudando) {
+            enviarHola(List.of(nick));
+        }
+
+        /* A la espera de la trama ACEPTADO, lo que indica que el nick ha sido
+        aceptado. Mientras tanto se escriben en el chat la bienvenida y los
+        rechazos. NOTA: salvo al reconectarse, la tarea de enviar el nick no le
+        corresponde a este hilo, sino que se produce por el evento del botón
+        correspondiente en la interfaz gráfica. */
+        Trama trama;
+        while ((trama = canal.leer()).getTipo() != TipoTrama.ACEPTADO) {
+            switch (trama.getTipo()) {
+                case AVISO:
+                    String aviso = trama.leerTexto();
+                    if (!reanudando) {
+                        escribirEnChat(aviso);
+                    }
+                    break;
+                case RECHAZADO:
+                    String motivo = trama.leerTexto();
+                    List<String> sugerencias = new ArrayList<>();
+                    for (int i = trama.leerEntero(); i > 0; i--) {
+                        sugerencias.add(trama.leerTexto());
+                    }
+                    if (reanudando) {
+                        reanudando = false;
+                        token = null;
+                        MainCliente.concederAcceso(false);
+                        escribirEnChat(">> No se pudo reanudar la sesión.");
+                    }
+                    escribirEnChat(">> " + motivo + (sugerencias.isEmpty() ? ""
+                            : " Disponibles: " + String.join(", ", sugerencias) + ".")
+                            + " Por favor, escoge otro.");
+                    break;
+                case APAGADO:
+                    atenderApagado(trama);
+                    return false;
+                default:
+                    throw new ProtocolException("Trama inesperada: " + trama.getTipo());
             }
+        }
 
-            // Nick válido, se une al grupo multicast y se concede acceso.
-            socketMulticast = new MulticastSocket(PUERTO_MULTICAST);
-            grupo = InetAddress.getByName(IP_MULTICAST);
-            socketMulticast.joinGroup(grupo);
-            HiloMulticast lector = new HiloMulticast(this, socketMulticast);
-            lector.start();
+        // Nick válido, se recibe el nick asignado y el token de sesión
+        nick = trama.leerTexto();
+        token = trama.leerTexto();
+        synchronized (this) {
+            enChat = true;
+        }
+
+        intentosReconexion = 0;
+        MainCliente.concederAcceso(true);
+        escribirEnChat(">> Acceso al chat concedido.\n------------------");
+
+        /* Escucha constante de tramas por TCP desde el servidor: mensajes
+        individuales, mensajes perdidos al reanudar la sesión y, si no hay
+        multicast, el resto del chat. El servidor enviará TERMINAR_SESION para
+        dar por terminada la sesión (esto sucede cuando el cliente envía por
+        chat "!salir" o usa el botón de la interfaz para desconectarse). */
+        boolean terminada = false;
+        while (!terminada) {
+            trama = canal.leer();
+            switch (trama.getTipo()) {
+                case AVISO:
+                    escribirEnChat(trama.leerTexto());
+                    break;
+                case DIFUSION:
+                    long secuencia = trama.leerLargo();
+                    recibirDifusion(secuencia, trama.leerTexto());
+                    break;
+                case TERMINAR_SESION:
+                    terminada = true;
+                    break;
+                case APAGADO:
+                    atenderApagado(trama);
+                    return false;
+                default:
+                    throw new ProtocolException("Trama inesperada: " + trama.getTipo());
+            }
+        }
 
-            MainCliente.concederAcceso(true);
-            escribirEnTextArea(">> Acceso al chat concedido.\n------------------");
+        // Se da la conexión por terminada y se revoca el acceso al chat
+        synchronized (this) {
+            enChat = false;
+        }
+        MainCliente.concederAcceso(false);
+        escribirEnChat(">> La conexión con el servidor finalizó.");
+        return true;
+    }
 
-            /* Escucha constante de mensajes por TCP desde el servidor (mensajes
-            individuales). El servidor también enviará "!TERMINAR_SESION" para 
-            dar por terminada la sesión (esto sucede cuando el cliente envía por 
-            chat "!salir" o usa el botón de la interfaz para desconectarse). */
-            String mensajeTCP;
-            do {
-                mensajeTCP = entrada.readUTF();
-                escribirEnTextArea(mensajeTCP);
-            } while (!mensajeTCP.equals("!TERMINAR_SESION"));
+    /**
+     * Método que atiende el aviso de apagado del servidor: se muestra el
+     * motivo y se guarda la espera indicada para reconectarse y reanudar la
+     * sesión cuando el servidor vuelva a arrancar.
+     *
+     * @param trama la trama APAGADO recibida.
+     * @throws ProtocolException si la trama no es válida.
+     */
+    private void atenderApagado(Trama trama) throws ProtocolException {
+        String motivo = trama.leerTexto();
+        esperaIndicada = Math.max(0, trama.leerLargo());
+        MainCliente.concederAcceso(false);
+        escribirEnChat(">> " + motivo);
+    }
 
-            // Se da la conexión por terminada y se revoca el acceso al chat
-            MainCliente.concederAcceso(false);
-            escribirEnTextArea(">> La conexión con el servidor finalizó.");
+    /**
+     * Método que se une al grupo multicast e inicia el HiloMulticast. Si la red
+     * no lo permite, se marca el multicast como no disponible.
+     */
+    private void unirseAlGrupo() {
+        try {
+            int puertoMulticast = configuracion.getPuertoMulticast();
+            grupo = new InetSocketAddress(configuracion.getGrupoMulticast(), puertoMulticast);
+            socketMulticast = new MulticastSocket(puertoMulticast);
+            configuracion.ajustarMulticast(socketMulticast);
+            interfazMulticast = configuracion.getInterfazMulticast();
+            socketMulticast.joinGroup(grupo, interfazMulticast);
+            HiloMulticast lector = new HiloMulticast(this, socketMulticast);
+            lector.start();
+        } catch (IOException ex) {
+            multicastDisponible = false;
+            if (socketMulticast != null) {
+                socketMulticast.close();
+                socketMulticast = null;
+            }
+            escribirEnChat(">> No se puede recibir multicast en esta red. El chat se recibirá por TCP.");
+        }
+    }
 
+    /**
+     * Método para liberar los recursos del socket TCP y sus streams, dejando
+     * abierto el socket multicast para la siguiente reconexión.
+     */
+    private void cerrarConexion() {
+        try {
+            if (canal != null) {
+                canal.close();
+            }
+            if (socket != null) {
+                socket.close();
+            }
         } catch (IOException ex) {
-            escribirEnTextArea(">> Se ha perdido la conexión con el servidor.");
-            System.out.println(ex.getMessage());
-        } finally {
-            cerrarRecusos();
+
         }
     }
 
@@ -155,20 +453,12 @@ public class Cliente extends JTextArea implements Runnable {
      * Método para liberar los recursos de los sockets y los streams.
      */
     private void cerrarRecusos() {
+        cerrarConexion();
         try {
-            if (entrada != null) {
-                entrada.close();
-            }
-            if (salida != null) {
-                salida.close();
-            }
             if (socketMulticast != null) {
-                socketMulticast.leaveGroup(grupo);
+                socketMulticast.leaveGroup(grupo, interfazMulticast);
                 socketMulticast.close();
             }
-            if (socket != null) {
-                socket.close();
-            }
         } catch (IOException ex) {
 
         }
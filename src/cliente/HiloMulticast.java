@@ -1,5 +1,6 @@
 package cliente;
 
+import comun.CodecMulticast;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.MulticastSocket;
@@ -9,18 +10,17 @@ import java.net.MulticastSocket;
  * través de multicast una vez establecida la conexión y habiéndose permitido el
  * acceso al chat (estas 2 operaciones se realizan previamente en la clase
  * Cliente).
- * El flujo del hilo consta de la escucha en bucle de mensajes provenientes del
- * socket multicast proporcionado en el constructor de la clase. Cada mensaje
- * recibido se procesa, ajustando su tamaño y creando un objeto String que
- * traduce los bytes del datagrama, y se escribe en el JTextArea de la
- * interfaz.
+ * El flujo del hilo consta de la escucha en bucle de datagramas provenientes
+ * del socket multicast proporcionado en el constructor de la clase. Cada
+ * datagrama puede traer un lote de varios mensajes, comprimido o no, que el
+ * CodecMulticast decodifica sobre buffers que se reutilizan durante toda la
+ * vida del hilo. Cada mensaje se entrega al Cliente junto con su número de
+ * secuencia para escribirlo en la ventana de chat de la interfaz.
  *
  * @author Ivan Martin
  */
 public class HiloMulticast extends Thread {
 
-    private static final int BYTES_MAXIMOS = 256;
-
     private Cliente cliente;
     private MulticastSocket socketMulticast;
 
@@ -31,25 +31,26 @@ public class HiloMulticast extends Thread {
 
     @Override
     public void run() {
+        CodecMulticast codec = new CodecMulticast();
         try {
-            byte[] buffer = new byte[BYTES_MAXIMOS];
-            byte[] bufferAjuste;
-
+            byte[] buffer = new byte[CodecMulticast.TAMANO_MAXIMO_DATAGRAMA];
             DatagramPacket paquete = new DatagramPacket(buffer, buffer.length);
 
             /* Se mantiene el hilo en escucha de mensajes a través del socket 
-            multicast, procesándolos y escribiéndolos en el JTextArea. */
-            String mensajeMulticast;
+            multicast, procesándolos y escribiéndolos en el chat. */
             while (true) {
+                paquete.setLength(buffer.length);
                 socketMulticast.receive(paquete);
-                bufferAjuste = new byte[paquete.getLength()];
-                System.arraycopy(paquete.getData(), 0, bufferAjuste, 0, paquete.getLength());
-                mensajeMulticast = new String(bufferAjuste);
-                cliente.escribirEnTextArea(mensajeMulticast);
+                try {
+                    codec.decodificar(buffer, paquete.getLength(), cliente::recibirDifusion);
+                } catch (IOException ex) {
+                    // Datagrama no válido, se descarta
+                }
             }
         } catch (IOException ex) {
 
         } finally {
+            codec.cerrar();
             if (socketMulticast != null) {
                 socketMulticast.close();
             }
@@ -5,6 +5,11 @@ import javax.swing.JOptionPane;
 /**
  * Clase principal para el Cliente. Al ejecutarse inciará una instancia de la
  * clase Cliente para no bloquear la interfaz gráfica.
+ * El Cliente se pone en marcha antes de cargar el aspecto de Swing y de crear
+ * la ventana, de forma que la conexión con el servidor avanza en paralelo con
+ * la parte más lenta del arranque. El aspecto se elige con la clave
+ * chat.interfaz.aspecto (Nimbus por defecto; Metal, el de Swing, es el que
+ * menos tarda en cargar).
  *
  * Se puede ejecutar está clase tantas veces como clientes se quiera conectar
  * al chat.
@@ -13,26 +18,42 @@ import javax.swing.JOptionPane;
  */
 public class MainCliente extends javax.swing.JFrame {
 
+    private static volatile boolean accesoConcedido;
+
     private Cliente hiloCliente;
 
     /**
      * Creates new form MainCliente
+     *
+     * @param hiloCliente el cliente, ya en marcha, que se muestra en la ventana.
      */
-    public MainCliente() {
+    public MainCliente(Cliente hiloCliente) {
         initComponents();
-        hiloCliente = new Cliente();
-        sPnlContenedor.setViewportView(hiloCliente);
-        hiloCliente.start();
+        this.hiloCliente = hiloCliente;
+        sPnlContenedor.setViewportView(new VistaChat(hiloCliente.getPendientes(), hiloCliente.getConfiguracion()));
+        aplicarAcceso();
     }
 
     /**
      * Activa y desactiva los componentes de la interfaz en función del estado
      * de acceso al chat.
      *
+     * Se puede llamar desde cualquier hilo, también antes de que se haya
+     * creado la ventana, que aplicará el último estado al construirse.
+     *
      * @param acceso valor booleano que controla el activado y desactivado de
      * componentes.
      */
     public static void concederAcceso(boolean acceso) {
+        accesoConcedido = acceso;
+        java.awt.EventQueue.invokeLater(MainCliente::aplicarAcceso);
+    }
+
+    private static void aplicarAcceso() {
+        if (txtNick == null) {
+            return;
+        }
+        boolean acceso = accesoConcedido;
         txtNick.setEnabled(!acceso);
         btnAcceso.setEnabled(!acceso);
         txtMensaje.setEnabled(acceso);
@@ -181,7 +202,8 @@ public class MainCliente extends javax.swing.JFrame {
      * Controla el comportamiento del botón Acceso Chat. Si no hay conexión
      * con el servidor muestra una ventana de error. Si se intenta enviar un
      * nick en blanco muestra una ventana de error, de lo contrario ejecuta
-     * el método enviarMensajeAlServidor() con el nick introducido.
+     * el método enviarNick() con el nick introducido (o varios separados por
+     * comas, en orden de preferencia).
      *
      * @param evt evento de click del botón Acceso Chat
      */
@@ -194,7 +216,7 @@ public class MainCliente extends javax.swing.JFrame {
             JOptionPane.showMessageDialog(this, "Debes identificarte con un nick", "Nick vacío", JOptionPane.ERROR_MESSAGE);
             return;
         }
-        hiloCliente.enviarMensajeAlServidor(txtNick.getText());
+        hiloCliente.enviarNick(txtNick.getText());
     }//GEN-LAST:event_btnAccesoActionPerformed
 
     /**
@@ -217,19 +239,24 @@ public class MainCliente extends javax.swing.JFrame {
 
     /**
      * Controla el comportamiento del botón Desconectar. Ejecuta el método
-     * enviarMensajeAlServidor() de la clase Cliente, enviando como mensaje
-     * "!salir" para solicitar la desconexión.
+     * solicitarDesconexion() de la clase Cliente.
      *
      * @param evt evento de click del botón Desconectar
      */
     private void btnDesconectarActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnDesconectarActionPerformed
-        hiloCliente.enviarMensajeAlServidor("!salir");
+        hiloCliente.solicitarDesconexion();
     }//GEN-LAST:event_btnDesconectarActionPerformed
 
     /**
      * @param args the command line arguments
      */
     public static void main(String args[]) {
+        /* La conexión con el servidor no depende de la interfaz, por lo que
+        empieza antes de cargar el aspecto y crear la ventana */
+        Cliente cliente = new Cliente();
+        cliente.start();
+        String aspecto = cliente.getConfiguracion().getTexto("chat.interfaz.aspecto", "Nimbus");
+
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -237,7 +264,7 @@ public class MainCliente extends javax.swing.JFrame {
          */
         try {
             for (javax.swing.UIManager.LookAndFeelInfo info : javax.swing.UIManager.getInstalledLookAndFeels()) {
-                if ("Nimbus".equals(info.getName())) {
+                if (info.getName().equalsIgnoreCase(aspecto)) {
                     javax.swing.UIManager.setLookAndFeel(info.getClassName());
                     break;
                 }
@@ -256,7 +283,7 @@ public class MainCliente extends javax.swing.JFrame {
         /* Create and display the form */
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
-                new MainCliente().setVisible(true);
+                new MainCliente(cliente).setVisible(true);
             }
         });
     }
@@ -0,0 +1,91 @@
+package cliente;
+
+import java.util.Queue;
+import javax.swing.AbstractListModel;
+
+/**
+ * Modelo de la lista de mensajes del chat. Guarda las últimas líneas en un
+ * buffer circular de tamaño fijo, de forma que la memoria no crece con el
+ * tiempo que el cliente lleva conectado: al llenarse, cada línea nueva
+ * sustituye a la más antigua.
+ * Las líneas se añaden por lotes desde el hilo de eventos de Swing, y cada
+ * lote genera un único aviso de cambio para la JList, en lugar de uno por
+ * mensaje.
+ *
+ * @author Ivan Martin
+ */
+public class ModeloTranscripcion extends AbstractListModel<String> {
+
+    private final String[] lineas;
+    private int inicio;
+    private int tamano;
+
+    /**
+     * @param capacidad número máximo de líneas que se conservan.
+     */
+    public ModeloTranscripcion(int capacidad) {
+        this.lineas = new String[capacidad];
+    }
+
+    @Override
+    public int getSize() {
+        return tamano;
+    }
+
+    @Override
+    public String getElementAt(int indice) {
+        return lineas[(inicio + indice) % lineas.length];
+    }
+
+    /**
+     * Añade al final todos los mensajes de la cola, separando en varias líneas
+     * los que contienen saltos de línea, y avisa a la JList una sola vez. Sólo
+     * se debe llamar desde el hilo de eventos de Swing.
+     *
+     * @param cola la cola de mensajes pendientes de mostrar.
+     * @return el número de líneas añadidas.
+     */
+    public int volcar(Queue<String> cola) {
+        int anteriores = tamano;
+        int anadidas = 0;
+        int descartadas = 0;
+        String mensaje;
+        while ((mensaje = cola.poll()) != null) {
+            int desde = 0;
+            int salto;
+            while ((salto = mensaje.indexOf('\n', desde)) >= 0) {
+                descartadas += anadir(mensaje.substring(desde, salto));
+                anadidas++;
+                desde = salto + 1;
+            }
+            descartadas += anadir(desde == 0 ? mensaje : mensaje.substring(desde));
+            anadidas++;
+        }
+        // Se quitan del principio las líneas anteriores sustituidas, y se
+        // añaden al final las de este lote que caben en el buffer
+        int quitadas = Math.min(descartadas, anteriores);
+        if (quitadas > 0) {
+            fireIntervalRemoved(this, 0, quitadas - 1);
+        }
+        int nuevas = Math.min(anadidas, tamano);
+        if (nuevas > 0) {
+            fireIntervalAdded(this, tamano - nuevas, tamano - 1);
+        }
+        return anadidas;
+    }
+
+    /**
+     * Escribe una línea en el buffer.
+     *
+     * @return 1 si se ha sustituido la línea más antigua, 0 si no.
+     */
+    private int anadir(String linea) {
+        if (tamano < lineas.length) {
+            lineas[(inicio + tamano++) % lineas.length] = linea;
+            return 0;
+        }
+        lineas[inicio] = linea;
+        inicio = (inicio + 1) % lineas.length;
+        return 1;
+    }
+}
@@ -0,0 +1,79 @@
+package cliente;
+
+import comun.Configuracion;
+import java.awt.Component;
+import java.awt.Rectangle;
+import java.util.Queue;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.Timer;
+
+/**
+ * Ventana de mensajes del chat. Los mensajes que recibe el Cliente no se
+ * pintan al llegar: se dejan en una cola que un Timer de Swing vuelca en la
+ * lista como mucho una vez por fotograma, y la JList, con altura de línea
+ * fija, sólo dibuja las líneas visibles, de forma que una ráfaga de mensajes
+ * no bloquea la interfaz.
+ * La vista se crea en el hilo de eventos de Swing después de que el Cliente
+ * haya empezado a conectarse, por lo que los mensajes recibidos mientras se
+ * construía la ventana se muestran en el primer refresco.
+ *
+ * @author Ivan Martin
+ */
+public class VistaChat extends JList<String> {
+
+    private final ModeloTranscripcion modelo;
+    private final Queue<String> pendientes;
+    private final Timer refresco;
+
+    /**
+     * @param pendientes la cola donde el Cliente deja los mensajes recibidos.
+     * @param configuracion la configuración del cliente.
+     */
+    public VistaChat(Queue<String> pendientes, Configuracion configuracion) {
+        this.pendientes = pendientes;
+
+        modelo = new ModeloTranscripcion(configuracion.getEntero("chat.interfaz.lineas", 5000));
+        this.setModel(modelo);
+        this.setFocusable(false);
+        this.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> lista, Object valor, int indice,
+                    boolean seleccionada, boolean foco) {
+                // Las líneas no se seleccionan, y las que no caben se leen en el tooltip
+                super.getListCellRendererComponent(lista, valor, indice, false, false);
+                setToolTipText((String) valor);
+                return this;
+            }
+        });
+        /* Con la altura fija la JList no mide cada línea, y con un ancho fijo
+        mínimo no recorre todas para calcular su tamaño: ocupa el ancho del
+        panel (ver getScrollableTracksViewportWidth). */
+        this.setPrototypeCellValue(" ");
+        this.setFixedCellWidth(1);
+        refresco = new Timer(configuracion.getEntero("chat.interfaz.refrescoMs", 16), evento -> volcarMensajes());
+        refresco.start();
+    }
+
+    /**
+     * Vuelca en la lista los mensajes encolados desde el último refresco. Se
+     * ejecuta en el hilo de eventos de Swing con cada tick del Timer. Si la
+     * vista estaba al final del chat, se desplaza para mostrar los nuevos.
+     */
+    private void volcarMensajes() {
+        if (pendientes.isEmpty()) {
+            return;
+        }
+        Rectangle visible = getVisibleRect();
+        boolean alFinal = visible.y + visible.height >= getHeight() - getFixedCellHeight();
+        modelo.volcar(pendientes);
+        if (alFinal && modelo.getSize() > 0) {
+            ensureIndexIsVisible(modelo.getSize() - 1);
+        }
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+}
@@ -0,0 +1,163 @@
+package comun;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Adaptador de un Codec a los streams de un socket bloqueante. Lee los datos
+ * en un buffer que se reutiliza durante toda la conexión, y devuelve siempre
+ * la misma Trama, que es válida hasta la siguiente llamada a leer().
+ *
+ * Las tramas que se envían se codifican en un buffer de salida, también
+ * reutilizado. Los métodos enviar() codifican y escriben una trama de forma
+ * atómica. Para escribir varias tramas seguidas de una sola vez se usan
+ * iniciar(), poner*(), terminar() y vaciar() dentro de un bloque sincronizado
+ * sobre el propio canal.
+ *
+ * @author Ivan Martin
+ */
+public class CanalTramas implements Closeable {
+
+    private static final int TAMANO_INICIAL = 8192;
+
+    private final Codec codec;
+    private final InputStream entrada;
+    private final OutputStream salida;
+    private final Trama trama;
+    private ByteBuffer bufferEntrada;
+    private ByteBuffer bufferSalida;
+    private int inicioTrama;
+
+    public CanalTramas(Socket socket) throws IOException {
+        this(new CodecBinario(), socket.getInputStream(), socket.getOutputStream());
+    }
+
+    public CanalTramas(Codec codec, InputStream entrada, OutputStream salida) {
+        this.codec = codec;
+        this.entrada = entrada;
+        this.salida = salida;
+        this.trama = new Trama();
+        this.bufferEntrada = ByteBuffer.allocate(TAMANO_INICIAL).flip();
+        this.bufferSalida = ByteBuffer.allocate(TAMANO_INICIAL);
+    }
+
+    /**
+     * Método que lee la siguiente trama, esperando a que lleguen sus datos.
+     * Sólo lo debe llamar un hilo.
+     *
+     * @return la trama leída, válida hasta la siguiente llamada.
+     * @throws EOFException si se cierra la conexión.
+     * @throws IOException si hay un error de lectura o la trama no es válida.
+     */
+    public Trama leer() throws IOException {
+        while (!codec.decodificar(bufferEntrada, trama)) {
+            llenarEntrada();
+        }
+        return trama;
+    }
+
+    private void llenarEntrada() throws IOException {
+        bufferEntrada.compact();
+        if (!bufferEntrada.hasRemaining()) {
+            // La trama no cabe en el buffer (el codec ya ha comprobado su longitud)
+            ByteBuffer mayor = ByteBuffer.allocate(Math.min(bufferEntrada.capacity() * 2, Codec.LONGITUD_MAXIMA + Integer.BYTES));
+            mayor.put(bufferEntrada.flip());
+            bufferEntrada = mayor;
+        }
+        int leidos = entrada.read(bufferEntrada.array(), bufferEntrada.position(), bufferEntrada.remaining());
+        if (leidos > 0) {
+            bufferEntrada.position(bufferEntrada.position() + leidos);
+        }
+        bufferEntrada.flip();
+        if (leidos < 0) {
+            throw new EOFException("Conexión cerrada");
+        }
+    }
+
+    /**
+     * Envía una trama sin contenido.
+     */
+    public synchronized void enviar(TipoTrama tipo) throws IOException {
+        iniciar(tipo);
+        terminar();
+        vaciar();
+    }
+
+    /**
+     * Envía una trama cuyo contenido es un único texto.
+     */
+    public synchronized void enviar(TipoTrama tipo, String texto) throws IOException {
+        iniciar(tipo);
+        ponerTexto(texto);
+        terminar();
+        vaciar();
+    }
+
+    /**
+     * Escribe tramas ya codificadas, sin copiarlas al buffer de salida.
+     *
+     * @param datos las tramas codificadas.
+     * @param longitud el número de bytes de datos que se escriben.
+     */
+    public synchronized void enviarCodificado(byte[] datos, int longitud) throws IOException {
+        vaciar();
+        salida.write(datos, 0, longitud);
+    }
+
+    public synchronized void iniciar(TipoTrama tipo) {
+        asegurar(Codec.CABECERA);
+        inicioTrama = codec.iniciar(bufferSalida, tipo);
+    }
+
+    public synchronized void ponerEntero(int valor) {
+        asegurar(Integer.BYTES);
+        codec.ponerEntero(bufferSalida, valor);
+    }
+
+    public synchronized void ponerLargo(long valor) {
+        asegurar(Long.BYTES);
+        codec.ponerLargo(bufferSalida, valor);
+    }
+
+    public synchronized void ponerTexto(String texto) {
+        asegurar(Codec.longitudMaximaTexto(texto));
+        codec.ponerTexto(bufferSalida, texto);
+    }
+
+    public synchronized void terminar() {
+        codec.terminar(bufferSalida, inicioTrama);
+    }
+
+    /**
+     * Escribe en el socket todas las tramas terminadas del buffer de salida.
+     */
+    public synchronized void vaciar() throws IOException {
+        try {
+            if (bufferSalida.position() > 0) {
+                salida.write(bufferSalida.array(), 0, bufferSalida.position());
+            }
+            salida.flush();
+        } finally {
+            bufferSalida.clear();
+        }
+    }
+
+    private void asegurar(int bytes) {
+        if (bufferSalida.remaining() < bytes) {
+            ByteBuffer mayor = ByteBuffer.allocate(Math.max(bufferSalida.capacity() * 2, bufferSalida.position() + bytes));
+            mayor.put(bufferSalida.flip());
+            bufferSalida = mayor;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        entrada.close();
+        salida.close();
+    }
+}
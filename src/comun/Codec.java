@@ -0,0 +1,74 @@
+package comun;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codificación de las tramas del protocolo TCP sobre ByteBuffer. No depende de
+ * cómo se leen o escriben los bytes, por lo que sirve tanto para el servidor
+ * con sockets bloqueantes (a través de CanalTramas) como para uno basado en
+ * canales NIO, que puede llamar a decodificar() cada vez que lleguen datos
+ * hasta que haya una trama completa.
+ *
+ * Para codificar una trama se llama a iniciar(), después a los métodos poner*()
+ * con cada campo y por último a terminar(). Quien llama debe asegurarse de que
+ * el buffer tiene sitio suficiente (ver longitudMaximaTexto()).
+ *
+ * @author Ivan Martin
+ */
+public interface Codec {
+
+    /**
+     * Longitud máxima del contenido de una trama, para no reservar buffers
+     * enormes ante datos corruptos.
+     */
+    int LONGITUD_MAXIMA = 1 << 20;
+
+    /**
+     * Bytes de la cabecera de cada trama.
+     */
+    int CABECERA = 5;
+
+    /**
+     * Intenta decodificar una trama de los bytes disponibles en el buffer (en
+     * modo lectura). Si la trama está completa, la asigna y avanza la posición
+     * del buffer hasta la siguiente; si no, no consume nada.
+     *
+     * @param origen el buffer con los datos recibidos.
+     * @param trama la trama en la que se asigna el resultado.
+     * @return true si se ha decodificado una trama, false si faltan bytes.
+     * @throws IOException si los datos no forman una trama válida.
+     */
+    boolean decodificar(ByteBuffer origen, Trama trama) throws IOException;
+
+    /**
+     * Escribe la cabecera de una trama.
+     *
+     * @param destino el buffer en modo escritura.
+     * @param tipo el tipo de la trama.
+     * @return la posición de inicio de la trama, para terminar().
+     */
+    int iniciar(ByteBuffer destino, TipoTrama tipo);
+
+    void ponerEntero(ByteBuffer destino, int valor);
+
+    void ponerLargo(ByteBuffer destino, long valor);
+
+    void ponerTexto(ByteBuffer destino, String texto);
+
+    /**
+     * Completa la cabecera de la trama con la longitud del contenido escrito.
+     *
+     * @param destino el buffer en modo escritura.
+     * @param inicio la posición devuelta por iniciar().
+     */
+    void terminar(ByteBuffer destino, int inicio);
+
+    /**
+     * @param texto un texto.
+     * @return los bytes que puede ocupar el texto codificado como mucho.
+     */
+    static int longitudMaximaTexto(String texto) {
+        return Integer.BYTES + 3 * texto.length();
+    }
+}
@@ -0,0 +1,89 @@
+package comun;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec binario con prefijo de longitud. Cada trama se compone de:
+ * - Longitud del resto de la trama (entero de 4 bytes).
+ * - Código de operación del TipoTrama (1 byte).
+ * - Contenido: enteros y largos en big-endian, y textos como longitud en bytes
+ * (entero) seguida del texto en UTF-8.
+ * Los textos se codifican directamente en el buffer de destino, sin crear un
+ * array de bytes intermedio.
+ *
+ * @author Ivan Martin
+ */
+public class CodecBinario implements Codec {
+
+    @Override
+    public boolean decodificar(ByteBuffer origen, Trama trama) throws ProtocolException {
+        int inicio = origen.position();
+        if (origen.remaining() < Integer.BYTES) {
+            return false;
+        }
+        int longitud = origen.getInt(inicio);
+        if (longitud < 1 || longitud > LONGITUD_MAXIMA) {
+            throw new ProtocolException("Longitud de trama no válida: " + longitud);
+        }
+        if (origen.remaining() < Integer.BYTES + longitud) {
+            return false;
+        }
+        int fin = inicio + Integer.BYTES + longitud;
+        trama.asignar(TipoTrama.deCodigo(origen.get(inicio + Integer.BYTES)), origen, inicio + CABECERA, fin);
+        origen.position(fin);
+        return true;
+    }
+
+    @Override
+    public int iniciar(ByteBuffer destino, TipoTrama tipo) {
+        int inicio = destino.position();
+        destino.putInt(0);
+        destino.put(tipo.getCodigo());
+        return inicio;
+    }
+
+    @Override
+    public void ponerEntero(ByteBuffer destino, int valor) {
+        destino.putInt(valor);
+    }
+
+    @Override
+    public void ponerLargo(ByteBuffer destino, long valor) {
+        destino.putLong(valor);
+    }
+
+    @Override
+    public void ponerTexto(ByteBuffer destino, String texto) {
+        int posicionLongitud = destino.position();
+        destino.putInt(0);
+        for (int i = 0; i < texto.length(); i++) {
+            char caracter = texto.charAt(i);
+            if (caracter < 0x80) {
+                destino.put((byte) caracter);
+            } else if (caracter < 0x800) {
+                destino.put((byte) (0xC0 | (caracter >> 6)));
+                destino.put((byte) (0x80 | (caracter & 0x3F)));
+            } else if (Character.isHighSurrogate(caracter) && i + 1 < texto.length()
+                    && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                int codigo = Character.toCodePoint(caracter, texto.charAt(++i));
+                destino.put((byte) (0xF0 | (codigo >> 18)));
+                destino.put((byte) (0x80 | ((codigo >> 12) & 0x3F)));
+                destino.put((byte) (0x80 | ((codigo >> 6) & 0x3F)));
+                destino.put((byte) (0x80 | (codigo & 0x3F)));
+            } else if (Character.isSurrogate(caracter)) {
+                destino.put((byte) '?'); // Sustituto sin pareja, no representable en UTF-8
+            } else {
+                destino.put((byte) (0xE0 | (caracter >> 12)));
+                destino.put((byte) (0x80 | ((caracter >> 6) & 0x3F)));
+                destino.put((byte) (0x80 | (caracter & 0x3F)));
+            }
+        }
+        destino.putInt(posicionLongitud, destino.position() - posicionLongitud - Integer.BYTES);
+    }
+
+    @Override
+    public void terminar(ByteBuffer destino, int inicio) {
+        destino.putInt(inicio, destino.position() - inicio - Integer.BYTES);
+    }
+}
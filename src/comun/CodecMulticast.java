@@ -0,0 +1,222 @@
+package comun;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codificación de los datagramas multicast del chat. Cada datagrama lleva un
+ * lote de uno o varios mensajes difundidos, codificados como tramas DIFUSION
+ * con el Codec del protocolo TCP, precedidos de un byte de opciones:
+ * - Sin comprimir: opciones = 0 y a continuación las tramas.
+ * - Comprimido: opciones = COMPRIMIDO, la longitud original de las tramas
+ * (entero) y las tramas comprimidas con Deflate sin cabecera, usando como
+ * diccionario previo las expresiones más frecuentes del chat.
+ * El emisor sólo comprime los lotes que superan un umbral de tamaño, ya que en
+ * los mensajes sueltos el coste de CPU no compensa. Los buffers de trabajo se
+ * reutilizan entre datagramas, por lo que cada instancia sólo la debe usar un
+ * hilo.
+ *
+ * @author Ivan Martin
+ */
+public class CodecMulticast {
+
+    public static final int COMPRIMIDO = 1;
+
+    // Máximo que puede ocupar un datagrama UDP sobre IPv4
+    public static final int TAMANO_MAXIMO_DATAGRAMA = 65507;
+
+    private static final int CABECERA_COMPRIMIDO = 1 + Integer.BYTES;
+
+    // Expresiones frecuentes del chat, las más comunes al final (Deflate busca primero las más cercanas)
+    private static final byte[] DICCIONARIO = (" pero porque cuando también mucho bien gracias vale"
+            + " jaja jajaja xd ok sí no que de la el en los las un una por con para es"
+            + " ha perdido la conexión. ha recuperado la conexión. ha abandonado el chat."
+            + " >> El cliente  ha sido expulsado y bloqueado por inclumplir las normas"
+            + " se ha unido al chat. hola buenas >> ").getBytes(StandardCharsets.UTF_8);
+
+    private final Codec codec;
+    private final Trama trama;
+    private ByteBuffer lote;
+    private int mensajesLote;
+    private byte[] datagrama;
+    private byte[] descomprimido;
+    private Deflater compresor;
+    private Inflater descompresor;
+
+    public CodecMulticast() {
+        this.codec = new CodecBinario();
+        this.trama = new Trama();
+        this.lote = ByteBuffer.allocate(TAMANO_MAXIMO_DATAGRAMA);
+        this.datagrama = new byte[0];
+        this.descomprimido = new byte[0];
+    }
+
+    /**
+     * Empieza un lote nuevo, descartando el anterior.
+     */
+    public void iniciarLote() {
+        lote.clear();
+        lote.put((byte) 0);
+        mensajesLote = 0;
+    }
+
+    /**
+     * Añade un mensaje al lote.
+     *
+     * @param secuencia el número de secuencia del mensaje.
+     * @param mensaje el texto del mensaje.
+     * @param tamanoMaximo bytes que puede ocupar el lote sin comprimir.
+     * @return true si se ha añadido, false si no cabe. El primer mensaje de un
+     * lote siempre cabe, salvo que supere el tamaño máximo de un datagrama.
+     */
+    public boolean anadir(long secuencia, String mensaje, int tamanoMaximo) {
+        int inicioMensaje = lote.position();
+        if (inicioMensaje + Codec.CABECERA + Long.BYTES + Codec.longitudMaximaTexto(mensaje) > lote.capacity()) {
+            return false; // Ni siquiera cabe en el buffer (limitado al tamaño máximo de un datagrama)
+        }
+        int inicio = codec.iniciar(lote, TipoTrama.DIFUSION);
+        codec.ponerLargo(lote, secuencia);
+        codec.ponerTexto(lote, mensaje);
+        codec.terminar(lote, inicio);
+        if (mensajesLote > 0 && lote.position() > tamanoMaximo) {
+            lote.position(inicioMensaje);
+            return false;
+        }
+        mensajesLote++;
+        return true;
+    }
+
+    public int getMensajesLote() {
+        return mensajesLote;
+    }
+
+    /**
+     * @return los bytes del lote sin comprimir, incluido el byte de opciones.
+     */
+    public int getTamanoLote() {
+        return lote.position();
+    }
+
+    /**
+     * Genera el datagrama del lote actual, que queda en getDatagrama().
+     *
+     * @param comprimir si se permite comprimir el lote.
+     * @param umbralCompresion bytes a partir de los cuales se comprime.
+     * @return la longitud del datagrama.
+     */
+    public int cerrarLote(boolean comprimir, int umbralCompresion) {
+        int longitud = lote.position() - 1;
+        if (comprimir && longitud >= umbralCompresion) {
+            if (compresor == null) {
+                compresor = new Deflater(Deflater.BEST_SPEED, true);
+            }
+            /* La salida se limita para que el datagrama comprimido, con su
+            cabecera, sea menor que sin comprimir: así nunca supera el tamaño
+            máximo de un datagrama, al que está limitado el lote. */
+            int limite = longitud - CABECERA_COMPRIMIDO;
+            asegurarDatagrama(CABECERA_COMPRIMIDO + longitud);
+            compresor.reset();
+            compresor.setDictionary(DICCIONARIO);
+            compresor.setInput(lote.array(), 1, longitud);
+            compresor.finish();
+            int comprimidos = limite > 0 ? compresor.deflate(datagrama, CABECERA_COMPRIMIDO, limite) : 0;
+            // Si la salida no ha cabido en el límite, no compensa comprimir
+            if (limite > 0 && compresor.finished()) {
+                datagrama[0] = COMPRIMIDO;
+                ByteBuffer.wrap(datagrama).putInt(1, longitud);
+                return CABECERA_COMPRIMIDO + comprimidos;
+            }
+        }
+        asegurarDatagrama(longitud + 1);
+        System.arraycopy(lote.array(), 0, datagrama, 0, longitud + 1);
+        return longitud + 1;
+    }
+
+    public byte[] getDatagrama() {
+        return datagrama;
+    }
+
+    private void asegurarDatagrama(int tamano) {
+        if (datagrama.length < tamano) {
+            datagrama = new byte[Math.max(tamano, 2048)];
+        }
+    }
+
+    /**
+     * Decodifica un datagrama y entrega sus mensajes en orden.
+     *
+     * @param datos el buffer con el datagrama recibido.
+     * @param longitud la longitud del datagrama.
+     * @param receptor quien recibe cada mensaje.
+     * @throws IOException si el datagrama no es válido.
+     */
+    public void decodificar(byte[] datos, int longitud, Receptor receptor) throws IOException {
+        if (longitud < 1) {
+            throw new ProtocolException("Datagrama vacío");
+        }
+        ByteBuffer tramas;
+        if ((datos[0] & COMPRIMIDO) != 0) {
+            tramas = descomprimir(datos, longitud);
+        } else {
+            tramas = ByteBuffer.wrap(datos, 1, longitud - 1);
+        }
+        while (tramas.hasRemaining()) {
+            if (!codec.decodificar(tramas, trama) || trama.getTipo() != TipoTrama.DIFUSION) {
+                throw new ProtocolException("Datagrama incompleto");
+            }
+            long secuencia = trama.leerLargo();
+            receptor.recibir(secuencia, trama.leerTexto());
+        }
+    }
+
+    private ByteBuffer descomprimir(byte[] datos, int longitud) throws IOException {
+        if (longitud < CABECERA_COMPRIMIDO) {
+            throw new ProtocolException("Datagrama incompleto");
+        }
+        int original = ByteBuffer.wrap(datos).getInt(1);
+        if (original < 0 || original > Codec.LONGITUD_MAXIMA) {
+            throw new ProtocolException("Longitud original no válida: " + original);
+        }
+        if (descomprimido.length < original) {
+            descomprimido = new byte[Math.max(original, 2 * descomprimido.length)];
+        }
+        if (descompresor == null) {
+            descompresor = new Inflater(true);
+        }
+        descompresor.reset();
+        descompresor.setDictionary(DICCIONARIO);
+        descompresor.setInput(datos, CABECERA_COMPRIMIDO, longitud - CABECERA_COMPRIMIDO);
+        try {
+            int obtenidos = descompresor.inflate(descomprimido, 0, original);
+            if (obtenidos != original) {
+                throw new ProtocolException("Datagrama comprimido incompleto");
+            }
+        } catch (DataFormatException ex) {
+            throw new ProtocolException("Datagrama comprimido no válido: " + ex.getMessage());
+        }
+        return ByteBuffer.wrap(descomprimido, 0, original);
+    }
+
+    /**
+     * Libera la memoria nativa del compresor y del descompresor.
+     */
+    public void cerrar() {
+        if (compresor != null) {
+            compresor.end();
+        }
+        if (descompresor != null) {
+            descompresor.end();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Receptor {
+
+        void recibir(long secuencia, String mensaje);
+    }
+}
@@ -0,0 +1,203 @@
+package comun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Esta clase reúne la configuración del Cliente y del Servidor: direcciones,
+ * puertos, interfaz de red y ajustes de los sockets. Los valores se leen de un
+ * fichero de propiedades (cliente.properties o servidor.properties en el
+ * directorio de trabajo, o el indicado en la propiedad del sistema
+ * chat.config), y cualquier propiedad del sistema con el mismo nombre tiene
+ * prioridad sobre el fichero. Si una clave no aparece en ninguno de los dos,
+ * se usa el valor por defecto que indica quien la consulta.
+ *
+ * Claves comunes a ambos lados:
+ * - chat.puerto: puerto TCP del servidor.
+ * - chat.multicast.ip / chat.multicast.puerto: grupo multicast del chat.
+ * - chat.multicast.interfaz: nombre o IP de la interfaz de red para multicast.
+ * - chat.multicast.ttl: TTL de los datagramas multicast enviados.
+ * - chat.multicast.loopback: si los datagramas enviados vuelven a la propia
+ * máquina (necesario si cliente y servidor comparten equipo).
+ * - chat.socket.rcvbuf / chat.socket.sndbuf: SO_RCVBUF y SO_SNDBUF en bytes
+ * (0 para dejar el valor del sistema).
+ * - chat.tcp.nodelay: TCP_NODELAY en las conexiones TCP.
+ *
+ * @author Ivan Martin
+ */
+public class Configuracion {
+
+    private final Properties propiedades;
+
+    private Configuracion(Properties propiedades) {
+        this.propiedades = propiedades;
+    }
+
+    /**
+     * Carga la configuración desde el fichero indicado, si existe.
+     *
+     * @param ficheroPorDefecto el fichero que se usa si no se indica otro en
+     * la propiedad chat.config.
+     * @return la configuración cargada.
+     */
+    public static Configuracion cargar(String ficheroPorDefecto) {
+        Properties propiedades = new Properties();
+        Path fichero = Path.of(System.getProperty("chat.config", ficheroPorDefecto));
+        if (Files.isReadable(fichero)) {
+            try (InputStream entrada = Files.newInputStream(fichero)) {
+                propiedades.load(entrada);
+            } catch (IOException ex) {
+                System.out.println("No se pudo leer la configuración de " + fichero + ": " + ex.getMessage());
+            }
+        }
+        return new Configuracion(propiedades);
+    }
+
+    public String getTexto(String clave, String porDefecto) {
+        String valor = System.getProperty(clave, propiedades.getProperty(clave));
+        return valor == null || valor.isBlank() ? porDefecto : valor.trim();
+    }
+
+    public int getEntero(String clave, int porDefecto) {
+        return Integer.parseInt(getTexto(clave, Integer.toString(porDefecto)));
+    }
+
+    public long getLargo(String clave, long porDefecto) {
+        return Long.parseLong(getTexto(clave, Long.toString(porDefecto)));
+    }
+
+    /**
+     * Lee un entero que no puede ser menor que un mínimo, como los divisores
+     * y los límites de mensajes.
+     *
+     * @throws IllegalArgumentException si el valor configurado es menor.
+     */
+    public int getEntero(String clave, int porDefecto, int minimo) {
+        return (int) comprobarMinimo(clave, getEntero(clave, porDefecto), minimo);
+    }
+
+    /**
+     * @see #getEntero(String, int, int)
+     */
+    public long getLargo(String clave, long porDefecto, long minimo) {
+        return comprobarMinimo(clave, getLargo(clave, porDefecto), minimo);
+    }
+
+    private static long comprobarMinimo(String clave, long valor, long minimo) {
+        if (valor < minimo) {
+            throw new IllegalArgumentException(clave + " debe ser al menos " + minimo + " (vale " + valor + ")");
+        }
+        return valor;
+    }
+
+    public boolean getBooleano(String clave, boolean porDefecto) {
+        return Boolean.parseBoolean(getTexto(clave, Boolean.toString(porDefecto)));
+    }
+
+    public int getPuerto() {
+        return getEntero("chat.puerto", 2000);
+    }
+
+    public InetAddress getGrupoMulticast() throws IOException {
+        return InetAddress.getByName(getTexto("chat.multicast.ip", "231.0.0.1"));
+    }
+
+    public int getPuertoMulticast() {
+        return getEntero("chat.multicast.puerto", 10000);
+    }
+
+    /**
+     * Devuelve la interfaz de red configurada para multicast, buscándola
+     * primero por nombre (por ejemplo "eth0") y después por dirección IP.
+     *
+     * @return la interfaz, o null para usar la del sistema.
+     * @throws IOException si la interfaz configurada no existe.
+     */
+    public NetworkInterface getInterfazMulticast() throws IOException {
+        String interfaz = getTexto("chat.multicast.interfaz", null);
+        if (interfaz == null) {
+            return null;
+        }
+        NetworkInterface resultado = NetworkInterface.getByName(interfaz);
+        if (resultado == null) {
+            resultado = NetworkInterface.getByInetAddress(InetAddress.getByName(interfaz));
+        }
+        if (resultado == null) {
+            throw new SocketException("No existe la interfaz de red " + interfaz);
+        }
+        return resultado;
+    }
+
+    /**
+     * Aplica al socket multicast la interfaz, el TTL, el modo loopback y los
+     * tamaños de buffer configurados.
+     *
+     * @param socket el socket multicast recién creado.
+     * @throws IOException si alguno de los ajustes no es válido.
+     */
+    public void ajustarMulticast(MulticastSocket socket) throws IOException {
+        NetworkInterface interfaz = getInterfazMulticast();
+        if (interfaz != null) {
+            socket.setNetworkInterface(interfaz);
+        }
+        socket.setTimeToLive(getEntero("chat.multicast.ttl", 1));
+        socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, getBooleano("chat.multicast.loopback", true));
+        ajustarBuffers(socket.getReceiveBufferSize(), socket::setReceiveBufferSize,
+                socket.getSendBufferSize(), socket::setSendBufferSize);
+    }
+
+    /**
+     * Aplica a una conexión TCP el TCP_NODELAY y los tamaños de buffer
+     * configurados.
+     *
+     * @param socket el socket TCP.
+     * @throws SocketException si alguno de los ajustes no es válido.
+     */
+    public void ajustarTcp(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(getBooleano("chat.tcp.nodelay", true));
+        ajustarBuffers(socket.getReceiveBufferSize(), socket::setReceiveBufferSize,
+                socket.getSendBufferSize(), socket::setSendBufferSize);
+    }
+
+    /**
+     * Aplica el tamaño de buffer de recepción configurado a un ServerSocket
+     * antes de enlazarlo, para que lo hereden las conexiones aceptadas.
+     *
+     * @param socket el ServerSocket sin enlazar.
+     * @throws SocketException si el ajuste no es válido.
+     */
+    public void ajustarServidor(ServerSocket socket) throws SocketException {
+        int recepcion = getEntero("chat.socket.rcvbuf", 0);
+        if (recepcion > 0) {
+            socket.setReceiveBufferSize(recepcion);
+        }
+    }
+
+    private void ajustarBuffers(int recepcionActual, Ajuste ajusteRecepcion,
+            int envioActual, Ajuste ajusteEnvio) throws SocketException {
+        int recepcion = getEntero("chat.socket.rcvbuf", 0);
+        if (recepcion > 0 && recepcion != recepcionActual) {
+            ajusteRecepcion.aplicar(recepcion);
+        }
+        int envio = getEntero("chat.socket.sndbuf", 0);
+        if (envio > 0 && envio != envioActual) {
+            ajusteEnvio.aplicar(envio);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Ajuste {
+
+        void aplicar(int valor) throws SocketException;
+    }
+}
@@ -0,0 +1,92 @@
+package comun;
+
+import java.net.ProtocolException;
+
+/**
+ * Tipos de trama del protocolo TCP entre Cliente y Servidor, cada uno con su
+ * código de operación de un byte. Los mensajes de control (SALIR,
+ * TERMINAR_SESION) son tramas sin contenido, por lo que ya no pueden
+ * confundirse con un texto escrito por el usuario.
+ *
+ * @author Ivan Martin
+ */
+public enum TipoTrama {
+
+    /**
+     * Cliente a servidor: solicitud de acceso. Versión (entero), capacidades
+     * (entero), token de la sesión anterior (texto), última secuencia recibida
+     * (largo), número de nicks candidatos (entero) y los candidatos (textos).
+     */
+    HOLA(1),
+    /**
+     * Servidor a cliente: acceso concedido. Nick asignado y token de sesión
+     * (textos). Le siguen los mensajes perdidos como tramas DIFUSION.
+     */
+    ACEPTADO(2),
+    /**
+     * Servidor a cliente: acceso rechazado. Motivo (texto), número de nicks
+     * sugeridos (entero) y las sugerencias (textos).
+     */
+    RECHAZADO(3),
+    /**
+     * Cliente a servidor: mensaje de chat (texto).
+     */
+    MENSAJE(4),
+    /**
+     * Cliente a servidor: solicitud de desconexión, sin contenido.
+     */
+    SALIR(5),
+    /**
+     * Servidor a cliente: mensaje dirigido sólo a este cliente (texto).
+     */
+    AVISO(6),
+    /**
+     * Servidor a cliente: mensaje difundido a todo el chat. Secuencia (largo)
+     * y texto.
+     */
+    DIFUSION(7),
+    /**
+     * Servidor a cliente: fin de la sesión, sin contenido. El cliente no debe
+     * intentar reconectarse.
+     */
+    TERMINAR_SESION(8),
+    /**
+     * Servidor a cliente: el servidor se va a apagar. Motivo (texto) y
+     * milisegundos que el cliente debe esperar antes de reconectarse para
+     * reanudar la sesión (largo).
+     */
+    APAGADO(9);
+
+    private static final TipoTrama[] POR_CODIGO = new TipoTrama[16];
+
+    static {
+        for (TipoTrama tipo : values()) {
+            POR_CODIGO[tipo.codigo] = tipo;
+        }
+    }
+
+    private final byte codigo;
+
+    TipoTrama(int codigo) {
+        this.codigo = (byte) codigo;
+    }
+
+    public byte getCodigo() {
+        return codigo;
+    }
+
+    /**
+     * Devuelve el tipo de trama correspondiente a un código de operación.
+     *
+     * @param codigo el código leído de la trama.
+     * @return el tipo de trama.
+     * @throws ProtocolException si el código no corresponde a ningún tipo.
+     */
+    public static TipoTrama deCodigo(byte codigo) throws ProtocolException {
+        TipoTrama tipo = codigo >= 0 && codigo < POR_CODIGO.length ? POR_CODIGO[codigo] : null;
+        if (tipo == null) {
+            throw new ProtocolException("Código de trama desconocido: " + codigo);
+        }
+        return tipo;
+    }
+}
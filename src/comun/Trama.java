@@ -0,0 +1,81 @@
+package comun;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Trama decodificada por un Codec. No copia los datos: guarda el tipo y la
+ * posición del contenido dentro del buffer del que se ha decodificado, por lo
+ * que sólo es válida hasta que se decodifique la siguiente trama sobre el
+ * mismo buffer. Los campos se leen en orden con los métodos leer*(), y sólo
+ * los textos crean objetos al leerse, de forma que las tramas de control no
+ * generan ninguno.
+ *
+ * @author Ivan Martin
+ */
+public class Trama {
+
+    private TipoTrama tipo;
+    private ByteBuffer buffer;
+    private int posicion;
+    private int fin;
+
+    /**
+     * Asigna a la trama el contenido decodificado. Lo usa el Codec.
+     *
+     * @param tipo el tipo de la trama.
+     * @param buffer el buffer que contiene la trama.
+     * @param inicio la posición del primer byte del contenido.
+     * @param fin la posición siguiente al último byte del contenido.
+     */
+    public void asignar(TipoTrama tipo, ByteBuffer buffer, int inicio, int fin) {
+        this.tipo = tipo;
+        this.buffer = buffer;
+        this.posicion = inicio;
+        this.fin = fin;
+    }
+
+    public TipoTrama getTipo() {
+        return tipo;
+    }
+
+    public int leerEntero() throws ProtocolException {
+        comprobar(Integer.BYTES);
+        int valor = buffer.getInt(posicion);
+        posicion += Integer.BYTES;
+        return valor;
+    }
+
+    public long leerLargo() throws ProtocolException {
+        comprobar(Long.BYTES);
+        long valor = buffer.getLong(posicion);
+        posicion += Long.BYTES;
+        return valor;
+    }
+
+    public String leerTexto() throws ProtocolException {
+        int longitud = leerEntero();
+        if (longitud < 0) {
+            throw new ProtocolException("Longitud de texto no válida: " + longitud);
+        }
+        comprobar(longitud);
+        String texto;
+        if (buffer.hasArray()) {
+            texto = new String(buffer.array(), buffer.arrayOffset() + posicion, longitud, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[longitud];
+            buffer.get(posicion, bytes);
+            texto = new String(bytes, StandardCharsets.UTF_8);
+        }
+        posicion += longitud;
+        return texto;
+    }
+
+    private void comprobar(int bytes) throws ProtocolException {
+        // Sin sumar a la posición, que con una longitud enorme desbordaría
+        if (bytes < 0 || bytes > fin - posicion) {
+            throw new ProtocolException("Trama " + tipo + " incompleta");
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package rendimiento;
+
+import cliente.MainCliente;
+import cliente.VistaChat;
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.event.ContainerEvent;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+/**
+ * Arranca el Cliente como MainCliente y termina en cuanto la ventana muestra
+ * el primer mensaje, indicándolo en la salida estándar. Lo usa
+ * RendimientoArranque para medir el tiempo de arranque del Cliente sin que
+ * éste tenga que saber que se le está midiendo: se detecta la VistaChat al
+ * añadirse a la ventana y se observa su ModeloTranscripcion.
+ *
+ * @author Ivan Martin
+ */
+public class ArranqueCliente {
+
+    public static final String MARCA_PRIMER_MENSAJE = "chat.arranque: primer mensaje mostrado";
+
+    public static void main(String[] args) {
+        Toolkit.getDefaultToolkit().addAWTEventListener(evento -> {
+            if (evento.getID() == ContainerEvent.COMPONENT_ADDED
+                    && ((ContainerEvent) evento).getChild() instanceof VistaChat) {
+                observar((VistaChat) ((ContainerEvent) evento).getChild());
+            }
+        }, AWTEvent.CONTAINER_EVENT_MASK);
+        MainCliente.main(args);
+    }
+
+    private static void observar(VistaChat vista) {
+        vista.getModel().addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent evento) {
+                // Se termina después de que la vista haya procesado el lote, una vez pintado
+                EventQueue.invokeLater(() -> {
+                    vista.paintImmediately(vista.getVisibleRect());
+                    System.out.println(MARCA_PRIMER_MENSAJE);
+                    System.exit(0);
+                });
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent evento) {
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent evento) {
+            }
+        });
+    }
+}
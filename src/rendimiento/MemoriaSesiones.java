@@ -0,0 +1,172 @@
+package rendimiento;
+
+import comun.CanalTramas;
+import comun.TipoTrama;
+import comun.Trama;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import servidor.Servidor;
+
+/**
+ * Mide la memoria real que cuesta en el servidor cada sesión inactiva, para
+ * contrastarla con la estimación de la TablaSesiones, que sólo cuenta las
+ * columnas de la tabla. Arranca un Servidor en este mismo proceso y conecta
+ * desde otro proceso los clientes indicados, que reciben el chat por
+ * multicast (para que no se les acumulen difusiones por TCP) y quedan
+ * inactivos. Antes y después de conectarlos se fuerza una recolección y se
+ * lee el heap en uso: la diferencia entre el número de clientes es lo que
+ * cuesta cada sesión en el heap, con su hilo, su CanalTramas y su cola de
+ * salida. No incluye la pila nativa de cada hilo ni los buffers del socket
+ * en el sistema operativo.
+ * Se ejecuta con el target "rendimiento-memoria" de Ant.
+ *
+ * Argumento opcional: número de clientes (por defecto 1000).
+ *
+ * @author Ivan Martin
+ */
+public class MemoriaSesiones {
+
+    private static final String MODO_CLIENTES = "clientes";
+    private static final String MARCA_CONECTADOS = "chat.memoria: clientes conectados";
+    private static final int VERSION_PROTOCOLO = 3;
+    private static final int CAPACIDADES = 3; // Multicast con compresión
+    private static final int CLIENTES_CALENTAMIENTO = 50;
+    private static final int RECOLECCIONES = 5;
+    private static final long ESPERA_ASENTAR_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(MODO_CLIENTES)) {
+            mantenerClientes(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int numeroClientes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        // El servidor medido no graba traza ni toca el estado del servidor real
+        File estado = File.createTempFile("memoria", ".estado");
+        estado.delete();
+        estado.deleteOnExit();
+        System.setProperty("chat.estado.fichero", estado.getPath());
+        System.setProperty("chat.traza.fichero", "");
+        System.setProperty("chat.puerto", Integer.toString(puertoLibre()));
+        System.setProperty("chat.admin.puerto", "0");
+        System.setProperty("chat.apagado.plazoMs", "1000");
+        System.setProperty("chat.admision.conexionesPorIp", "100000");
+        System.setProperty("chat.admision.conexiones", Integer.toString(numeroClientes + CLIENTES_CALENTAMIENTO));
+        Servidor servidor = new Servidor();
+        servidor.start();
+        int puerto = Servidor.getConfiguracion().getPuerto();
+
+        // Las clases y los buffers compartidos que se cargan con los primeros accesos quedan fuera de la medida
+        for (int i = 0; i < CLIENTES_CALENTAMIENTO; i++) {
+            try (Socket socket = conectar(puerto, "calentamiento" + i)) {
+                new CanalTramas(socket).enviar(TipoTrama.SALIR);
+            }
+        }
+        Thread.sleep(ESPERA_ASENTAR_MS);
+        long antes = heapUsado();
+
+        Process clientes = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), MemoriaSesiones.class.getName(),
+                MODO_CLIENTES, Integer.toString(puerto), Integer.toString(numeroClientes))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader salidaClientes = new BufferedReader(
+                new InputStreamReader(clientes.getInputStream(), StandardCharsets.UTF_8));
+        String linea;
+        while ((linea = salidaClientes.readLine()) != null && !linea.equals(MARCA_CONECTADOS)) {
+            System.out.println(linea);
+        }
+        if (linea == null) {
+            System.out.println("No se han podido conectar los clientes.");
+            System.exit(1);
+        }
+        Thread.sleep(ESPERA_ASENTAR_MS);
+        long despues = heapUsado();
+        int abiertas = Servidor.getSesiones().getAbiertas();
+        long bytesTabla = Servidor.getSesiones().bytesTablaPorSesion();
+        clientes.getOutputStream().close();
+        clientes.waitFor();
+
+        System.out.println(abiertas + " sesiones inactivas.");
+        System.out.printf("Heap del servidor: %d KB antes, %d KB después.%n", antes / 1024, despues / 1024);
+        System.out.println("Memoria real por sesión en el heap: " + (despues - antes) / numeroClientes + " bytes.");
+        System.out.println("Estimación de la TablaSesiones (sólo sus columnas): " + bytesTabla + " bytes.");
+        System.exit(0);
+    }
+
+    /**
+     * Modo del proceso de los clientes: los conecta, avisa por la salida
+     * estándar y los mantiene conectados e inactivos hasta que se cierra su
+     * entrada estándar.
+     */
+    private static void mantenerClientes(int puerto, int numeroClientes) throws IOException {
+        List<Socket> conexiones = new ArrayList<>();
+        for (int i = 0; i < numeroClientes; i++) {
+            conexiones.add(conectar(puerto, "cliente" + i));
+        }
+        System.out.println(MARCA_CONECTADOS);
+        System.out.flush();
+        System.in.readAllBytes();
+        for (Socket socket : conexiones) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Conecta un cliente y pide acceso con el nick indicado, sin leer nada
+     * más después de la aceptación.
+     *
+     * @return el socket del cliente, que queda conectado.
+     */
+    private static Socket conectar(int puerto, String nick) throws IOException {
+        Socket socket = new Socket("localhost", puerto);
+        CanalTramas canal = new CanalTramas(socket);
+        canal.iniciar(TipoTrama.HOLA);
+        canal.ponerEntero(VERSION_PROTOCOLO);
+        canal.ponerEntero(CAPACIDADES);
+        canal.ponerTexto("");
+        canal.ponerLargo(0);
+        canal.ponerEntero(1);
+        canal.ponerTexto(nick);
+        canal.terminar();
+        canal.vaciar();
+        Trama respuesta;
+        do {
+            respuesta = canal.leer();
+        } while (respuesta.getTipo() != TipoTrama.ACEPTADO && respuesta.getTipo() != TipoTrama.RECHAZADO);
+        if (respuesta.getTipo() == TipoTrama.RECHAZADO) {
+            socket.close();
+            throw new IOException("El servidor ha rechazado a " + nick);
+        }
+        return socket;
+    }
+
+    /**
+     * Fuerza varias recolecciones completas, para que no quede basura de los
+     * accesos, y devuelve el heap que sigue en uso.
+     */
+    private static long heapUsado() throws InterruptedException {
+        MemoryMXBean memoria = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < RECOLECCIONES; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memoria.getHeapMemoryUsage().getUsed();
+    }
+
+    private static int puertoLibre() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package rendimiento;
+
+import comun.CanalTramas;
+import comun.TipoTrama;
+import comun.Trama;
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide el tiempo de arranque del Servidor y del Cliente, con y sin un archivo
+ * de clases compartidas (AppCDS) de la JVM, que evita cargar y verificar desde
+ * el jar las clases del arranque: las de Swing, la configuración y la red.
+ * Cada medida arranca una JVM nueva con el jar de la aplicación:
+ * - Servidor: se arranca sin interfaz (--sin-interfaz) en un puerto libre y se
+ * mide el tiempo hasta que un cliente recibe el aviso de bienvenida.
+ * - Cliente: se arranca contra ese servidor a través de ArranqueCliente y se
+ * mide el tiempo hasta que muestra en la ventana el primer mensaje. Necesita
+ * una pantalla, por lo que se omite en un entorno sin ella.
+ * Se ejecuta con los targets "cds" (modo entrenar) y "rendimiento-arranque"
+ * (modo medir) de Ant.
+ *
+ * Argumentos:
+ * - entrenar JAR DIRECTORIO: arranca una vez el servidor y el cliente con
+ * -XX:ArchiveClassesAtExit, haciendo una sesión corta, para crear en el
+ * directorio los archivos servidor.jsa y cliente.jsa con las clases que han
+ * cargado.
+ * - medir JAR DIRECTORIO [REPETICIONES]: compara los arranques sin archivo y
+ * con -XX:SharedArchiveFile, y muestra el mínimo y la mediana de cada caso.
+ * Los archivos sólo sirven para el mismo jar y la misma JVM con que se
+ * crearon; si no coinciden, la JVM los ignora sin avisar.
+ *
+ * Sólo se mide el efecto de CDS: los dos casos usan el mismo jar, que ya
+ * pone en marcha la red antes de crear la ventana, por lo que el orden de
+ * arranque no se compara.
+ *
+ * @author Ivan Martin
+ */
+public class RendimientoArranque {
+
+    private static final int VERSION_PROTOCOLO = 3;
+    private static final long PLAZO_ARRANQUE_MS = 30000;
+
+    private static final String ARCHIVO_SERVIDOR = "servidor.jsa";
+    private static final String ARCHIVO_CLIENTE = "cliente.jsa";
+
+    private static String jar;
+    private static File directorio;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || !(args[0].equals("entrenar") || args[0].equals("medir"))) {
+            System.out.println("Uso: RendimientoArranque entrenar <jar> <directorio>");
+            System.out.println("     RendimientoArranque medir <jar> <directorio> [repeticiones]");
+            return;
+        }
+        jar = new File(args[1]).getAbsolutePath();
+        directorio = new File(args[2]);
+        boolean conPantalla = !GraphicsEnvironment.isHeadless();
+        if (!conPantalla) {
+            System.out.println("Entorno sin pantalla: sólo se mide el servidor.");
+        }
+        if (args[0].equals("entrenar")) {
+            entrenar(conPantalla);
+        } else {
+            medir(args.length > 3 ? Integer.parseInt(args[3]) : 5, conPantalla);
+        }
+    }
+
+    private static void entrenar(boolean conPantalla) throws Exception {
+        File archivoServidor = new File(directorio, ARCHIVO_SERVIDOR);
+        File archivoCliente = new File(directorio, ARCHIVO_CLIENTE);
+        archivoServidor.delete();
+        archivoCliente.delete();
+
+        int puerto = puertoLibre();
+        Process servidor = arrancarServidor(puerto, "-XX:ArchiveClassesAtExit=" + archivoServidor.getAbsolutePath());
+        try {
+            esperarBienvenida(puerto, servidor, true);
+            if (conPantalla) {
+                esperarPrimerMensaje(arrancarCliente(puerto,
+                        "-XX:ArchiveClassesAtExit=" + archivoCliente.getAbsolutePath()));
+            }
+        } finally {
+            // La JVM escribe el archivo al terminar, también al recibir SIGTERM
+            terminar(servidor);
+        }
+        informarArchivo(archivoServidor);
+        if (conPantalla) {
+            informarArchivo(archivoCliente);
+        }
+    }
+
+    private static void informarArchivo(File archivo) {
+        if (!archivo.isFile()) {
+            throw new IllegalStateException("La JVM no ha creado el archivo " + archivo);
+        }
+        System.out.printf("Creado %s (%.1f MB)%n", archivo, archivo.length() / (1024.0 * 1024.0));
+    }
+
+    private static void medir(int repeticiones, boolean conPantalla) throws Exception {
+        File archivoServidor = new File(directorio, ARCHIVO_SERVIDOR);
+        File archivoCliente = new File(directorio, ARCHIVO_CLIENTE);
+        if (!archivoServidor.isFile() || (conPantalla && !archivoCliente.isFile())) {
+            throw new IllegalStateException("No hay archivos de clases en " + directorio + ": ejecuta antes \"ant cds\"");
+        }
+        String[] casos = {"sin CDS", "con CDS"};
+        long[][] servidor = new long[casos.length][repeticiones];
+        long[][] cliente = new long[casos.length][repeticiones];
+
+        // Una primera ronda sin medir calienta la caché de disco del jar y de la JVM
+        for (int ronda = -1; ronda < repeticiones; ronda++) {
+            for (int caso = 0; caso < casos.length; caso++) {
+                int puerto = puertoLibre();
+                long inicio = System.nanoTime();
+                Process proceso = arrancarServidor(puerto,
+                        caso == 0 ? "-Xshare:auto" : "-XX:SharedArchiveFile=" + archivoServidor.getAbsolutePath());
+                try {
+                    esperarBienvenida(puerto, proceso, false);
+                    long tiempoServidor = System.nanoTime() - inicio;
+                    long tiempoCliente = 0;
+                    if (conPantalla) {
+                        inicio = System.nanoTime();
+                        esperarPrimerMensaje(arrancarCliente(puerto,
+                                caso == 0 ? "-Xshare:auto" : "-XX:SharedArchiveFile=" + archivoCliente.getAbsolutePath()));
+                        tiempoCliente = System.nanoTime() - inicio;
+                    }
+                    if (ronda >= 0) {
+                        servidor[caso][ronda] = tiempoServidor;
+                        cliente[caso][ronda] = tiempoCliente;
+                    }
+                } finally {
+                    terminar(proceso);
+                }
+            }
+        }
+
+        System.out.println("Repeticiones: " + repeticiones + " (JVM " + System.getProperty("java.version")
+                + "). Sólo se compara el efecto de CDS, con el mismo orden de arranque.");
+        for (int caso = 0; caso < casos.length; caso++) {
+            informar("Servidor hasta la bienvenida, " + casos[caso], servidor[caso]);
+            if (conPantalla) {
+                informar("Cliente hasta el primer mensaje, " + casos[caso], cliente[caso]);
+            }
+        }
+    }
+
+    private static void informar(String caso, long[] tiempos) {
+        long[] ordenados = tiempos.clone();
+        Arrays.sort(ordenados);
+        System.out.printf("%-42s mínimo %6.0f ms  mediana %6.0f ms%n", caso + ":", ordenados[0] / 1e6,
+                ordenados[ordenados.length / 2] / 1e6);
+    }
+
+    private static Process arrancarServidor(int puerto, String opcionCds) throws IOException {
+        File estado = File.createTempFile("arranque", ".estado");
+        estado.delete();
+        estado.deleteOnExit();
+        List<String> comando = comandoJava(opcionCds, puerto);
+        comando.add("-Dchat.admin.puerto=0");
+        comando.add("-Dchat.traza.fichero=");
+        comando.add("-Dchat.estado.fichero=" + estado.getAbsolutePath());
+        comando.add("servidor.MainServidor");
+        comando.add("--sin-interfaz");
+        return new ProcessBuilder(comando)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    private static Process arrancarCliente(int puerto, String opcionCds) throws IOException {
+        List<String> comando = comandoJava(opcionCds, puerto);
+        comando.add(ArranqueCliente.class.getName());
+        return new ProcessBuilder(comando).redirectErrorStream(true).start();
+    }
+
+    private static List<String> comandoJava(String opcionCds, int puerto) {
+        List<String> comando = new ArrayList<>();
+        comando.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        comando.add(opcionCds);
+        comando.add("-Dchat.puerto=" + puerto);
+        comando.add("-cp");
+        comando.add(jar);
+        return comando;
+    }
+
+    /**
+     * Se conecta al servidor en cuanto acepta conexiones y espera el aviso de
+     * bienvenida. Para entrenar, completa además una sesión corta (acceso,
+     * mensaje y salida), de forma que el archivo incluya esas clases.
+     */
+    private static void esperarBienvenida(int puerto, Process proceso, boolean sesionCompleta) throws Exception {
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PLAZO_ARRANQUE_MS);
+        while (true) {
+            if (!proceso.isAlive()) {
+                throw new IllegalStateException("El servidor terminó al arrancar (código " + proceso.exitValue() + ")");
+            }
+            try (Socket socket = new Socket("localhost", puerto);
+                    CanalTramas canal = new CanalTramas(socket)) {
+                esperarTrama(canal, TipoTrama.AVISO);
+                if (sesionCompleta) {
+                    canal.iniciar(TipoTrama.HOLA);
+                    canal.ponerEntero(VERSION_PROTOCOLO);
+                    canal.ponerEntero(0); // Sin multicast: el chat llega por esta conexión
+                    canal.ponerTexto("");
+                    canal.ponerLargo(0);
+                    canal.ponerEntero(1);
+                    canal.ponerTexto("arranque");
+                    canal.terminar();
+                    canal.vaciar();
+                    esperarTrama(canal, TipoTrama.ACEPTADO);
+                    canal.enviar(TipoTrama.MENSAJE, "Entrenamiento del archivo de clases");
+                    esperarTrama(canal, TipoTrama.DIFUSION);
+                    canal.enviar(TipoTrama.SALIR);
+                }
+                return;
+            } catch (IOException ex) {
+                // Todavía no escucha
+                if (System.nanoTime() > limite) {
+                    throw new IllegalStateException("El servidor no ha arrancado en " + PLAZO_ARRANQUE_MS + " ms", ex);
+                }
+                Thread.sleep(2);
+            }
+        }
+    }
+
+    private static void esperarTrama(CanalTramas canal, TipoTrama tipo) throws IOException {
+        Trama trama;
+        do {
+            trama = canal.leer();
+        } while (trama.getTipo() != tipo);
+    }
+
+    private static void esperarPrimerMensaje(Process cliente) throws Exception {
+        try (BufferedReader salida = new BufferedReader(
+                new InputStreamReader(cliente.getInputStream(), StandardCharsets.UTF_8))) {
+            String linea;
+            while ((linea = salida.readLine()) != null) {
+                if (linea.contains(ArranqueCliente.MARCA_PRIMER_MENSAJE)) {
+                    cliente.waitFor(PLAZO_ARRANQUE_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+        } finally {
+            cliente.destroyForcibly();
+        }
+        throw new IllegalStateException("El cliente terminó sin mostrar ningún mensaje");
+    }
+
+    private static void terminar(Process proceso) throws InterruptedException {
+        proceso.destroy();
+        if (!proceso.waitFor(PLAZO_ARRANQUE_MS, TimeUnit.MILLISECONDS)) {
+            proceso.destroyForcibly();
+        }
+    }
+
+    private static int puertoLibre() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package rendimiento;
+
+import comun.CodecMulticast;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Prueba de rendimiento de la codificación de los datagramas multicast. Con
+ * una secuencia fija de mensajes de chat sintéticos, mide para cada modo
+ * (tamaño de lote y compresión) los datagramas y bytes que se enviarían y el
+ * tiempo de CPU que cuesta codificarlos en el servidor y decodificarlos en el
+ * cliente, para poder elegir el equilibrio entre CPU y ancho de banda.
+ * Se ejecuta con el target "rendimiento-multicast" de Ant.
+ *
+ * Argumentos opcionales: número de mensajes y mensajes en cola por lote
+ * (simula la cola que se acumula en el EmisorMulticast en una sala con mucho
+ * tráfico).
+ *
+ * @author Ivan Martin
+ */
+public class RendimientoMulticast {
+
+    private static final String[] NICKS = {"ana", "luis", "marta", "pablo", "irene", "jorge", "sara", "dani"};
+    private static final String[] PALABRAS = {"hola", "que", "tal", "bien", "jaja", "vale", "gracias",
+        "pero", "porque", "mañana", "hoy", "clase", "examen", "partido", "quedamos", "luego", "sí", "no",
+        "mucho", "nada", "ver", "casa", "tarde", "noche", "el", "la", "de", "en", "un", "una", "para"};
+
+    private static int totalDatagramas;
+    private static long totalBytes;
+    private static long recibidos;
+
+    public static void main(String[] args) throws IOException {
+        int numeroMensajes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int enCola = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        List<String> mensajes = generarMensajes(numeroMensajes);
+
+        System.out.println(numeroMensajes + " mensajes, hasta " + enCola + " en cola por lote.");
+        System.out.printf("%-26s %10s %12s %10s %15s %15s%n", "Modo", "Datagramas", "Bytes/msg",
+                "Ratio", "Codif. ns/msg", "Decodif. ns/msg");
+        medir("1 mensaje por datagrama", mensajes, 1, 0, false, 0);
+        medir("Lote 1400 B", mensajes, enCola, 1400, false, 0);
+        medir("Lote 1400 B + Deflate", mensajes, enCola, 1400, true, 512);
+        medir("Lote 4096 B + Deflate", mensajes, enCola, 4096, true, 512);
+        medir("Lote 8192 B + Deflate", mensajes, enCola, 8192, true, 512);
+    }
+
+    private static List<String> generarMensajes(int numero) {
+        Random aleatorio = new Random(42);
+        List<String> mensajes = new ArrayList<>(numero);
+        for (int i = 0; i < numero; i++) {
+            String nick = NICKS[aleatorio.nextInt(NICKS.length)];
+            if (aleatorio.nextInt(50) == 0) {
+                mensajes.add(">> " + nick + " se ha unido al chat.");
+                continue;
+            }
+            StringBuilder mensaje = new StringBuilder(nick).append(':');
+            for (int palabras = 3 + aleatorio.nextInt(10); palabras > 0; palabras--) {
+                mensaje.append(' ').append(PALABRAS[aleatorio.nextInt(PALABRAS.length)]);
+            }
+            mensajes.add(mensaje.toString());
+        }
+        return mensajes;
+    }
+
+    private static void medir(String modo, List<String> mensajes, int enCola, int tamanoLote,
+            boolean comprimir, int umbral) throws IOException {
+        ThreadMXBean hilos = ManagementFactory.getThreadMXBean();
+        CodecMulticast emisor = new CodecMulticast();
+        CodecMulticast receptor = new CodecMulticast();
+        // Una primera pasada para que el JIT compile el código antes de medir
+        ejecutar(mensajes, enCola, tamanoLote, comprimir, umbral, emisor, receptor, hilos);
+        long[] tiempos = ejecutar(mensajes, enCola, tamanoLote, comprimir, umbral, emisor, receptor, hilos);
+        emisor.cerrar();
+        receptor.cerrar();
+
+        long bytesOriginales = 0;
+        for (String mensaje : mensajes) {
+            bytesOriginales += mensaje.length();
+        }
+        System.out.printf("%-26s %10d %12.1f %10.2f %15d %15d%n", modo, totalDatagramas,
+                (double) totalBytes / mensajes.size(), (double) totalBytes / bytesOriginales,
+                tiempos[0] / mensajes.size(), tiempos[1] / mensajes.size());
+        if (recibidos != mensajes.size()) {
+            System.out.println("  Error: se han decodificado " + recibidos + " mensajes.");
+        }
+    }
+
+    /**
+     * Codifica y decodifica todos los mensajes, midiendo por separado el
+     * tiempo de CPU de cada parte.
+     *
+     * @return el tiempo de CPU de codificación y de decodificación en ns.
+     */
+    private static long[] ejecutar(List<String> mensajes, int enCola, int tamanoLote, boolean comprimir,
+            int umbral, CodecMulticast emisor, CodecMulticast receptor, ThreadMXBean hilos) throws IOException {
+        long codificacion = 0;
+        long decodificacion = 0;
+        totalDatagramas = 0;
+        totalBytes = 0;
+        recibidos = 0;
+        int siguiente = 0;
+        while (siguiente < mensajes.size()) {
+            long inicio = hilos.getCurrentThreadCpuTime();
+            int limite = Math.min(mensajes.size(), siguiente + enCola);
+            emisor.iniciarLote();
+            while (siguiente < limite
+                    && emisor.anadir(siguiente, mensajes.get(siguiente), Math.max(tamanoLote, 1))) {
+                siguiente++;
+            }
+            int longitud = emisor.cerrarLote(comprimir, umbral);
+            long medio = hilos.getCurrentThreadCpuTime();
+            receptor.decodificar(emisor.getDatagrama(), longitud, (secuencia, mensaje) -> recibidos++);
+            long fin = hilos.getCurrentThreadCpuTime();
+
+            codificacion += medio - inicio;
+            decodificacion += fin - medio;
+            totalDatagramas++;
+            totalBytes += longitud;
+        }
+        return new long[]{codificacion, decodificacion};
+    }
+}
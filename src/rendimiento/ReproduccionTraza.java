@@ -0,0 +1,381 @@
+package rendimiento;
+
+import comun.CanalTramas;
+import comun.TipoTrama;
+import comun.Trama;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import servidor.Servidor;
+import servidor.TrazaEventos;
+
+/**
+ * Reproduce una traza de eventos grabada con chat.traza.fichero contra un
+ * Servidor arrancado en este mismo proceso, para repetir con cada versión la
+ * carga de una hora punta real. Cada conexión de la traza se abre como un
+ * cliente que recibe el chat por TCP (sin multicast), y se envían sus eventos
+ * en el orden grabado, respetando los tiempos entre ellos a la velocidad
+ * indicada. Antes de enviar nada más por una conexión que ha pedido acceso se
+ * espera la respuesta del servidor, como haría el cliente real.
+ * Al terminar se muestra el rendimiento: eventos y mensajes por segundo,
+ * mensajes difundidos, y la latencia desde que un cliente envía un mensaje
+ * hasta que lo recibe difundido. Los mensajes que el servidor no difunde
+ * (moderados, repetidos o por encima del límite) se cuentan como rechazados.
+ * Como todos los clientes reproducidos reciben el chat por TCP, las cifras
+ * corresponden sólo al envío unicast, aunque en la traza hubiera clientes
+ * con multicast; el resultado indica cuántos accesos lo usaban.
+ * Se ejecuta con el target "reproducir-traza" de Ant.
+ *
+ * Argumentos: fichero de la traza y velocidad ("1" para tiempo real, un
+ * número N para ir N veces más rápido, o "max" para no esperar entre
+ * eventos). El servidor usa la configuración habitual (servidor.properties y
+ * propiedades del sistema), salvo la traza, el fichero de estado y el límite
+ * de conexiones por IP, ya que todos los clientes se conectan desde local.
+ *
+ * @author Ivan Martin
+ */
+public class ReproduccionTraza {
+
+    private static final int VERSION_PROTOCOLO = 3;
+    private static final int CAPACIDAD_MULTICAST = 1;
+    private static final long ESPERA_ACCESO_MS = 5000;
+    private static final long ESPERA_FINAL_MS = 10000;
+
+    private static final AtomicLong difusionesRecibidas = new AtomicLong();
+    private static final AtomicLong mensajesEntregados = new AtomicLong();
+    private static final Map<String, String> tokens = new ConcurrentHashMap<>();
+    private static final List<long[]> latencias = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Uso: ReproduccionTraza <fichero> [1 | N | max]");
+            return;
+        }
+        Path fichero = Path.of(args[0]);
+        String modo = args.length > 1 ? args[1] : "1";
+        double velocidad = modo.equals("max") ? 0 : Double.parseDouble(modo);
+
+        // El servidor reproducido no graba otra traza ni toca el estado del servidor real
+        File estado = File.createTempFile("reproduccion", ".estado");
+        estado.delete();
+        estado.deleteOnExit();
+        System.setProperty("chat.estado.fichero", estado.getPath());
+        System.setProperty("chat.traza.fichero", "");
+        if (System.getProperty("chat.admision.conexionesPorIp") == null) {
+            System.setProperty("chat.admision.conexionesPorIp", "100000");
+        }
+        if (System.getProperty("chat.apagado.plazoMs") == null) {
+            System.setProperty("chat.apagado.plazoMs", "1000");
+        }
+        Servidor servidor = new Servidor();
+        servidor.start();
+        int puerto = Servidor.getConfiguracion().getPuerto();
+        esperarServidor(puerto);
+
+        Map<Long, Conexion> conexiones = new HashMap<>();
+        List<Conexion> todas = new ArrayList<>();
+        TrazaEventos.Evento evento = new TrazaEventos.Evento();
+        long eventos = 0;
+        long mensajes = 0;
+        long errores = 0;
+        long accesos = 0;
+        long accesosMulticast = 0;
+        long inicio = System.nanoTime();
+        try (TrazaEventos.Lector lector = new TrazaEventos.Lector(fichero)) {
+            while (lector.siguiente(evento)) {
+                if (velocidad > 0) {
+                    long objetivo = inicio + (long) (evento.getInstante() * 1000 / velocidad);
+                    long espera;
+                    while ((espera = objetivo - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(espera);
+                    }
+                }
+                eventos++;
+                Conexion conexion = conexiones.get(evento.getConexion());
+                try {
+                    switch (evento.getTipo()) {
+                        case TrazaEventos.CONEXION:
+                            Conexion nueva = new Conexion(puerto);
+                            conexiones.put(evento.getConexion(), nueva);
+                            todas.add(nueva);
+                            break;
+                        case TrazaEventos.HOLA:
+                            accesos++;
+                            if ((evento.getCapacidades() & CAPACIDAD_MULTICAST) != 0) {
+                                accesosMulticast++;
+                            }
+                            if (conexion != null) {
+                                conexion.pedirAcceso(evento.getReanudar(), evento.getCandidatos());
+                            }
+                            break;
+                        case TrazaEventos.MENSAJE:
+                            if (conexion != null) {
+                                conexion.enviarMensaje(evento.getMensaje());
+                                mensajes++;
+                            }
+                            break;
+                        case TrazaEventos.SALIR:
+                            if (conexion != null) {
+                                conexion.salir();
+                            }
+                            break;
+                        case TrazaEventos.DESCONEXION:
+                            if (conexion != null) {
+                                conexion.cerrar();
+                            }
+                            conexiones.remove(evento.getConexion());
+                            break;
+                    }
+                } catch (IOException ex) {
+                    // La conexión se ha cerrado (por ejemplo, el cliente ha sido bloqueado)
+                    errores++;
+                    conexiones.remove(evento.getConexion());
+                }
+            }
+        }
+        long envio = System.nanoTime() - inicio;
+
+        // Se espera a que lleguen los mensajes ya enviados
+        long limite = System.currentTimeMillis() + ESPERA_FINAL_MS;
+        while (System.currentTimeMillis() < limite && conexiones.values().stream().anyMatch(Conexion::tienePendientes)) {
+            Thread.sleep(10);
+        }
+        long total = System.nanoTime() - inicio;
+        for (Conexion conexion : todas) {
+            conexion.cerrar();
+            conexion.join(1000);
+        }
+
+        mostrarResultados(modo, eventos, mensajes, errores, envio, total);
+        System.out.println("Todos los clientes han recibido el chat por TCP: las cifras son sólo del envío unicast ("
+                + accesosMulticast + " de " + accesos + " accesos de la traza usaban multicast).");
+        System.exit(0);
+    }
+
+    private static void esperarServidor(int puerto) throws InterruptedException {
+        for (int intento = 0; intento < 100; intento++) {
+            try {
+                new Socket("localhost", puerto).close();
+                return;
+            } catch (IOException ex) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("El servidor no ha arrancado en el puerto " + puerto);
+    }
+
+    private static void mostrarResultados(String modo, long eventos, long mensajes, long errores,
+            long envio, long total) {
+        long[] valores;
+        synchronized (latencias) {
+            int numero = 0;
+            for (long[] bloque : latencias) {
+                numero += (int) bloque[0];
+            }
+            valores = new long[numero];
+            int posicion = 0;
+            for (long[] bloque : latencias) {
+                System.arraycopy(bloque, 1, valores, posicion, (int) bloque[0]);
+                posicion += (int) bloque[0];
+            }
+        }
+        Arrays.sort(valores);
+        double segundosEnvio = envio / 1e9;
+        double segundosTotal = total / 1e9;
+        System.out.println("Velocidad: " + (modo.equals("max") ? "máxima" : modo + "x"));
+        System.out.printf("Eventos reproducidos: %d en %.2f s (%.0f eventos/s)%n", eventos, segundosEnvio,
+                eventos / segundosEnvio);
+        System.out.printf("Mensajes enviados: %d (%.0f msg/s), entregados: %d, rechazados: %d, errores de conexión: %d%n",
+                mensajes, mensajes / segundosEnvio, mensajesEntregados.get(), mensajes - mensajesEntregados.get(), errores);
+        System.out.printf("Difusiones recibidas por los clientes: %d (%.0f/s)%n", difusionesRecibidas.get(),
+                difusionesRecibidas.get() / segundosTotal);
+        if (valores.length > 0) {
+            System.out.printf("Latencia (ms): p50 %.2f  p90 %.2f  p99 %.2f  máx %.2f%n",
+                    percentil(valores, 0.50), percentil(valores, 0.90), percentil(valores, 0.99),
+                    valores[valores.length - 1] / 1e6);
+        }
+    }
+
+    private static double percentil(long[] ordenados, double fraccion) {
+        return ordenados[Math.min(ordenados.length - 1, (int) (ordenados.length * fraccion))] / 1e6;
+    }
+
+    /**
+     * Cliente simulado de una conexión de la traza. Un hilo lee las tramas del
+     * servidor y empareja las difusiones de sus propios mensajes con el
+     * instante en que los envió.
+     */
+    private static class Conexion extends Thread {
+
+        private final Socket socket;
+        private final CanalTramas canal;
+        // Mensajes enviados pendientes de recibir difundidos, con su instante de envío
+        private final Queue<Object[]> enviados;
+        private volatile CountDownLatch acceso;
+        private volatile String nick;
+        private long[] muestras;
+
+        private Conexion(int puerto) throws IOException {
+            super("reproduccion");
+            setDaemon(true);
+            socket = new Socket("localhost", puerto);
+            socket.setTcpNoDelay(true);
+            canal = new CanalTramas(socket);
+            enviados = new ArrayDeque<>();
+            muestras = new long[65];
+            start();
+        }
+
+        private void pedirAcceso(boolean reanudar, List<String> candidatos) throws IOException {
+            // Sólo se puede reanudar una sesión obtenida en esta reproducción
+            String token = reanudar && !candidatos.isEmpty() ? tokens.getOrDefault(candidatos.get(0), "") : "";
+            acceso = new CountDownLatch(1);
+            synchronized (canal) {
+                canal.iniciar(TipoTrama.HOLA);
+                canal.ponerEntero(VERSION_PROTOCOLO);
+                canal.ponerEntero(0); // Sin multicast: el chat llega por esta conexión
+                canal.ponerTexto(token);
+                canal.ponerLargo(0);
+                canal.ponerEntero(candidatos.size());
+                for (String candidato : candidatos) {
+                    canal.ponerTexto(candidato);
+                }
+                canal.terminar();
+                canal.vaciar();
+            }
+        }
+
+        private void enviarMensaje(String mensaje) throws IOException {
+            esperarAcceso();
+            synchronized (enviados) {
+                enviados.add(new Object[]{mensaje, System.nanoTime()});
+            }
+            canal.enviar(TipoTrama.MENSAJE, mensaje);
+        }
+
+        private void salir() throws IOException {
+            esperarAcceso();
+            canal.enviar(TipoTrama.SALIR);
+        }
+
+        private void esperarAcceso() {
+            CountDownLatch pendiente = acceso;
+            if (pendiente != null) {
+                try {
+                    pendiente.await(ESPERA_ACCESO_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private boolean tienePendientes() {
+            synchronized (enviados) {
+                return !enviados.isEmpty() && !socket.isClosed();
+            }
+        }
+
+        private void cerrar() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Trama trama = canal.leer();
+                    switch (trama.getTipo()) {
+                        case ACEPTADO:
+                            nick = trama.leerTexto();
+                            tokens.put(nick, trama.leerTexto());
+                            acceso.countDown();
+                            break;
+                        case RECHAZADO:
+                            acceso.countDown();
+                            break;
+                        case DIFUSION:
+                            trama.leerLargo();
+                            recibirDifusion(trama.leerTexto(), System.nanoTime());
+                            break;
+                        case TERMINAR_SESION:
+                            return;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException ex) {
+                // Conexión cerrada
+            } finally {
+                CountDownLatch pendiente = acceso;
+                if (pendiente != null) {
+                    pendiente.countDown();
+                }
+                cerrar();
+                guardarMuestras();
+            }
+        }
+
+        /**
+         * Si la difusión es un mensaje propio, se busca entre los enviados. Los
+         * anteriores a él que no se han recibido los ha descartado el servidor.
+         */
+        private void recibirDifusion(String texto, long instante) {
+            difusionesRecibidas.incrementAndGet();
+            String propio = nick;
+            if (propio == null || !texto.startsWith(propio + ": ")) {
+                return;
+            }
+            String mensaje = texto.substring(propio.length() + 2);
+            synchronized (enviados) {
+                for (Object[] enviado : enviados) {
+                    if (enviado[0].equals(mensaje)) {
+                        while (enviados.poll() != enviado) {
+                            // Mensaje descartado por el servidor
+                        }
+                        anadirMuestra(instante - (long) enviado[1]);
+                        mensajesEntregados.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void anadirMuestra(long latencia) {
+            if (muestras[0] + 1 == muestras.length) {
+                guardarMuestras();
+            }
+            muestras[(int) ++muestras[0]] = latencia;
+        }
+
+        /**
+         * Pasa las latencias de esta conexión a la lista global, en bloques
+         * para no sincronizar en cada mensaje.
+         */
+        private void guardarMuestras() {
+            if (muestras[0] == 0) {
+                return;
+            }
+            synchronized (latencias) {
+                latencias.add(muestras);
+            }
+            muestras = new long[muestras.length];
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package servidor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Esta clase atiende la administración del servidor mientras está en marcha,
+ * mediante un protocolo de líneas de texto en un puerto que sólo escucha en
+ * la interfaz local (chat.admin.puerto), por ejemplo con "nc localhost 2100".
+ * Cada línea es un comando, y cada respuesta empieza por "OK" o "ERROR",
+ * seguida de los datos, y termina con una línea con un punto. Los comandos
+ * son:
+ * - sesiones: lista las sesiones con sus estadísticas.
+ * - expulsar NICK: desconecta al cliente sin bloquearlo.
+ * - bloquear NICK / desbloquear NICK: bloquea (expulsándolo si está
+ * conectado) o desbloquea un nick en todo el chat.
+ * - bloqueados: lista los nicks bloqueados.
+ * - recargar: vuelve a leer las palabras prohibidas de su fichero.
+ * - metricas: muestra las colas y las métricas del servidor.
+ * - limite [MENSAJES_POR_SEGUNDO RAFAGA]: muestra o cambia el límite de
+ * mensajes de los clientes.
+ * - ayuda, salir.
+ * Los datos se leen de la TablaSesiones y de los contadores de cada
+ * componente, sin retener el bloqueo del Servidor. Las expulsiones y bloqueos
+ * se ejecutan en la partición del PipelineModeracion de cada cliente, después
+ * de los mensajes que tenga pendientes, igual que los de la moderación.
+ *
+ * @author Ivan Martin
+ */
+public class ControlAdministracion extends Thread {
+
+    private static final String FIN_RESPUESTA = ".";
+
+    private final ServerSocket socketAdministracion;
+
+    /**
+     * @param puerto el puerto local donde se atienden los comandos.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public ControlAdministracion(int puerto) throws IOException {
+        super("administracion");
+        setDaemon(true);
+        socketAdministracion = new ServerSocket();
+        socketAdministracion.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto));
+    }
+
+    public void detener() {
+        try {
+            socketAdministracion.close();
+        } catch (IOException ex) {
+
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Socket conexion = socketAdministracion.accept();
+                Thread hilo = new Thread(() -> atender(conexion), "administracion-conexion");
+                hilo.setDaemon(true);
+                hilo.start();
+            }
+        } catch (IOException ex) {
+            // Puerto cerrado al apagar el servidor
+        }
+    }
+
+    private void atender(Socket conexion) {
+        try (conexion;
+                BufferedReader entrada = new BufferedReader(new InputStreamReader(conexion.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter salida = new PrintWriter(new OutputStreamWriter(conexion.getOutputStream(), StandardCharsets.UTF_8))) {
+            String linea;
+            while ((linea = entrada.readLine()) != null) {
+                String[] partes = linea.trim().split("\\s+");
+                if (partes[0].isEmpty()) {
+                    continue;
+                }
+                if (partes[0].equalsIgnoreCase("salir")) {
+                    responder(salida, "OK", List.of());
+                    return;
+                }
+                try {
+                    ejecutar(partes, salida);
+                } catch (IllegalArgumentException | IOException ex) {
+                    responder(salida, "ERROR " + ex.getMessage(), List.of());
+                }
+            }
+        } catch (IOException ex) {
+            // Conexión de administración cerrada
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void ejecutar(String[] partes, PrintWriter salida) throws InterruptedException, IOException {
+        TablaSesiones sesiones = Servidor.getSesiones();
+        switch (partes[0].toLowerCase()) {
+            case "sesiones":
+                responder(salida, "OK", listarSesiones(sesiones));
+                break;
+            case "expulsar": {
+                HiloGestionClientes cliente = buscarCliente(sesiones, argumento(partes));
+                Servidor.getPipeline().ejecutarEnOrden(cliente,
+                        () -> cliente.expulsar("Has sido expulsado del chat por un administrador."));
+                responder(salida, "OK", List.of());
+                break;
+            }
+            case "bloquear": {
+                String nick = argumento(partes);
+                Servidor.bloquearNick(nick);
+                int id = sesiones.buscar(nick);
+                HiloGestionClientes cliente = id < 0 ? null : sesiones.getCliente(id);
+                if (cliente != null) {
+                    Servidor.getPipeline().ejecutarEnOrden(cliente,
+                            () -> cliente.bloquear("por un administrador", "por un administrador"));
+                }
+                Servidor.escribirLog("El nick " + nick + " ha sido bloqueado desde la administración.");
+                responder(salida, "OK", List.of(cliente != null ? "Expulsado y bloqueado." : "Bloqueado (no estaba conectado)."));
+                break;
+            }
+            case "desbloquear": {
+                String nick = argumento(partes);
+                if (!Servidor.desbloquearNick(nick)) {
+                    throw new IllegalArgumentException("El nick " + nick + " no estaba bloqueado");
+                }
+                Servidor.escribirLog("El nick " + nick + " ha sido desbloqueado desde la administración.");
+                responder(salida, "OK", List.of());
+                break;
+            }
+            case "bloqueados":
+                responder(salida, "OK", Servidor.getNicksBloqueados());
+                break;
+            case "recargar": {
+                int palabras = Servidor.recargarPalabrasProhibidas();
+                if (palabras < 0) {
+                    throw new IllegalArgumentException("No hay fichero de palabras prohibidas (chat.moderacion.palabras)");
+                }
+                Servidor.escribirLog("Recargadas " + palabras + " palabras prohibidas.");
+                responder(salida, "OK", List.of(palabras + " palabras prohibidas."));
+                break;
+            }
+            case "metricas":
+                responder(salida, "OK", metricas(sesiones));
+                break;
+            case "limite":
+                if (partes.length == 3) {
+                    int mensajesPorSegundo = positivo(partes[1]);
+                    int rafaga = positivo(partes[2]);
+                    sesiones.ajustarLimite(mensajesPorSegundo, rafaga);
+                    Servidor.escribirLog("Límite de mensajes cambiado a " + mensajesPorSegundo
+                            + " por segundo, ráfaga de " + rafaga + ".");
+                } else if (partes.length != 1) {
+                    throw new IllegalArgumentException("Uso: limite [MENSAJES_POR_SEGUNDO RAFAGA]");
+                }
+                responder(salida, "OK", List.of(sesiones.getMensajesPorSegundo() + " mensajes por segundo, ráfaga de "
+                        + sesiones.getRafaga() + "."));
+                break;
+            case "ayuda":
+                responder(salida, "OK", List.of("sesiones", "expulsar NICK", "bloquear NICK", "desbloquear NICK",
+                        "bloqueados", "recargar", "metricas", "limite [MENSAJES_POR_SEGUNDO RAFAGA]", "salir"));
+                break;
+            default:
+                throw new IllegalArgumentException("Comando desconocido: " + partes[0] + " (ayuda muestra los comandos)");
+        }
+    }
+
+    /**
+     * Recorre la TablaSesiones sin bloquear al Servidor. Los contadores se
+     * leen sin sincronizar, por lo que pueden estar ligeramente desfasados.
+     */
+    private List<String> listarSesiones(TablaSesiones sesiones) {
+        List<String> lineas = new ArrayList<>();
+        lineas.add(String.format("%5s %-20s %-24s %9s %12s %7s %10s", "ID", "NICK", "ESTADO", "MENSAJES",
+                "ADVERTENCIAS", "FICHAS", "INACTIVO"));
+        long ahora = System.currentTimeMillis();
+        for (int id = sesiones.siguiente(0); id >= 0; id = sesiones.siguiente(id + 1)) {
+            String estado = sesiones.tieneMarca(id, TablaSesiones.ACTIVA) ? "activa" : "cerrando";
+            if (sesiones.tieneMarca(id, TablaSesiones.BLOQUEADA)) {
+                estado += ",bloqueada";
+            }
+            if (sesiones.tieneMarca(id, TablaSesiones.SIN_COMPRESION)) {
+                estado += ",sin-compresion";
+            }
+            lineas.add(String.format("%5d %-20s %-24s %9d %12d %7.1f %9.1fs", id, sesiones.getNick(id), estado,
+                    sesiones.getMensajes(id), sesiones.getAdvertencias(id), sesiones.getFichas(id) / 1000.0,
+                    (ahora - sesiones.getUltimaActividad(id)) / 1000.0));
+        }
+        lineas.add(sesiones.resumenMemoria());
+        return lineas;
+    }
+
+    private List<String> metricas(TablaSesiones sesiones) {
+        List<String> lineas = new ArrayList<>();
+        lineas.add(Servidor.getAdmision().resumenMetricas());
+        lineas.add(sesiones.resumenMemoria() + " Límite: " + sesiones.getMensajesPorSegundo()
+                + " mensajes por segundo, ráfaga de " + sesiones.getRafaga() + ".");
+        lineas.add("Cola de moderación: " + Servidor.getPipeline().getPendientes() + " mensajes.");
+        EmisorMulticast emisor = Servidor.getEmisor();
+        if (emisor != null) {
+            lineas.add("Cola multicast: " + emisor.getPendientes() + " mensajes. " + emisor.resumenMetricas());
+        }
+        DifusionUnicast difusion = Servidor.getDifusionUnicast();
+        lineas.add("Difusión por TCP: " + difusion.getSuscriptores() + " clientes, "
+                + difusion.getPendientes() + " mensajes pendientes.");
+        NodoCluster nodo = Servidor.getNodo();
+        if (nodo.enCluster()) {
+            lineas.add("Carga de los nodos: " + nodo.resumenCarga());
+        }
+        Runtime memoria = Runtime.getRuntime();
+        lineas.add("Memoria: " + (memoria.totalMemory() - memoria.freeMemory()) / (1024 * 1024) + " MB usados de "
+                + memoria.maxMemory() / (1024 * 1024) + " MB.");
+        return lineas;
+    }
+
+    private HiloGestionClientes buscarCliente(TablaSesiones sesiones, String nick) {
+        int id = sesiones.buscar(nick);
+        HiloGestionClientes cliente = id < 0 ? null : sesiones.getCliente(id);
+        if (cliente == null) {
+            throw new IllegalArgumentException("No hay ninguna sesión activa con el nick " + nick);
+        }
+        return cliente;
+    }
+
+    private static String argumento(String[] partes) {
+        if (partes.length != 2) {
+            throw new IllegalArgumentException("Uso: " + partes[0].toLowerCase() + " NICK");
+        }
+        return partes[1];
+    }
+
+    private static int positivo(String texto) {
+        try {
+            int valor = Integer.parseInt(texto);
+            if (valor > 0) {
+                return valor;
+            }
+        } catch (NumberFormatException ex) {
+
+        }
+        throw new IllegalArgumentException("Se esperaba un número positivo: " + texto);
+    }
+
+    private static void responder(PrintWriter salida, String estado, List<String> lineas) {
+        salida.println(estado);
+        for (String linea : lineas) {
+            salida.println(linea);
+        }
+        salida.println(FIN_RESPUESTA);
+        salida.flush();
+    }
+}
@@ -0,0 +1,182 @@
+package servidor;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esta clase se encarga del control de admisión de las conexiones entrantes,
+ * antes de que se cree un HiloGestionClientes para ellas. Se aplican tres
+ * límites: un máximo de conexiones activas, un máximo de conexiones aceptadas
+ * por IP de origen dentro de una ventana de tiempo y un máximo de clientes que
+ * están a la vez en fase de acceso (sin nick asignado todavía). De esta forma
+ * una avalancha de reconexiones no provoca la creación de miles de hilos de
+ * golpe.
+ * También lleva las métricas de conexiones aceptadas y rechazadas por cada uno
+ * de los motivos.
+ *
+ * @author Ivan Martin
+ */
+public class ControlAdmision {
+
+    /**
+     * Motivos por los que se puede rechazar una conexión. Cada uno incluye el
+     * mensaje que se envía al cliente antes de cerrar el socket.
+     */
+    public enum Rechazo {
+        CAPACIDAD(">> El servidor ha alcanzado el máximo de conexiones. Inténtalo más tarde."),
+        TASA(">> Demasiadas conexiones desde tu dirección. Espera unos segundos."),
+        ACCESOS_PENDIENTES(">> El servidor está atendiendo demasiados accesos. Inténtalo más tarde.");
+
+        private final String mensaje;
+
+        Rechazo(String mensaje) {
+            this.mensaje = mensaje;
+        }
+
+        public String getMensaje() {
+            return mensaje;
+        }
+    }
+
+    // Número de IPs registradas a partir del cual se purgan las ventanas caducadas
+    private static final int MAXIMO_IPS_REGISTRADAS = 4096;
+
+    private final int maximoConexiones;
+    private final int maximoAccesosPendientes;
+    private final int maximoPorVentana;
+    private final long ventanaMilisegundos;
+
+    private final AtomicInteger conexionesActivas;
+    private final AtomicInteger accesosPendientes;
+    private final Map<InetAddress, long[]> ventanasPorIp;
+
+    private final AtomicLong aceptadas;
+    private final AtomicLong rechazadasCapacidad;
+    private final AtomicLong rechazadasTasa;
+    private final AtomicLong rechazadasAccesosPendientes;
+
+    public ControlAdmision(int maximoConexiones, int maximoAccesosPendientes,
+            int maximoPorVentana, long ventanaMilisegundos) {
+        this.maximoConexiones = maximoConexiones;
+        this.maximoAccesosPendientes = maximoAccesosPendientes;
+        this.maximoPorVentana = maximoPorVentana;
+        this.ventanaMilisegundos = ventanaMilisegundos;
+        this.conexionesActivas = new AtomicInteger();
+        this.accesosPendientes = new AtomicInteger();
+        this.ventanasPorIp = new HashMap<>();
+        this.aceptadas = new AtomicLong();
+        this.rechazadasCapacidad = new AtomicLong();
+        this.rechazadasTasa = new AtomicLong();
+        this.rechazadasAccesosPendientes = new AtomicLong();
+    }
+
+    /**
+     * Método que decide si se admite una nueva conexión. Si se admite, se
+     * reserva tanto el hueco de conexión activa como el de acceso pendiente,
+     * que se liberan con finAcceso() y liberarConexion().
+     *
+     * @param origen la dirección IP del cliente que se conecta.
+     * @return null si la conexión se admite, o el motivo del rechazo.
+     */
+    public Rechazo admitir(InetAddress origen) {
+        if (!dentroDeTasa(origen)) {
+            rechazadasTasa.incrementAndGet();
+            return Rechazo.TASA;
+        }
+        if (conexionesActivas.incrementAndGet() > maximoConexiones) {
+            conexionesActivas.decrementAndGet();
+            rechazadasCapacidad.incrementAndGet();
+            return Rechazo.CAPACIDAD;
+        }
+        if (accesosPendientes.incrementAndGet() > maximoAccesosPendientes) {
+            accesosPendientes.decrementAndGet();
+            conexionesActivas.decrementAndGet();
+            rechazadasAccesosPendientes.incrementAndGet();
+            return Rechazo.ACCESOS_PENDIENTES;
+        }
+        aceptadas.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Método que comprueba y actualiza la ventana de conexiones de una IP.
+     * Cada entrada guarda el inicio de la ventana y el número de conexiones
+     * aceptadas en ella.
+     *
+     * @param origen la dirección IP del cliente.
+     * @return true si la IP no ha superado el límite en la ventana actual.
+     */
+    private synchronized boolean dentroDeTasa(InetAddress origen) {
+        long ahora = System.currentTimeMillis();
+        if (ventanasPorIp.size() >= MAXIMO_IPS_REGISTRADAS) {
+            purgarVentanas(ahora);
+        }
+        long[] ventana = ventanasPorIp.get(origen);
+        if (ventana == null || ahora - ventana[0] >= ventanaMilisegundos) {
+            ventanasPorIp.put(origen, new long[]{ahora, 1});
+            return true;
+        }
+        return ++ventana[1] <= maximoPorVentana;
+    }
+
+    /**
+     * Elimina las ventanas ya caducadas para que el mapa no crezca sin límite.
+     */
+    private void purgarVentanas(long ahora) {
+        Iterator<long[]> it = ventanasPorIp.values().iterator();
+        while (it.hasNext()) {
+            if (ahora - it.next()[0] >= ventanaMilisegundos) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Libera el hueco de acceso pendiente, una vez el cliente tiene nick o se
+     * desconecta antes de conseguirlo.
+     */
+    public void finAcceso() {
+        accesosPendientes.decrementAndGet();
+    }
+
+    /**
+     * Libera el hueco de conexión activa al cerrarse la conexión del cliente.
+     */
+    public void liberarConexion() {
+        conexionesActivas.decrementAndGet();
+    }
+
+    public int getConexionesActivas() {
+        return conexionesActivas.get();
+    }
+
+    public int getAccesosPendientes() {
+        return accesosPendientes.get();
+    }
+
+    public long getAceptadas() {
+        return aceptadas.get();
+    }
+
+    public long getRechazadas() {
+        return rechazadasCapacidad.get() + rechazadasTasa.get() + rechazadasAccesosPendientes.get();
+    }
+
+    /**
+     * Devuelve un resumen de las métricas de admisión para mostrarlo en el log.
+     *
+     * @return el texto con las métricas actuales.
+     */
+    public String resumenMetricas() {
+        return "Conexiones activas: " + conexionesActivas.get() + "/" + maximoConexiones
+                + ", accesos pendientes: " + accesosPendientes.get() + "/" + maximoAccesosPendientes
+                + ", aceptadas: " + aceptadas.get()
+                + ", rechazadas (capacidad: " + rechazadasCapacidad.get()
+                + ", tasa: " + rechazadasTasa.get()
+                + ", accesos pendientes: " + rechazadasAccesosPendientes.get() + ")";
+    }
+}
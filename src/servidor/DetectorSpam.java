@@ -0,0 +1,131 @@
+package servidor;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esta clase detecta mensajes repetidos antes de que lleguen a enviarse por
+ * multicast. De cada mensaje se calcula una huella de 64 bits sobre su texto
+ * normalizado (sólo letras y dígitos, en minúsculas), y se comprueba:
+ * - Si el mismo cliente ha enviado esa huella entre sus últimos mensajes, que
+ * se guardan en un pequeño LRU por sesión dentro de la TablaSesiones.
+ * - Si esa huella se ha visto demasiadas veces recientemente en todo el chat
+ * (mensajes copiados y pegados desde varias cuentas), lo que se estima con un
+ * count-min sketch global de tamaño fijo cuyos contadores se dividen a la
+ * mitad cada cierto número de mensajes para olvidar los antiguos.
+ * La memoria usada no depende del número de usuarios más allá de las huellas
+ * fijas de cada sesión, y la comprobación no crea ningún objeto.
+ *
+ * @author Ivan Martin
+ */
+public class DetectorSpam {
+
+    // Huellas recientes que se recuerdan de cada cliente
+    public static final int HUELLAS_POR_CLIENTE = 8;
+
+    private static final int FILAS = 4;
+    private static final int COLUMNAS = 4096;
+    private static final long[] SEMILLAS = {
+        0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+    private static final long FNV_BASE = 0xcbf29ce484222325L;
+    private static final long FNV_PRIMO = 0x100000001b3L;
+
+    private final int umbralGlobal;
+    private final int longitudMinima;
+    private final long mensajesPorPeriodo;
+    private final AtomicIntegerArray sketch;
+    private final AtomicLong mensajesVistos;
+
+    /**
+     * @param umbralGlobal veces que se puede ver un mismo mensaje en todo el
+     * chat dentro del periodo antes de rechazarlo.
+     * @param longitudMinima caracteres normalizados a partir de los cuales se
+     * comprueba un mensaje (los saludos cortos se repiten de forma legítima).
+     * @param mensajesPorPeriodo mensajes tras los que se dividen a la mitad los
+     * contadores globales.
+     */
+    public DetectorSpam(int umbralGlobal, int longitudMinima, long mensajesPorPeriodo) {
+        this.umbralGlobal = umbralGlobal;
+        this.longitudMinima = longitudMinima;
+        this.mensajesPorPeriodo = mensajesPorPeriodo;
+        this.sketch = new AtomicIntegerArray(FILAS * COLUMNAS);
+        this.mensajesVistos = new AtomicLong();
+    }
+
+    /**
+     * Método que comprueba si un mensaje es repetido y lo registra.
+     *
+     * @param mensaje el mensaje recibido.
+     * @param huellas el array con las huellas LRU de los clientes.
+     * @param inicio la posición de las HUELLAS_POR_CLIENTE huellas del
+     * cliente en el array. Sólo las debe usar el hilo que procesa los
+     * mensajes de ese cliente.
+     * @return true si el mensaje se debe rechazar por repetido.
+     */
+    public boolean esRepetido(String mensaje, long[] huellas, int inicio) {
+        long huella = FNV_BASE;
+        int longitud = 0;
+        for (int i = 0; i < mensaje.length(); i++) {
+            char caracter = mensaje.charAt(i);
+            if (Character.isLetterOrDigit(caracter)) {
+                huella = (huella ^ Character.toLowerCase(caracter)) * FNV_PRIMO;
+                longitud++;
+            }
+        }
+        if (longitud < longitudMinima) {
+            return false;
+        }
+        if (huella == 0) {
+            huella = 1; // El 0 marca los huecos vacíos del array LRU
+        }
+        boolean repetidoCliente = registrarEnCliente(huella, huellas, inicio);
+        boolean repetidoGlobal = registrarGlobal(huella) > umbralGlobal;
+        return repetidoCliente || repetidoGlobal;
+    }
+
+    /**
+     * Busca la huella en el LRU del cliente y la deja en la primera posición,
+     * desplazando las más antiguas.
+     *
+     * @return true si la huella ya estaba.
+     */
+    private boolean registrarEnCliente(long huella, long[] huellas, int inicio) {
+        int posicion = inicio;
+        int ultima = inicio + HUELLAS_POR_CLIENTE - 1;
+        while (posicion < ultima && huellas[posicion] != huella) {
+            posicion++;
+        }
+        boolean encontrada = huellas[posicion] == huella;
+        System.arraycopy(huellas, inicio, huellas, inicio + 1, posicion - inicio);
+        huellas[inicio] = huella;
+        return encontrada;
+    }
+
+    /**
+     * Suma la huella al count-min sketch y devuelve la estimación de veces
+     * que se ha visto en el periodo.
+     */
+    private int registrarGlobal(long huella) {
+        int minimo = Integer.MAX_VALUE;
+        for (int fila = 0; fila < FILAS; fila++) {
+            long mezcla = (huella ^ SEMILLAS[fila]) * 0xff51afd7ed558ccdL;
+            int columna = (int) ((mezcla >>> 32) & (COLUMNAS - 1));
+            minimo = Math.min(minimo, sketch.incrementAndGet(fila * COLUMNAS + columna));
+        }
+        if (mensajesVistos.incrementAndGet() % mensajesPorPeriodo == 0) {
+            envejecer();
+        }
+        return minimo;
+    }
+
+    /**
+     * Divide a la mitad todos los contadores, para que los mensajes antiguos
+     * dejen de contar.
+     */
+    private void envejecer() {
+        for (int i = 0; i < sketch.length(); i++) {
+            sketch.updateAndGet(i, valor -> valor >> 1);
+        }
+    }
+}
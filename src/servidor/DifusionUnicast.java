@@ -0,0 +1,343 @@
+package servidor;
+
+import comun.CanalTramas;
+import comun.Codec;
+import comun.CodecBinario;
+import comun.TipoTrama;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Esta clase se encarga de enviar el chat por TCP a los clientes cuya red no
+ * permite recibir multicast. Cada mensaje difundido se codifica una única vez
+ * como trama DIFUSION en un buffer compartido, que se encola a todos los
+ * suscriptores y se devuelve al pool cuando el último de ellos lo ha escrito.
+ * La escritura en los sockets se reparte entre un grupo de hilos de E/S, uno
+ * por núcleo, procesando la cola de cada suscriptor en orden y de forma
+ * secuencial, pero la de suscriptores distintos en paralelo.
+ * Cada cliente con acceso al chat tiene su cola de salida (Suscriptor),
+ * aunque reciba el chat por multicast: por ella se le envían también los
+ * avisos privados y el fin de sesión, de forma que los hilos de la moderación
+ * nunca esperan a que un cliente lento lea del socket.
+ *
+ * @author Ivan Martin
+ */
+public class DifusionUnicast {
+
+    private static final int MAXIMO_PENDIENTES = 1024;
+    private static final int TAMANO_BUFFER = 1024;
+    private static final int BUFFERS_EN_POOL = 256;
+
+    private final List<Suscriptor> suscriptores;
+    private final ExecutorService hilosEscritura;
+    private final ArrayDeque<byte[]> pool;
+    private final Codec codec;
+
+    public DifusionUnicast() {
+        this.suscriptores = new CopyOnWriteArrayList<>();
+        this.hilosEscritura = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), tarea -> {
+            Thread hilo = new Thread(tarea, "difusion-unicast");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        this.pool = new ArrayDeque<>();
+        this.codec = new CodecBinario();
+    }
+
+    /**
+     * Crea la cola de salida de un cliente.
+     *
+     * @param canal el canal del cliente, que sincroniza las escrituras con
+     * las del propio hilo del cliente.
+     * @param conexion el socket del cliente, que se cierra si no consume los
+     * mensajes a tiempo.
+     * @return la cola, para suscribirla a la difusión o enviarle avisos.
+     */
+    public Suscriptor abrirSalida(CanalTramas canal, Closeable conexion) {
+        return new Suscriptor(canal, conexion);
+    }
+
+    /**
+     * Añade un cliente a la difusión por TCP.
+     */
+    public void suscribir(Suscriptor suscriptor) {
+        suscriptores.add(suscriptor);
+    }
+
+    /**
+     * Da de baja a un cliente de la difusión. Lo que ya tenía encolado se
+     * sigue escribiendo (el fin de sesión, por ejemplo), y se descarta si la
+     * conexión está cerrada.
+     */
+    public void desuscribir(Suscriptor suscriptor) {
+        if (suscriptor != null) {
+            suscriptores.remove(suscriptor);
+        }
+    }
+
+    public int getSuscriptores() {
+        return suscriptores.size();
+    }
+
+    /**
+     * @return el total de mensajes pendientes de escribir en las colas de
+     * los suscriptores.
+     */
+    public int getPendientes() {
+        int pendientes = 0;
+        for (Suscriptor suscriptor : suscriptores) {
+            pendientes += suscriptor.numeroPendientes.get();
+        }
+        return pendientes;
+    }
+
+    /**
+     * Método que codifica un mensaje difundido y lo encola a todos los
+     * suscriptores. Se llama en el orden de secuencia de los mensajes.
+     *
+     * @param secuencia el número de secuencia del mensaje.
+     * @param mensaje el texto del mensaje.
+     */
+    public synchronized void publicar(long secuencia, String mensaje) {
+        /* Las referencias se cuentan sobre una única copia de la lista, ya
+        que un suscriptor que se añada durante la publicación recibiría el
+        mensaje sin haberse contado, y el buffer volvería antes de tiempo al
+        pool mientras sigue encolado. */
+        Object[] destinos = suscriptores.toArray();
+        if (destinos.length == 0) {
+            return;
+        }
+        ByteBuffer trama = ByteBuffer.wrap(obtenerBuffer(Codec.CABECERA + Long.BYTES + Codec.longitudMaximaTexto(mensaje)));
+        int inicio = codec.iniciar(trama, TipoTrama.DIFUSION);
+        codec.ponerLargo(trama, secuencia);
+        codec.ponerTexto(trama, mensaje);
+        codec.terminar(trama, inicio);
+        MensajeCompartido compartido = new MensajeCompartido(trama.array(), trama.position(), destinos.length);
+
+        for (Object destino : destinos) {
+            ((Suscriptor) destino).encolar(compartido);
+        }
+    }
+
+    private byte[] obtenerBuffer(int longitud) {
+        if (longitud > TAMANO_BUFFER) {
+            return new byte[longitud];
+        }
+        synchronized (pool) {
+            byte[] buffer = pool.poll();
+            return buffer != null ? buffer : new byte[TAMANO_BUFFER];
+        }
+    }
+
+    private void devolverBuffer(byte[] buffer) {
+        if (buffer.length != TAMANO_BUFFER) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() < BUFFERS_EN_POOL) {
+                pool.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * Codifica una trama para un único cliente.
+     */
+    private MensajeCompartido codificarPrivado(TipoTrama tipo, String texto) {
+        int longitud = Codec.CABECERA + (texto == null ? 0 : Codec.longitudMaximaTexto(texto));
+        ByteBuffer trama = ByteBuffer.wrap(obtenerBuffer(longitud));
+        int inicio = codec.iniciar(trama, tipo);
+        if (texto != null) {
+            codec.ponerTexto(trama, texto);
+        }
+        codec.terminar(trama, inicio);
+        return new MensajeCompartido(trama.array(), trama.position(), 1);
+    }
+
+    /**
+     * Mensaje ya codificado que comparten todos los suscriptores. El buffer
+     * vuelve al pool cuando todos han liberado su referencia. Un mensaje sin
+     * datos indica que se cierre la conexión.
+     */
+    private class MensajeCompartido {
+
+        private final byte[] datos;
+        private final int longitud;
+        private final AtomicInteger referencias;
+
+        private MensajeCompartido(byte[] datos, int longitud, int referencias) {
+            this.datos = datos;
+            this.longitud = longitud;
+            this.referencias = new AtomicInteger(referencias);
+        }
+
+        private void liberar() {
+            if (referencias.decrementAndGet() == 0 && datos != null) {
+                devolverBuffer(datos);
+            }
+        }
+    }
+
+    /**
+     * Cola de salida de un cliente, con los mensajes pendientes de escribir:
+     * los de la difusión por TCP si está suscrito, y sus avisos privados.
+     */
+    public class Suscriptor implements Runnable {
+
+        private final CanalTramas canal;
+        private final Closeable conexion;
+        private final ConcurrentLinkedQueue<MensajeCompartido> pendientes;
+        private final AtomicInteger numeroPendientes;
+        private final AtomicBoolean programado;
+        private final CountDownLatch cerrada;
+        private volatile boolean finEncolado;
+
+        private Suscriptor(CanalTramas canal, Closeable conexion) {
+            this.canal = canal;
+            this.conexion = conexion;
+            this.pendientes = new ConcurrentLinkedQueue<>();
+            this.numeroPendientes = new AtomicInteger();
+            this.programado = new AtomicBoolean();
+            this.cerrada = new CountDownLatch(1);
+        }
+
+        /**
+         * Encola un aviso para este cliente. No espera a que se escriba.
+         *
+         * @param mensaje el texto del aviso.
+         */
+        public void encolarAviso(String mensaje) {
+            encolar(codificarPrivado(TipoTrama.AVISO, mensaje));
+        }
+
+        /**
+         * Encola el aviso de apagado del servidor. No espera a que se
+         * escriba, de forma que un cliente lento no retrasa el apagado.
+         *
+         * @param motivo el mensaje que se muestra al usuario.
+         * @param esperaReconexion milisegundos que el cliente debe esperar
+         * antes de reconectarse.
+         */
+        public void encolarApagado(String motivo, long esperaReconexion) {
+            ByteBuffer trama = ByteBuffer.wrap(obtenerBuffer(Codec.CABECERA + Codec.longitudMaximaTexto(motivo) + Long.BYTES));
+            int inicio = codec.iniciar(trama, TipoTrama.APAGADO);
+            codec.ponerTexto(trama, motivo);
+            codec.ponerLargo(trama, esperaReconexion);
+            codec.terminar(trama, inicio);
+            encolar(new MensajeCompartido(trama.array(), trama.position(), 1));
+        }
+
+        /**
+         * Encola la orden de fin de sesión, para que el cliente no intente
+         * reconectarse, y el cierre de la conexión una vez escrito todo lo
+         * pendiente.
+         */
+        public void encolarFin() {
+            finEncolado = true;
+            encolar(codificarPrivado(TipoTrama.TERMINAR_SESION, null));
+            encolar(new MensajeCompartido(null, 0, 1));
+        }
+
+        /**
+         * @return true si se ha encolado el fin de sesión, de forma que es
+         * esta cola la que cierra la conexión.
+         */
+        public boolean finEncolado() {
+            return finEncolado;
+        }
+
+        /**
+         * Espera a que esta cola cierre la conexión, tras escribir el fin de
+         * sesión o al fallar la escritura. Lo usa el hilo del cliente para no
+         * cerrar el socket antes de que el cliente reciba el fin de sesión.
+         *
+         * @param milisegundos tiempo máximo de espera.
+         * @return true si la conexión se ha cerrado.
+         */
+        public boolean esperarCierre(long milisegundos) {
+            try {
+                return cerrada.await(milisegundos, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private void encolar(MensajeCompartido mensaje) {
+            if (numeroPendientes.incrementAndGet() > MAXIMO_PENDIENTES) {
+                // El cliente no consume los mensajes a tiempo, se le desconecta
+                mensaje.liberar();
+                desuscribir(this);
+                cerrarConexion();
+                descartarPendientes();
+                return;
+            }
+            pendientes.add(mensaje);
+            if (programado.compareAndSet(false, true)) {
+                hilosEscritura.execute(this);
+            }
+        }
+
+        /**
+         * Escribe los mensajes pendientes en el socket del cliente. Sólo un
+         * hilo a la vez procesa la cola de cada suscriptor.
+         */
+        @Override
+        public void run() {
+            try {
+                MensajeCompartido mensaje;
+                while ((mensaje = pendientes.poll()) != null) {
+                    numeroPendientes.decrementAndGet();
+                    if (mensaje.datos == null) {
+                        canal.vaciar();
+                        throw new IOException("Fin de sesión");
+                    }
+                    try {
+                        canal.enviarCodificado(mensaje.datos, mensaje.longitud);
+                    } finally {
+                        mensaje.liberar();
+                    }
+                }
+                canal.vaciar();
+            } catch (IOException ex) {
+                desuscribir(this);
+                cerrarConexion();
+                descartarPendientes();
+            } finally {
+                programado.set(false);
+            }
+            if (!pendientes.isEmpty() && programado.compareAndSet(false, true)) {
+                hilosEscritura.execute(this);
+            }
+        }
+
+        private void descartarPendientes() {
+            MensajeCompartido mensaje;
+            while ((mensaje = pendientes.poll()) != null) {
+                numeroPendientes.decrementAndGet();
+                mensaje.liberar();
+            }
+        }
+
+        private void cerrarConexion() {
+            try {
+                conexion.close();
+            } catch (IOException ex) {
+
+            } finally {
+                cerrada.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package servidor;
+
+import comun.CodecMulticast;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Este hilo envía por multicast los mensajes ya secuenciados por el Servidor.
+ * En lugar de un datagrama por mensaje, agrupa en un mismo datagrama todos los
+ * mensajes que se hayan acumulado en la cola mientras enviaba el anterior (y,
+ * si se configura, los que lleguen durante una pequeña espera), hasta un
+ * tamaño máximo. Con poco tráfico cada mensaje sale solo y sin retraso, y en
+ * las salas con mucho tráfico se envían muchos menos paquetes por segundo.
+ * Si todos los clientes lo admiten, los lotes que superan un umbral se
+ * comprimen (ver CodecMulticast), lo que permite lotes mayores en el mismo
+ * número de bytes.
+ *
+ * @author Ivan Martin
+ */
+public class EmisorMulticast extends Thread {
+
+    private final MulticastSocket socket;
+    private final DatagramPacket paquete;
+    private final BlockingQueue<Pendiente> cola;
+    private final CodecMulticast codec;
+    private final BooleanSupplier compresionPermitida;
+    private final int tamanoLote;
+    private final int tamanoLoteComprimido;
+    private final int umbralCompresion;
+    private final long esperaLoteNs;
+    private final AtomicInteger pendientes;
+    private final AtomicLong mensajes;
+    private final AtomicLong datagramas;
+    private final AtomicLong bytesOriginales;
+    private final AtomicLong bytesEnviados;
+    private Pendiente arrastrado;
+
+    /**
+     * @param socket el socket multicast.
+     * @param grupo el grupo y puerto de destino.
+     * @param compresionPermitida indica en cada lote si todos los clientes
+     * admiten compresión.
+     * @param tamanoLote bytes máximos de un lote sin compresión.
+     * @param tamanoLoteComprimido bytes máximos (sin comprimir) de un lote
+     * cuando se permite la compresión.
+     * @param umbralCompresion bytes a partir de los cuales se comprime un lote.
+     * @param esperaLoteMs milisegundos que se espera a más mensajes antes de
+     * enviar un lote (0 para enviar sólo lo que ya está en cola).
+     */
+    public EmisorMulticast(MulticastSocket socket, InetSocketAddress grupo, BooleanSupplier compresionPermitida,
+            int tamanoLote, int tamanoLoteComprimido, int umbralCompresion, long esperaLoteMs) {
+        super("emisor-multicast");
+        setDaemon(true);
+        this.socket = socket;
+        this.paquete = new DatagramPacket(new byte[0], 0, grupo);
+        this.cola = new LinkedBlockingQueue<>();
+        this.codec = new CodecMulticast();
+        this.compresionPermitida = compresionPermitida;
+        this.tamanoLote = tamanoLote;
+        this.tamanoLoteComprimido = tamanoLoteComprimido;
+        this.umbralCompresion = umbralCompresion;
+        this.esperaLoteNs = TimeUnit.MILLISECONDS.toNanos(esperaLoteMs);
+        this.pendientes = new AtomicInteger();
+        this.mensajes = new AtomicLong();
+        this.datagramas = new AtomicLong();
+        this.bytesOriginales = new AtomicLong();
+        this.bytesEnviados = new AtomicLong();
+    }
+
+    /**
+     * Encola un mensaje para enviarlo. Se debe llamar en orden de secuencia.
+     *
+     * @param secuencia el número de secuencia del mensaje.
+     * @param mensaje el texto del mensaje.
+     */
+    public void encolar(long secuencia, String mensaje) {
+        pendientes.incrementAndGet();
+        cola.add(new Pendiente(secuencia, mensaje));
+    }
+
+    /**
+     * @return los mensajes encolados que aún no se han enviado, incluidos los
+     * del lote que se está enviando.
+     */
+    public int getPendientes() {
+        return pendientes.get();
+    }
+
+    /**
+     * @return un resumen de los mensajes y datagramas enviados, para el log.
+     */
+    public String resumenMetricas() {
+        long enviados = datagramas.get();
+        long originales = bytesOriginales.get();
+        return "Multicast: " + mensajes.get() + " mensajes en " + enviados + " datagramas, "
+                + bytesEnviados.get() + " bytes enviados de " + originales + " sin comprimir.";
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                Pendiente primero = arrastrado != null ? arrastrado : cola.take();
+                arrastrado = null;
+                boolean comprimir = compresionPermitida.getAsBoolean();
+                int maximo = comprimir ? tamanoLoteComprimido : tamanoLote;
+
+                codec.iniciarLote();
+                if (!codec.anadir(primero.secuencia, primero.mensaje, maximo)) {
+                    pendientes.decrementAndGet();
+                    Servidor.escribirLog("Error. El mensaje " + primero.secuencia + " es demasiado largo para enviarlo por multicast.");
+                    continue;
+                }
+                llenarLote(maximo);
+                enviarLote(comprimir);
+            }
+        } catch (InterruptedException ex) {
+            // Fin del servidor
+        } finally {
+            codec.cerrar();
+        }
+    }
+
+    /**
+     * Añade al lote los mensajes de la cola hasta llenarlo, esperando como
+     * mucho esperaLoteNs. El mensaje que no cabe queda para el lote siguiente.
+     */
+    private void llenarLote(int maximo) throws InterruptedException {
+        long limite = System.nanoTime() + esperaLoteNs;
+        while (true) {
+            long espera = limite - System.nanoTime();
+            Pendiente siguiente = espera > 0 ? cola.poll(espera, TimeUnit.NANOSECONDS) : cola.poll();
+            if (siguiente == null) {
+                return;
+            }
+            if (!codec.anadir(siguiente.secuencia, siguiente.mensaje, maximo)) {
+                arrastrado = siguiente;
+                return;
+            }
+        }
+    }
+
+    private void enviarLote(boolean comprimir) {
+        int longitud = codec.cerrarLote(comprimir, umbralCompresion);
+        paquete.setData(codec.getDatagrama(), 0, longitud);
+        try {
+            socket.send(paquete);
+            mensajes.addAndGet(codec.getMensajesLote());
+            datagramas.incrementAndGet();
+            bytesOriginales.addAndGet(codec.getTamanoLote());
+            bytesEnviados.addAndGet(longitud);
+        } catch (IOException ex) {
+            Servidor.escribirLog("Error. El mensaje no se pudo enviar a los clientes.");
+        } finally {
+            pendientes.addAndGet(-codec.getMensajesLote());
+        }
+    }
+
+    private static class Pendiente {
+
+        private final long secuencia;
+        private final String mensaje;
+
+        private Pendiente(long secuencia, String mensaje) {
+            this.secuencia = secuencia;
+            this.mensaje = mensaje;
+        }
+    }
+}
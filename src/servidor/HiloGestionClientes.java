@@ -1,9 +1,14 @@
 package servidor;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import comun.CanalTramas;
+import comun.TipoTrama;
+import comun.Trama;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JTextArea;
 
 /**
@@ -11,22 +16,44 @@ import javax.swing.JTextArea;
  * con el cliente una vez establecida la conexión entre ambos (la conexión se
  * realiza en la clase Servidor y se delega el resto de la comunicación a este
  * hilo). El flujo del hilo consta del control de acceso mediante la recepción
- * del nick proveniente del cliente, seguido de la escucha y procesado de los
- * mensajes que envía el cliente. En función del mensaje y del procesado, se
- * envían mensajes por TCP al cliente o por multicast a todo el grupo de
- * clientes.
+ * del nick proveniente del cliente, seguido de la escucha de los mensajes que
+ * envía el cliente, cuyo procesado se delega en el PipelineModeracion. En
+ * función del mensaje y del procesado, se envían mensajes por TCP al cliente o
+ * por multicast a todo el grupo de clientes.
+ * El estado de moderación de la sesión (nick, advertencias, bloqueo, límite de
+ * mensajes y huellas recientes) no se guarda en este hilo sino en la
+ * TablaSesiones del servidor, con el identificador de sesión asignado al
+ * darle acceso.
  *
  * @author Ivan Martin
  */
 public class HiloGestionClientes extends Thread {
 
-    private String nick;
-    private int contadorAdvertencias;
-    private boolean bloqueado;
+    // Tiempo máximo que un cliente puede ocupar un hueco de acceso sin elegir nick
+    private static final int TIEMPO_MAXIMO_ACCESO_MS = 120000;
+    // Tiempo máximo que se espera a que se escriba el fin de sesión antes de cerrar el socket
+    private static final long TIEMPO_MAXIMO_CIERRE_MS = 5000;
+
+    // Versión del protocolo y capacidades que el cliente puede anunciar en la trama HOLA
+    private static final int VERSION_PROTOCOLO = 3;
+    private static final int CAPACIDAD_MULTICAST = 1;
+    private static final int CAPACIDAD_COMPRESION = 2;
+    private static final int MAXIMO_CANDIDATOS = 8;
+    static final int LONGITUD_MAXIMA_NICK = 20;
+    private static final int SUGERENCIAS = 3;
+
+    private volatile int sesion;
+    private boolean accesoPendiente;
+    private volatile boolean sustituido;
+    private final AtomicBoolean desconectado;
+    private String token;
     private Socket socketCliente;
     private JTextArea txtAreaLog;
-    private DataInputStream entrada;
-    private DataOutputStream salida;
+    private CanalTramas canal;
+    // Cola de salida por la que se escribe al cliente desde otros hilos
+    private volatile DifusionUnicast.Suscriptor salida;
+    // Traza donde se graban los eventos de este cliente, o null si no se graba
+    private final TrazaEventos traza;
 
     /**
      * En el constructor de esta clase se recibe el Socket de conexión con el
@@ -35,123 +62,513 @@ public class HiloGestionClientes extends Thread {
      * @param socketCliente
      */
     public HiloGestionClientes(Socket socketCliente) {
-        this.nick = "";
-        this.contadorAdvertencias = 0;
-        this.bloqueado = false;
+        this.sesion = -1;
+        this.accesoPendiente = true;
+        this.desconectado = new AtomicBoolean();
         this.socketCliente = socketCliente;
         this.txtAreaLog = txtAreaLog;
+        this.traza = Servidor.getTraza();
     }
 
     public String getNick() {
-        return nick;
+        int id = sesion;
+        return id < 0 ? "" : Servidor.getSesiones().getNick(id);
     }
 
     public boolean getBloqueado() {
-        return bloqueado;
+        int id = sesion;
+        return id >= 0 && Servidor.getSesiones().tieneMarca(id, TablaSesiones.BLOQUEADA);
+    }
+
+    public int getSesion() {
+        return sesion;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Método que se ejecuta cuando el mismo cliente ha reanudado su sesión
+     * desde una conexión nueva antes de que este hilo detectase la caída de
+     * la anterior. Se cierra el socket para que el hilo termine sin notificar
+     * la desconexión ni liberar el nick, que ya pertenece a la nueva conexión.
+     */
+    public void sustituir() {
+        sustituido = true;
+        int id = sesion;
+        if (id >= 0) {
+            Servidor.getSesiones().quitarMarca(id, TablaSesiones.ACTIVA);
+        }
+        cerrarSocket();
     }
 
     /**
      * Método que ejecuta cuando se ha realizado la desconexión, bien por
      * petición del cliente o por un cierre del socket (una excepción o
      * finalizar el proceso cliente sin solicitar la desconexión al servidor).
+     * Si la conexión se ha perdido sin que el cliente lo pidiese, su nick
+     * queda reservado durante un tiempo para que pueda reanudar la sesión.
+     *
+     * Sólo tiene efecto la primera vez que se llama.
+     *
+     * @param perdida true si la conexión se ha perdido, false si el cliente ha
+     * solicitado la desconexión o ha sido expulsado.
      */
-    private void desconectar() {
-        // Si el cliente tenía acceso al chat, se notifica a los demás clientes
-        if (!nick.equals("")) {
-            Servidor.enviarMensajePorMulticast(">> " + nick + " ha abandonado el chat.");
+    private void desconectar(boolean perdida) {
+        if (!desconectado.compareAndSet(false, true)) {
+            return;
+        }
+        String nick = getNick();
+        boolean bloqueado = getBloqueado();
+        Servidor.getDifusionUnicast().desuscribir(salida);
+        if (sesion >= 0) {
+            TablaSesiones sesiones = Servidor.getSesiones();
+            sesiones.quitarMarca(sesion, TablaSesiones.ACTIVA);
+            if (sesiones.quitarMarca(sesion, TablaSesiones.SIN_COMPRESION)) {
+                Servidor.registrarClienteSinCompresion(false);
+            }
         }
 
-        // Si no hay orden de bloquearlo, se elimina de la lista para liberar su nick
-        if (!bloqueado) {
-            Servidor.eliminarCliente(this);
+        if (sustituido) {
+            Servidor.escribirLog("La conexión del cliente " + nick + " ha sido sustituida por una reconexión.");
+            return;
         }
 
-        MainServidor.actualizarListaClientes();
+        /* Si el cliente tenía acceso al chat, se notifica a los demás clientes,
+        salvo durante el apagado del servidor, en el que todos se desconectan
+        para reanudar su sesión al volver a arrancar. */
+        if (!nick.equals("") && perdida && !bloqueado) {
+            Servidor.suspenderSesion(token, nick);
+            if (!Servidor.enApagado()) {
+                Servidor.enviarMensajePorMulticast(">> " + nick + " ha perdido la conexión.");
+            }
+        } else if (!nick.equals("")) {
+            Servidor.enviarMensajePorMulticast(">> " + nick + " ha abandonado el chat.");
+        }
+
+        /* Se elimina de la lista para liberar su nick y el hilo, también si ha
+        sido bloqueado, ya que su nick queda en la lista de bloqueados. */
+        Servidor.eliminarCliente(this);
         Servidor.escribirLog("Un cliente se ha desconectado. (Nick:\"" + nick + "\")");
     }
 
     @Override
     public void run() {
         try {
-            entrada = new DataInputStream(socketCliente.getInputStream());
-            salida = new DataOutputStream(socketCliente.getOutputStream());
+            canal = new CanalTramas(socketCliente);
+            socketCliente.setSoTimeout(TIEMPO_MAXIMO_ACCESO_MS);
+            if (traza != null) {
+                traza.registrarConexion(getId());
+            }
 
             // Cliente conectado, se envían las instrucciones para que introduzca un nick
-            salida.writeUTF("Bienvenido al chat. Introduce tu nick.");
+            canal.enviar(TipoTrama.AVISO, "Bienvenido al chat. Introduce tu nick.");
             Servidor.escribirLog("Un cliente nuevo se ha conectado. Esperando a que introduzca un nick.");
 
-            /* El hilo se mantiene a la espera de recibir un nick válido por 
-            parte del cliente, enviando false en caso contrario. El flujo sólo 
-            continuará cuando el nick sea válido.
-             */
-            String nickSolicitado = entrada.readUTF();
-            while (!Servidor.nickDisponible(nickSolicitado)) {
-                salida.writeBoolean(false);
-                Servidor.escribirLog("Un cliente ha elegido un nick no disponible. Enviando 'false' para que escoja otro.");
-                nickSolicitado = entrada.readUTF();
+            /* El hilo se mantiene a la espera de recibir una solicitud de
+            acceso válida por parte del cliente, respondiendo con el rechazo y
+            nicks alternativos en caso contrario. El flujo sólo continuará
+            cuando se haya asignado un nick. */
+            if (!atenderAcceso()) {
+                return;
             }
 
-            this.nick = nickSolicitado;
-            salida.writeBoolean(true); // Nick válido, se permite el acceso
-            MainServidor.actualizarListaClientes();
-            Servidor.escribirLog("El nick " + nick + " ha sido asignado a un cliente. Enviando 'true' para darle acceso al chat.");
-
-            /* Se notifica a todos los clientes conectados por multicast, la 
-            conexión de un nuevo cliente*/
-            Servidor.enviarMensajePorMulticast(">> " + nick + " se ha unido al chat.");
-
             /* A partir de ahora el hilo se mantiene a la escucha de nuevos
-            mensajes por parte del cliente. Para cada mensaje se comprueba si
-            el usuario solicita desconexión (en cuyo caso se envía el mensaje
-            de desconexión) o se procesa el mensaje y se actúa en consecuencia.
+            mensajes por parte del cliente. Si el usuario solicita desconexión
+            se le envía el mensaje de desconexión, y si no, el mensaje se entrega
+            al PipelineModeracion, que lo procesa en procesarMensaje() desde
+            otro hilo manteniendo el orden de los mensajes de este cliente.
              */
-            String mensaje;
+            boolean salir = false;
             do {
-                mensaje = entrada.readUTF(); // Se recibe el mensaje del cliente
-                if (mensaje.equals("!salir")) { // Si el cliente solicita la desconexión
-                    salida.writeUTF("!TERMINAR_SESION"); // Se envía la orden de desconexión al cliente.
-                    desconectar();
-                    continue;
+                Trama trama = canal.leer(); // Se recibe la trama del cliente
+                switch (trama.getTipo()) {
+                    case MENSAJE:
+                        String mensaje = trama.leerTexto();
+                        if (traza != null) {
+                            traza.registrarMensaje(getId(), mensaje);
+                        }
+                        Servidor.getPipeline().moderar(this, mensaje);
+                        break;
+                    case SALIR: // El cliente solicita la desconexión
+                        if (traza != null) {
+                            traza.registrarSalida(getId());
+                        }
+                        Servidor.getPipeline().ejecutarEnOrden(this, this::terminarSesion);
+                        salir = true;
+                        break;
+                    default:
+                        throw new ProtocolException("Trama inesperada: " + trama.getTipo());
                 }
-                // Si no era el mensaje de desconexión, se procesa:
-                if (!Servidor.mensajeAdecuado(mensaje)) { // Si el mensaje no es adecuado (tiene palabras prohibidas)
-                    // Se notifica por TCP sólamente a este cliente
-                    salida.writeUTF(">> Tu mensaje contiene palabras prohibidas. Por favor, sigue las normas de los mensajes.");
-                    Servidor.escribirLog("El cliente " + nick + " ha escrito un mensaje inapropiado. No se enviará por multicast.");
-                    contadorAdvertencias++; // Y se aumenta el número de advertencias
-                } else { // Si el mensaje era adecuado
-                    // Se envía a todos los clientes por multicast
-                    Servidor.enviarMensajePorMulticast(nick + ": " + mensaje);
-                    Servidor.escribirLog("El cliente " + nick + " ha sido escrito un mensaje válido. Se ha enviado por multicast a todos los clientes.");
-                }
-            } while (!mensaje.equals("!salir") && contadorAdvertencias < 3);
-
-            if (contadorAdvertencias >= 3) { // Si se llega a 3 advertencias
-                bloqueado = true; // Se bloquea al usuario, y se le comunica por TCP
-                salida.writeUTF(">> Tu acceso al chat ha sido bloqueado por inclumplir las normas 3 veces");
-                Servidor.escribirLog("El cliente " + nick + " ha sido expulsado y bloqueado por inclumplir las normas");
-                // Se informa a todos los clientes de la expulsión
-                Servidor.enviarMensajePorMulticast(">> El cliente " + nick + " ha sido expulsado y bloqueado por inclumplir las normas");
-                desconectar(); // Y se le desconecta
-            }
-        } catch (IOException ex) { // Si el cliente pierde la conexión o cierra la ventana
-            desconectar();
+            } while (!salir && !getBloqueado());
+        } catch (IOException | RuntimeException ex) { // Si el cliente pierde la conexión o cierra la ventana
+            if (ex instanceof RuntimeException) {
+                // Un fallo inesperado con este cliente no debe dejar su sesión abierta
+                Servidor.escribirLog("Error inesperado con el cliente " + getNick() + ": " + ex);
+            }
+            if (traza != null) {
+                traza.registrarDesconexion(getId());
+            }
+            try {
+                Servidor.getPipeline().ejecutarEnOrden(this, () -> desconectar(true));
+            } catch (InterruptedException ie) {
+                desconectar(true);
+            }
+        } catch (InterruptedException ex) {
+            desconectar(true);
         } finally {
             cerrarRecursos(); // Se liberan los recursos
         }
     }
 
+    /**
+     * Método que procesa un mensaje del cliente, ejecutado por el
+     * PipelineModeracion. Si el cliente supera su límite de mensajes, o el
+     * mensaje es repetido, se descarta avisando al cliente. Si contiene
+     * palabras prohibidas se advierte al cliente, y a la tercera advertencia
+     * se le bloquea. Si no, se envía a todos los clientes por multicast.
+     * Los avisos se encolan en la salida del cliente, de forma que un cliente
+     * que no lee del socket no detiene la partición de la moderación.
+     *
+     * @param mensaje el mensaje recibido del cliente.
+     */
+    void procesarMensaje(String mensaje) {
+        if (getBloqueado() || desconectado.get()) {
+            return;
+        }
+        TablaSesiones sesiones = Servidor.getSesiones();
+        String nick = getNick();
+        if (!sesiones.consumir(sesion, System.currentTimeMillis())) {
+            enviar(">> Estás enviando mensajes demasiado rápido. Tu mensaje no se ha enviado.");
+        } else if (Servidor.getDetectorSpam().esRepetido(mensaje, sesiones.getHuellas(), sesiones.inicioHuellas(sesion))) {
+            enviar(">> Tu mensaje es repetido y no se ha enviado. Por favor, no inundes el chat.");
+            Servidor.escribirLog("El cliente " + nick + " ha enviado un mensaje repetido. No se enviará por multicast.");
+        } else if (!Servidor.mensajeAdecuado(mensaje)) { // Si el mensaje no es adecuado (tiene palabras prohibidas)
+            // Se notifica por TCP sólamente a este cliente
+            enviar(">> Tu mensaje contiene palabras prohibidas. Por favor, sigue las normas de los mensajes.");
+            Servidor.escribirLog("El cliente " + nick + " ha escrito un mensaje inapropiado. No se enviará por multicast.");
+            // Se aumenta el número de advertencias, y si se llega a 3 se le bloquea
+            if (sesiones.advertir(sesion) >= 3) {
+                bloquear();
+            }
+        } else { // Si el mensaje era adecuado
+            // Se envía a todos los clientes por multicast
+            Servidor.enviarMensajePorMulticast(nick + ": " + mensaje);
+            Servidor.escribirLog("El cliente " + nick + " ha sido escrito un mensaje válido. Se ha enviado por multicast a todos los clientes.");
+        }
+    }
+
+    /**
+     * Bloquea al cliente por haber llegado a 3 advertencias.
+     */
+    private void bloquear() {
+        bloquear("por inclumplir las normas 3 veces", "por inclumplir las normas");
+    }
+
+    /**
+     * Bloquea al cliente, se le comunica por TCP y se cierra su conexión una
+     * vez escrito el aviso, lo que termina también el hilo lector. Se debe
+     * ejecutar en la partición del PipelineModeracion del cliente.
+     *
+     * @param motivoCliente el motivo que se muestra al cliente bloqueado.
+     * @param motivo el motivo que se muestra en el log y al resto del chat.
+     */
+    void bloquear(String motivoCliente, String motivo) {
+        if (desconectado.get()) {
+            return;
+        }
+        String nick = getNick();
+        Servidor.getSesiones().ponerMarca(sesion, TablaSesiones.BLOQUEADA); // Se bloquea al usuario, y se le comunica por TCP
+        Servidor.bloquearNick(nick);
+        enviar(">> Tu acceso al chat ha sido bloqueado " + motivoCliente);
+        terminarConexion(); // Para que el cliente no intente reconectarse
+        Servidor.escribirLog("El cliente " + nick + " ha sido expulsado y bloqueado " + motivo);
+        // Se informa a todos los clientes de la expulsión
+        Servidor.enviarMensajePorMulticast(">> El cliente " + nick + " ha sido expulsado y bloqueado " + motivo);
+        desconectar(false); // Y se le desconecta
+    }
+
+    /**
+     * Expulsa al cliente sin bloquear su nick: se le comunica el motivo, se
+     * le pide que no intente reconectarse y se cierra su conexión. Se debe
+     * ejecutar en la partición del PipelineModeracion del cliente.
+     *
+     * @param motivo el mensaje que se muestra al cliente.
+     */
+    void expulsar(String motivo) {
+        if (desconectado.get()) {
+            return;
+        }
+        String nick = getNick();
+        enviar(">> " + motivo);
+        terminarConexion();
+        Servidor.escribirLog("El cliente " + nick + " ha sido expulsado del chat.");
+        desconectar(false);
+    }
+
+    /**
+     * Atiende la petición de desconexión del cliente, una vez procesados los
+     * mensajes que envió antes.
+     */
+    private void terminarSesion() {
+        terminarConexion(); // Se envía la orden de desconexión al cliente.
+        desconectar(false);
+    }
+
+    /**
+     * Método que reserva la sesión del cliente antes de apagar el servidor,
+     * para que se guarde en el estado y la reanude al volver a arrancar.
+     */
+    public void reservarSesionApagado() {
+        String nick = getNick();
+        if (!nick.equals("") && !getBloqueado()) {
+            Servidor.suspenderSesion(token, nick);
+        }
+    }
+
+    /**
+     * Método que avisa al cliente de que el servidor se va a apagar, para que
+     * reanude su sesión tras la espera indicada. El aviso se encola en su
+     * salida, sin esperar a que se escriba. El cliente cierra entonces la
+     * conexión, lo que termina este hilo. Los clientes que aún no tienen
+     * acceso no reciben el aviso: su conexión se cierra al final del apagado.
+     *
+     * @param motivo el mensaje que se muestra al usuario.
+     * @param esperaReconexion milisegundos que el cliente debe esperar antes
+     * de reconectarse.
+     */
+    public void notificarApagado(String motivo, long esperaReconexion) {
+        DifusionUnicast.Suscriptor pendiente = salida;
+        if (pendiente != null) {
+            pendiente.encolarApagado(motivo, esperaReconexion);
+        }
+    }
+
+    /**
+     * Cierra la conexión con el cliente sin avisarle. Se usa al terminar el
+     * plazo de apagado del servidor.
+     */
+    public void cerrarConexion() {
+        cerrarSocket();
+    }
+
+    private void cerrarSocket() {
+        try {
+            socketCliente.close();
+        } catch (IOException ex) {
+
+        }
+    }
+
+    /**
+     * Método que atiende las solicitudes de acceso del cliente hasta asignarle
+     * un nick. Cada solicitud llega en una única trama HOLA con la versión del
+     * protocolo, las capacidades del cliente, el token de una sesión anterior
+     * (vacío si no la hay), la última secuencia recibida y la lista de nicks
+     * candidatos, y se responde con:
+     * - Aceptada: una trama ACEPTADO con el nick asignado y el token de la
+     * sesión, seguida de los mensajes perdidos como tramas DIFUSION si se ha
+     * reanudado una sesión, todo ello en una única escritura.
+     * - Rechazada: una trama RECHAZADO con el motivo y una lista de nicks
+     * alternativos libres.
+     * De esta forma el acceso cuesta un único viaje de ida y vuelta, incluso
+     * al reconectarse.
+     *
+     * @return true si se ha asignado un nick, false si la versión del cliente
+     * no es compatible y se debe cerrar la conexión.
+     * @throws IOException si se pierde la conexión.
+     */
+    private boolean atenderAcceso() throws IOException {
+        while (true) {
+            Trama trama = canal.leer();
+            if (trama.getTipo() != TipoTrama.HOLA) {
+                throw new ProtocolException("Solicitud de acceso no válida");
+            }
+            int version = trama.leerEntero();
+            int capacidades = trama.leerEntero();
+            String tokenAnterior = trama.leerTexto();
+            long ultimaSecuencia = trama.leerLargo();
+            int numeroCandidatos = trama.leerEntero();
+            if (numeroCandidatos < 0 || numeroCandidatos > MAXIMO_CANDIDATOS) {
+                throw new ProtocolException("Solicitud de acceso no válida");
+            }
+            List<String> candidatos = new ArrayList<>(numeroCandidatos);
+            for (int i = 0; i < numeroCandidatos; i++) {
+                candidatos.add(trama.leerTexto().trim());
+            }
+            if (traza != null) {
+                traza.registrarHola(getId(), capacidades, !tokenAnterior.isEmpty(), candidatos);
+            }
+
+            if (version != VERSION_PROTOCOLO) {
+                rechazarAcceso("Versión del cliente no compatible. Actualiza la aplicación.", List.of());
+                Servidor.escribirLog("Un cliente con una versión no compatible (" + version + ") ha intentado acceder.");
+                return false;
+            }
+
+            // Primero se intenta reanudar la sesión anterior y después los candidatos, en orden
+            String asignado = tokenAnterior.isEmpty() ? null : Servidor.reanudarSesion(tokenAnterior);
+            boolean reanudada = asignado != null;
+            for (String candidato : candidatos) {
+                if (asignado != null) {
+                    break;
+                }
+                if (nickValido(candidato) && Servidor.reservarNick(candidato)) {
+                    asignado = candidato;
+                }
+            }
+
+            if (asignado == null) {
+                String base = candidatos.isEmpty() || !nickValido(candidatos.get(0)) ? "invitado" : candidatos.get(0);
+                rechazarAcceso("El nick no está disponible.", Servidor.sugerirNicks(base, SUGERENCIAS));
+                Servidor.escribirLog("Un cliente ha elegido un nick no disponible. Enviando alternativas para que escoja otro.");
+                continue;
+            }
+
+            aceptarAcceso(asignado, reanudada, ultimaSecuencia, capacidades);
+            return true;
+        }
+    }
+
+    /**
+     * @return true si el nick cumple el formato: no vacío, sin empezar por
+     * "!" (reservado a los comandos) y de LONGITUD_MAXIMA_NICK caracteres como
+     * mucho. Lo usa también Servidor.sugerirNicks.
+     */
+    static boolean nickValido(String candidato) {
+        return !candidato.isEmpty() && !candidato.startsWith("!") && candidato.length() <= LONGITUD_MAXIMA_NICK;
+    }
+
+    /**
+     * Asigna el nick y envía la trama de aceptación. Si el cliente no puede
+     * recibir multicast se le suscribe a DifusionUnicast antes de calcular los
+     * mensajes perdidos, reteniendo el canal para que la difusión no se
+     * escriba antes que la aceptación. Si recibe multicast pero no admite
+     * datagramas comprimidos, se deja de comprimir mientras esté conectado.
+     */
+    private void aceptarAcceso(String asignado, boolean reanudada, long ultimaSecuencia,
+            int capacidades) throws IOException {
+        boolean recibeMulticast = (capacidades & CAPACIDAD_MULTICAST) != 0;
+        byte marcas = 0;
+        if (recibeMulticast && (capacidades & CAPACIDAD_COMPRESION) == 0) {
+            marcas = TablaSesiones.SIN_COMPRESION;
+            Servidor.registrarClienteSinCompresion(true);
+        }
+        String nick = asignado;
+        // La salida existe antes que la sesión, por la que la encuentra la administración
+        salida = Servidor.getDifusionUnicast().abrirSalida(canal, socketCliente);
+        this.sesion = Servidor.getSesiones().abrir(nick, marcas, this);
+        this.token = Servidor.generarToken();
+        List<Servidor.EntradaHistorial> perdidos;
+        synchronized (canal) {
+            if (!recibeMulticast) {
+                Servidor.getDifusionUnicast().suscribir(salida);
+            }
+            perdidos = reanudada ? Servidor.historialDesde(ultimaSecuencia) : List.of();
+
+            canal.iniciar(TipoTrama.ACEPTADO); // Nick válido, se permite el acceso
+            canal.ponerTexto(nick);
+            canal.ponerTexto(token);
+            canal.terminar();
+            for (Servidor.EntradaHistorial perdido : perdidos) {
+                canal.iniciar(TipoTrama.DIFUSION);
+                canal.ponerLargo(perdido.getSecuencia());
+                canal.ponerTexto(perdido.getTexto());
+                canal.terminar();
+            }
+            canal.vaciar();
+        }
+
+        socketCliente.setSoTimeout(0);
+        terminarAcceso();
+        MainServidor.actualizarListaClientes();
+        if (!recibeMulticast) {
+            Servidor.escribirLog("El cliente " + nick + " no puede recibir multicast. Se le enviará el chat por TCP.");
+        }
+
+        /* Se notifica a todos los clientes conectados por multicast, la
+        conexión de un nuevo cliente*/
+        if (reanudada) {
+            Servidor.escribirLog("El cliente " + nick + " ha reanudado su sesión. Reenviados " + perdidos.size() + " mensajes perdidos.");
+            Servidor.enviarMensajePorMulticast(">> " + nick + " ha recuperado la conexión.");
+        } else {
+            Servidor.escribirLog("El nick " + nick + " ha sido asignado a un cliente. Enviando 'true' para darle acceso al chat.");
+            Servidor.enviarMensajePorMulticast(">> " + nick + " se ha unido al chat.");
+        }
+    }
+
+    /**
+     * Envía la trama de rechazo de una solicitud de acceso.
+     */
+    private void rechazarAcceso(String motivo, List<String> sugerencias) throws IOException {
+        synchronized (canal) {
+            canal.iniciar(TipoTrama.RECHAZADO);
+            canal.ponerTexto(motivo);
+            canal.ponerEntero(sugerencias.size());
+            for (String sugerencia : sugerencias) {
+                canal.ponerTexto(sugerencia);
+            }
+            canal.terminar();
+            canal.vaciar();
+        }
+    }
+
+    /**
+     * Envía un mensaje por TCP sólo a este cliente. Se encola en su salida,
+     * que escriben los hilos de DifusionUnicast en orden con el resto del
+     * chat, sin esperar a que el cliente lo lea.
+     *
+     * @param mensaje el mensaje a enviar.
+     */
+    private void enviar(String mensaje) {
+        salida.encolarAviso(mensaje);
+    }
+
+    /**
+     * Encola el fin de sesión y el cierre de la conexión, que se hace cuando
+     * se ha escrito todo lo pendiente. Al cerrarse, termina el hilo lector.
+     */
+    private void terminarConexion() {
+        salida.encolarFin();
+    }
+
+    /**
+     * Libera el hueco de acceso pendiente en el control de admisión. Se llama
+     * al asignar el nick o al cerrarse la conexión antes de conseguirlo.
+     */
+    private void terminarAcceso() {
+        if (accesoPendiente) {
+            accesoPendiente = false;
+            Servidor.getAdmision().finAcceso();
+        }
+    }
+
     /**
      * Método para liberar los recursos del socket y los streams.
      */
     private void cerrarRecursos() {
+        String nick = getNick();
+        /* Si se ha pedido la salida o se ha bloqueado al cliente, el fin de
+        sesión está encolado (o a punto de estarlo) en su salida, que cierra
+        la conexión después de escribirlo. Cerrarla antes haría que el
+        cliente lo tomase por una caída e intentase reconectarse. */
+        DifusionUnicast.Suscriptor pendiente = salida;
+        if (pendiente != null && (pendiente.finEncolado() || getBloqueado())) {
+            pendiente.esperarCierre(TIEMPO_MAXIMO_CIERRE_MS);
+        }
+        terminarAcceso();
+        // La sesión se cierra antes de liberar la conexión, para que la tabla nunca supere el máximo de conexiones
+        int id = sesion;
+        if (id >= 0) {
+            sesion = -1;
+            Servidor.getSesiones().cerrar(id);
+        }
+        Servidor.getAdmision().liberarConexion();
         try {
             System.out.println("HiloGestionClientes (" + nick + "): ");
-            if (entrada != null) {
-                entrada.close();
-            }
-            if (salida != null) {
-                salida.close();
+            if (canal != null) {
+                canal.close();
             }
             if (socketCliente != null) {
                 socketCliente.close();
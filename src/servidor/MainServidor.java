@@ -7,24 +7,38 @@ import javax.swing.DefaultListModel;
  * clase Servidor para no bloquear la interfaz gráfica.
  *
  * Esta clase debe tener una única instancia ejecutándose.
+ * El Servidor empieza a aceptar conexiones antes de cargar el aspecto de
+ * Swing y de crear la ventana, que es la parte más lenta del arranque. Con el
+ * argumento --sin-interfaz, o en un entorno sin pantalla, no se crea la
+ * ventana y el log se escribe en la salida estándar. El aspecto se elige con
+ * la clave chat.interfaz.aspecto (Nimbus por defecto).
  *
  * @author Ivan Martin
  */
 public class MainServidor extends javax.swing.JFrame {
 
+    private static final String SIN_INTERFAZ = "--sin-interfaz";
+
     private Servidor socketServidor;
     private static DefaultListModel<String> modeloListaClientes;
 
     /**
      * Creates new form MainServidor
+     *
+     * @param socketServidor el servidor, ya en marcha, que se muestra en la
+     * ventana.
      */
-    public MainServidor() {
+    public MainServidor(Servidor socketServidor) {
         initComponents();
-        socketServidor = new Servidor();
+        this.socketServidor = socketServidor;
+        // El JTextArea del log se creó antes de elegir el aspecto
+        socketServidor.updateUI();
         sPnlContendor.setViewportView(socketServidor);
-        modeloListaClientes = new DefaultListModel<>();
-        jListClientes.setModel(modeloListaClientes);
-        socketServidor.start();
+        synchronized (MainServidor.class) {
+            modeloListaClientes = new DefaultListModel<>();
+        }
+        // Clientes que entraron mientras se creaba la ventana
+        actualizarListaClientes();
     }
 
     /**
@@ -96,25 +110,32 @@ public class MainServidor extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     /**
-     * Ejecuta el método de desconexión del servidor y desactiva el botón.
+     * Desactiva el botón y termina la aplicación. Al terminar se ejecuta el
+     * apagado ordenado del servidor (Servidor.apagar()), registrado al
+     * iniciarlo.
      *
      * @param evt evento de click del botón Desconectar
      */
     private void btnDesconectarActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnDesconectarActionPerformed
-        socketServidor.cerrarRecursos();
+        btnDesconectar.setEnabled(false);
         System.exit(0);
     }//GEN-LAST:event_btnDesconectarActionPerformed
 
     /**
      * Actualiza la lista de clientes conectados al chat en la JList de la
-     * interfaz. Es un método sincronizado ya que son los hilos los que lo
-     * ejecutan al dar acceso al chat a un cliente o desconectarlo.
+     * interfaz, recorriendo la TablaSesiones del servidor. Es un método
+     * sincronizado ya que son los hilos los que lo ejecutan al dar acceso al
+     * chat a un cliente o desconectarlo.
      */
     public static synchronized void actualizarListaClientes() {
+        if (modeloListaClientes == null) { // Servidor sin interfaz, como en la reproducción de trazas
+            return;
+        }
         modeloListaClientes.clear();
-        for (HiloGestionClientes cliente : Servidor.getClientes()) {
-            if (!cliente.getBloqueado()) {
-                modeloListaClientes.addElement(cliente.getNick());
+        TablaSesiones sesiones = Servidor.getSesiones();
+        for (int id = sesiones.siguiente(0); id >= 0; id = sesiones.siguiente(id + 1)) {
+            if (sesiones.tieneMarca(id, TablaSesiones.ACTIVA) && !sesiones.tieneMarca(id, TablaSesiones.BLOQUEADA)) {
+                modeloListaClientes.addElement(sesiones.getNick(id));
             }
         }
         jListClientes.setModel(modeloListaClientes);
@@ -124,6 +145,15 @@ public class MainServidor extends javax.swing.JFrame {
      * @param args the command line arguments
      */
     public static void main(String args[]) {
+        Servidor servidor = new Servidor();
+        if (java.awt.GraphicsEnvironment.isHeadless() || java.util.Arrays.asList(args).contains(SIN_INTERFAZ)) {
+            Servidor.escribirLogEnConsola();
+            servidor.start();
+            return;
+        }
+        servidor.start();
+        String aspecto = Servidor.getConfiguracion().getTexto("chat.interfaz.aspecto", "Nimbus");
+
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -131,7 +161,7 @@ public class MainServidor extends javax.swing.JFrame {
          */
         try {
             for (javax.swing.UIManager.LookAndFeelInfo info : javax.swing.UIManager.getInstalledLookAndFeels()) {
-                if ("Nimbus".equals(info.getName())) {
+                if (info.getName().equalsIgnoreCase(aspecto)) {
                     javax.swing.UIManager.setLookAndFeel(info.getClassName());
                     break;
                 }
@@ -150,7 +180,7 @@ public class MainServidor extends javax.swing.JFrame {
         /* Create and display the form */
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
-                new MainServidor().setVisible(true);
+                new MainServidor(servidor).setVisible(true);
             }
         });
     }
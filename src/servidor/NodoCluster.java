@@ -0,0 +1,804 @@
+package servidor;
+
+import comun.Codec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esta clase permite que varios Servidor (nodos) atiendan el mismo chat. Los
+ * nodos se comunican entre sí por un bus TCP propio, en el que cada nodo
+ * mantiene una conexión saliente hacia cada uno de los demás.
+ *
+ * El reparto de responsabilidades es el siguiente:
+ * - Cada nick tiene un nodo árbitro, fijado por el hash del nick sobre la
+ * lista de nodos configurada. Un nodo sólo puede asignar un nick si su árbitro
+ * se lo concede, por lo que dos nodos nunca asignan el mismo nick. Si el
+ * árbitro no está disponible, el nick se rechaza. Al perder la conexión con un
+ * nodo, su árbitro libera los nicks que le había concedido, y al reconectarse
+ * el nodo los reclama de nuevo: si entretanto se han concedido a otro nodo, el
+ * árbitro se lo comunica (REVOCAR) y el nodo expulsa a su cliente.
+ * - Los bloqueos y su retirada se replican a todos los nodos, y los
+ * bloqueos se reenvían completos cada vez que se establece una conexión con
+ * otro nodo.
+ * - Sólo el nodo emisor envía por multicast. Los demás le reenvían los
+ * mensajes de sus clientes, y el emisor les devuelve cada mensaje con su
+ * número de secuencia para que todos guarden el mismo historial (si un nodo
+ * no tiene conexión con el emisor, se lo retransmiten los demás). Así cada
+ * mensaje se envía una sola vez al grupo, y las secuencias las asigna
+ * siempre un único nodo.
+ * - El emisor se elige sobre la vista de cada nodo: él mismo y los nodos con
+ * los que tiene conexión en ambos sentidos, que cada nodo anuncia a los demás
+ * (VISTA) junto con la última secuencia que conoce. Un nodo sólo emite si es
+ * el de menor identificador de su vista, la vista tiene mayoría (o la mitad
+ * exacta de los nodos, incluido el primero de la lista), y todos los nodos de
+ * su vista lo tienen también como el menor de la suya. Como dos mayorías
+ * siempre comparten algún nodo, nunca hay dos emisores a la vez, aunque las
+ * conexiones fallen en un solo sentido. Al pasar a ser el emisor, el nodo
+ * continúa la secuencia por encima de la mayor anunciada y del instante
+ * actual (Servidor.iniciarEpoca), para que los clientes no descarten sus
+ * mensajes como ya recibidos.
+ * - Con la vista, cada nodo anuncia si tiene clientes de multicast que no
+ * admiten datagramas comprimidos. El emisor sólo comprime si ningún nodo los
+ * tiene y ve a todos los nodos, ya que los clientes de un nodo sin conexión
+ * también reciben sus datagramas. Un cliente así puede recibir algún lote
+ * comprimido mientras su anuncio llega al emisor.
+ * - Cada nodo difunde periódicamente su número de conexiones para que la carga
+ * de todos sea visible desde cualquiera de ellos.
+ *
+ * Se configura con las claves chat.nodo.id, chat.nodo.bus (puerto del bus) y
+ * chat.nodo.pares (lista "id@host:puerto" separada por comas) de la
+ * Configuracion del servidor. Sin pares configurados el nodo funciona en solitario, como un único
+ * Servidor.
+ *
+ * @author Ivan Martin
+ */
+public class NodoCluster {
+
+    private static final String HOLA = "HOLA";
+    private static final String RECLAMAR = "RECLAMAR";
+    private static final String RESPUESTA = "RESPUESTA";
+    private static final String LIBERAR = "LIBERAR";
+    private static final String BLOQUEAR = "BLOQUEAR";
+    private static final String DESBLOQUEAR = "DESBLOQUEAR";
+    private static final String EMITIR = "EMITIR";
+    private static final String DIFUNDIDO = "DIFUNDIDO";
+    private static final String CARGA = "CARGA";
+    private static final String VISTA = "VISTA";
+    private static final String REVOCAR = "REVOCAR";
+
+    private static final long TIEMPO_MAXIMO_RESPUESTA_MS = 2000;
+    private static final long INTERVALO_MANTENIMIENTO_MS = 5000;
+    private static final int MENSAJES_RECORDADOS = 1024;
+
+    private final String id;
+    private final int puertoBus;
+    private final Map<String, InetSocketAddress> pares;
+    private final List<String> miembros;
+
+    private final Map<String, Enlace> enlacesSalientes;
+    private final Map<String, Enlace> enlacesEntrantes;
+    // Última vista anunciada por cada nodo que tiene conexión con este
+    private final Map<String, VistaNodo> vistasRemotas;
+    private final Map<Long, CompletableFuture<Boolean>> peticiones;
+    private final AtomicLong contadorPeticiones;
+    private final AtomicLong contadorMensajes;
+
+    // Nicks de los que este nodo es árbitro, con el nodo al que se concedieron
+    private final Map<String, String> propietarios;
+    // Identificadores de los últimos mensajes emitidos, para descartar reenvíos duplicados
+    private final Map<String, Boolean> mensajesEmitidos;
+    private final Map<String, Integer> cargaNodos;
+
+    private final Object cerrojoEmisor;
+    private volatile boolean emitiendo;
+    private volatile boolean detenido;
+
+    private ServerSocket socketBus;
+    private ScheduledExecutorService mantenimiento;
+    private String ultimoResumenCarga;
+
+    public NodoCluster(String id, int puertoBus, String listaPares) {
+        this.id = id;
+        this.puertoBus = puertoBus;
+        this.pares = new TreeMap<>();
+        for (String par : listaPares.split(",")) {
+            if (par.isBlank()) {
+                continue;
+            }
+            String[] partes = par.trim().split("[@:]");
+            pares.put(partes[0], new InetSocketAddress(partes[1], Integer.parseInt(partes[2])));
+        }
+        List<String> todos = new ArrayList<>(pares.keySet());
+        todos.add(id);
+        Collections.sort(todos);
+        this.miembros = Collections.unmodifiableList(todos);
+
+        this.enlacesSalientes = new ConcurrentHashMap<>();
+        this.enlacesEntrantes = new ConcurrentHashMap<>();
+        this.vistasRemotas = new ConcurrentHashMap<>();
+        this.cerrojoEmisor = new Object();
+        this.peticiones = new ConcurrentHashMap<>();
+        this.contadorPeticiones = new AtomicLong();
+        this.contadorMensajes = new AtomicLong();
+        this.propietarios = new HashMap<>();
+        this.mensajesEmitidos = new LinkedHashMap<>(MENSAJES_RECORDADOS, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> entrada) {
+                return size() > MENSAJES_RECORDADOS;
+            }
+        };
+        this.cargaNodos = new ConcurrentHashMap<>();
+        this.ultimoResumenCarga = "";
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return true si hay otros nodos configurados.
+     */
+    public boolean enCluster() {
+        return !pares.isEmpty();
+    }
+
+    /**
+     * Inicia la escucha del bus y la tarea periódica que conecta con los nodos
+     * que falten y difunde la carga y la vista de este nodo. Un nodo en
+     * solitario pasa directamente a ser el emisor.
+     *
+     * @throws IOException si no se puede abrir el puerto del bus.
+     */
+    public void iniciar() throws IOException {
+        if (!enCluster()) {
+            actualizarEmisor();
+            return;
+        }
+        /* Los nicks que ya tiene el Servidor (los de las sesiones recuperadas
+        del estado guardado) se reclaman: los que arbitra este nodo, antes de
+        que otro nodo pueda pedirlos, y los demás al conectar con su árbitro,
+        que revoca los que haya concedido a otro nodo (ver conectar). */
+        for (String clave : Servidor.getNicksEnUso()) {
+            if (arbitro(clave).equals(id)) {
+                conceder(clave, id);
+            }
+        }
+        socketBus = new ServerSocket(puertoBus);
+        Thread escucha = new Thread(this::escucharBus, "bus-" + id);
+        escucha.setDaemon(true);
+        escucha.start();
+
+        mantenimiento = Executors.newSingleThreadScheduledExecutor(tarea -> {
+            Thread hilo = new Thread(tarea, "mantenimiento-" + id);
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        mantenimiento.scheduleWithFixedDelay(this::mantener, 0, INTERVALO_MANTENIMIENTO_MS, TimeUnit.MILLISECONDS);
+        Servidor.escribirLog("Nodo " + id + " escuchando el bus en el puerto " + puertoBus + ". Miembros: " + miembros);
+    }
+
+    /**
+     * Cierra el bus y las conexiones con los demás nodos.
+     */
+    public void detener() {
+        detenido = true;
+        if (mantenimiento != null) {
+            mantenimiento.shutdownNow();
+        }
+        try {
+            if (socketBus != null) {
+                socketBus.close();
+            }
+        } catch (IOException ex) {
+
+        }
+        for (Enlace enlace : enlacesSalientes.values()) {
+            enlace.cerrar();
+        }
+        for (Enlace enlace : enlacesEntrantes.values()) {
+            enlace.cerrar();
+        }
+    }
+
+    /**
+     * @return true si este nodo es el que debe enviar los mensajes por
+     * multicast.
+     */
+    public boolean esEmisor() {
+        return emitiendo;
+    }
+
+    /**
+     * @return la vista de este nodo: él mismo y los nodos con los que tiene
+     * conexión en ambos sentidos.
+     */
+    private TreeSet<String> vista() {
+        TreeSet<String> vista = new TreeSet<>();
+        vista.add(id);
+        for (String par : pares.keySet()) {
+            if (enlacesSalientes.containsKey(par) && enlacesEntrantes.containsKey(par)) {
+                vista.add(par);
+            }
+        }
+        return vista;
+    }
+
+    private boolean tieneMayoria(Set<String> vista) {
+        int doble = vista.size() * 2;
+        return doble > miembros.size() || (doble == miembros.size() && vista.contains(miembros.get(0)));
+    }
+
+    /**
+     * @return el emisor en el que coinciden todos los nodos de la vista de
+     * este nodo, o null si no hay acuerdo o la vista no tiene mayoría.
+     */
+    private String emisorAcordado() {
+        if (!enCluster()) {
+            return id;
+        }
+        TreeSet<String> vista = vista();
+        if (!tieneMayoria(vista)) {
+            return null;
+        }
+        String candidato = vista.first();
+        for (String miembro : vista) {
+            if (!miembro.equals(id)) {
+                VistaNodo remota = vistasRemotas.get(miembro);
+                if (remota == null || !remota.miembros.first().equals(candidato)) {
+                    return null;
+                }
+            }
+        }
+        return candidato;
+    }
+
+    /**
+     * Vuelve a calcular si este nodo es el emisor. Al pasar a serlo, inicia
+     * una época de secuencias por encima de la mayor anunciada por los demás.
+     */
+    private void actualizarEmisor() {
+        synchronized (cerrojoEmisor) {
+            boolean emisor = id.equals(emisorAcordado());
+            if (emisor && !emitiendo) {
+                long ultimaSecuencia = 0;
+                for (VistaNodo remota : vistasRemotas.values()) {
+                    ultimaSecuencia = Math.max(ultimaSecuencia, remota.secuencia);
+                }
+                Servidor.iniciarEpoca(ultimaSecuencia);
+                if (enCluster()) {
+                    Servidor.escribirLog("El nodo " + id + " pasa a ser el emisor del chat.");
+                }
+            } else if (!emisor && emitiendo) {
+                Servidor.escribirLog("El nodo " + id + " deja de ser el emisor del chat.");
+            }
+            emitiendo = emisor;
+        }
+    }
+
+    /**
+     * Anuncia la vista de este nodo, su última secuencia y si tiene clientes
+     * sin compresión a los demás.
+     */
+    private void anunciarVista() {
+        if (detenido) {
+            return;
+        }
+        String vista = String.join(",", vista());
+        String secuencia = Long.toString(Servidor.getUltimaSecuencia());
+        String sinCompresion = Servidor.hayClientesSinCompresion() ? "1" : "0";
+        for (String par : pares.keySet()) {
+            enviar(par, VISTA, vista, secuencia, sinCompresion);
+        }
+        actualizarEmisor();
+    }
+
+    /**
+     * Anuncia a los demás nodos que este nodo ha pasado a tener, o a no
+     * tener, clientes que no admiten datagramas comprimidos. Lo usa el
+     * Servidor.
+     */
+    public void anunciarCompresion() {
+        if (enCluster()) {
+            anunciarVista();
+        }
+    }
+
+    /**
+     * @return true si ningún otro nodo tiene clientes que no admiten
+     * datagramas comprimidos. Si no se ve a todos los nodos, se desconoce y
+     * no se permite.
+     */
+    public boolean compresionPermitida() {
+        if (!enCluster()) {
+            return true;
+        }
+        TreeSet<String> vista = vista();
+        for (String par : pares.keySet()) {
+            VistaNodo remota = vistasRemotas.get(par);
+            if (!vista.contains(par) || remota == null || remota.sinCompresion) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String arbitro(String clave) {
+        return miembros.get(Math.floorMod(clave.hashCode(), miembros.size()));
+    }
+
+    /**
+     * Método que solicita al árbitro del nick que lo conceda a este nodo. Se
+     * bloquea hasta recibir la respuesta, por lo que no se debe llamar
+     * reteniendo el bloqueo de Servidor.
+     *
+     * @param clave el nick en minúsculas.
+     * @return true si el nick se ha concedido a este nodo.
+     */
+    public boolean reclamarNick(String clave) {
+        String arbitro = arbitro(clave);
+        if (arbitro.equals(id)) {
+            return conceder(clave, id);
+        }
+        long idPeticion = contadorPeticiones.incrementAndGet();
+        CompletableFuture<Boolean> respuesta = new CompletableFuture<>();
+        peticiones.put(idPeticion, respuesta);
+        try {
+            if (!enviar(arbitro, RECLAMAR, Long.toString(idPeticion), clave)) {
+                Servidor.escribirLog("El nodo árbitro " + arbitro + " del nick " + clave + " no está disponible.");
+                return false;
+            }
+            return respuesta.get(TIEMPO_MAXIMO_RESPUESTA_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            Servidor.escribirLog("El nodo árbitro " + arbitro + " no ha respondido a tiempo por el nick " + clave + ".");
+            return false;
+        } finally {
+            peticiones.remove(idPeticion);
+        }
+    }
+
+    /**
+     * Comunica al árbitro que el nick ha quedado libre en este nodo.
+     *
+     * @param clave el nick en minúsculas.
+     */
+    public void liberarNick(String clave) {
+        String arbitro = arbitro(clave);
+        if (arbitro.equals(id)) {
+            liberar(clave, id);
+        } else {
+            enviar(arbitro, LIBERAR, clave);
+        }
+    }
+
+    /**
+     * Replica un bloqueo en todos los nodos.
+     *
+     * @param clave el nick bloqueado en minúsculas.
+     */
+    public void difundirBloqueo(String clave) {
+        for (String par : pares.keySet()) {
+            enviar(par, BLOQUEAR, clave);
+        }
+    }
+
+    /**
+     * Replica la retirada de un bloqueo en todos los nodos.
+     *
+     * @param clave el nick desbloqueado en minúsculas.
+     */
+    public void difundirDesbloqueo(String clave) {
+        for (String par : pares.keySet()) {
+            enviar(par, DESBLOQUEAR, clave);
+        }
+    }
+
+    /**
+     * Reenvía un mensaje al nodo emisor para que lo envíe por multicast.
+     *
+     * @param mensaje el mensaje ya validado.
+     * @return false si no hay un emisor acordado al que entregarlo.
+     */
+    public boolean reenviarAlEmisor(String mensaje) {
+        return encaminar(id + ":" + contadorMensajes.incrementAndGet(), mensaje);
+    }
+
+    /**
+     * Emite el mensaje si este nodo es el emisor, o lo envía hacia él: al
+     * emisor acordado, o si no lo hay, al nodo de menor identificador de la
+     * vista, que lo encaminará a su vez. Como cada salto va a un nodo de
+     * identificador menor, el mensaje no puede dar vueltas.
+     */
+    private boolean encaminar(String idMensaje, String mensaje) {
+        for (int intento = 0; intento < miembros.size(); intento++) {
+            if (esEmisor()) {
+                emitir(idMensaje, mensaje);
+                return true;
+            }
+            String destino = emisorAcordado();
+            if (destino == null) {
+                destino = vista().first();
+            }
+            if (destino.equals(id)) {
+                break;
+            }
+            if (enviar(destino, EMITIR, idMensaje, mensaje)) {
+                return true;
+            }
+        }
+        Servidor.escribirLog("No se ha podido hacer llegar un mensaje al emisor del cluster. Se descarta.");
+        return false;
+    }
+
+    /**
+     * Envía el mensaje por multicast como nodo emisor, descartándolo si ya se
+     * había emitido, y lo comunica con su secuencia al resto de nodos.
+     */
+    private void emitir(String idMensaje, String mensaje) {
+        synchronized (mensajesEmitidos) {
+            if (mensajesEmitidos.put(idMensaje, Boolean.TRUE) != null) {
+                return;
+            }
+        }
+        long secuencia = Servidor.emitirMulticast(mensaje);
+        difundirSecuencia(secuencia, mensaje);
+    }
+
+    /**
+     * Comunica a los demás nodos un mensaje emitido por multicast, para que lo
+     * añadan a su historial.
+     *
+     * @param secuencia el número de secuencia asignado.
+     * @param mensaje el texto del mensaje.
+     */
+    public void difundirSecuencia(long secuencia, String mensaje) {
+        for (String par : pares.keySet()) {
+            enviar(par, DIFUNDIDO, Long.toString(secuencia), mensaje);
+        }
+    }
+
+    /**
+     * @return el resumen de conexiones por nodo.
+     */
+    public String resumenCarga() {
+        StringBuilder resumen = new StringBuilder();
+        for (String miembro : miembros) {
+            Integer carga = miembro.equals(id)
+                    ? Integer.valueOf(Servidor.getAdmision().getConexionesActivas())
+                    : cargaNodos.get(miembro);
+            resumen.append(miembro).append('=').append(carga == null ? "?" : carga).append(' ');
+        }
+        return resumen.toString().trim();
+    }
+
+    private synchronized boolean conceder(String clave, String nodo) {
+        String propietario = propietarios.putIfAbsent(clave, nodo);
+        return propietario == null || propietario.equals(nodo);
+    }
+
+    private synchronized void liberar(String clave, String nodo) {
+        propietarios.remove(clave, nodo);
+    }
+
+    /**
+     * Libera todos los nicks concedidos a un nodo al perder su conexión. Al
+     * volver a conectarse, el nodo los reclamará de nuevo, y se le revocarán
+     * los que se hayan concedido a otro nodo entretanto.
+     */
+    private synchronized void liberarNodo(String nodo) {
+        propietarios.values().removeIf(nodo::equals);
+    }
+
+    /**
+     * Tarea periódica: conecta con los nodos que no tienen conexión y difunde
+     * la carga y la vista de este nodo.
+     */
+    private void mantener() {
+        for (Map.Entry<String, InetSocketAddress> par : pares.entrySet()) {
+            if (!enlacesSalientes.containsKey(par.getKey())) {
+                conectar(par.getKey(), par.getValue());
+            }
+        }
+        String carga = Integer.toString(Servidor.getAdmision().getConexionesActivas());
+        for (String par : pares.keySet()) {
+            enviar(par, CARGA, carga);
+        }
+        anunciarVista();
+        String resumen = resumenCarga();
+        if (!resumen.equals(ultimoResumenCarga)) {
+            ultimoResumenCarga = resumen;
+            Servidor.escribirLog("Carga de los nodos: " + resumen);
+        }
+    }
+
+    private void conectar(String par, InetSocketAddress direccion) {
+        try {
+            Socket socket = new Socket();
+            socket.connect(direccion, (int) TIEMPO_MAXIMO_RESPUESTA_MS);
+            Enlace enlace = new Enlace(socket, par);
+            enlace.enviar(codificar(HOLA, id));
+            enlacesSalientes.put(par, enlace);
+            enlace.iniciar();
+            Servidor.escribirLog("Conectado con el nodo " + par + ".");
+
+            /* Se sincroniza el estado: bloqueos y nicks de los que el nodo es
+            árbitro. Si alguno se ha concedido a otro nodo, el árbitro lo revoca. */
+            for (String clave : Servidor.getNicksBloqueados()) {
+                enlace.enviar(codificar(BLOQUEAR, clave));
+            }
+            for (String clave : Servidor.getNicksEnUso()) {
+                if (arbitro(clave).equals(par)) {
+                    enlace.enviar(codificar(RECLAMAR, "0", clave));
+                }
+            }
+            anunciarVista();
+        } catch (IOException ex) {
+            // El nodo no está disponible, se reintentará en el siguiente ciclo
+        }
+    }
+
+    private void escucharBus() {
+        try {
+            while (true) {
+                Socket socket = socketBus.accept();
+                new Enlace(socket, null).iniciar();
+            }
+        } catch (IOException ex) {
+            // Bus cerrado
+        }
+    }
+
+    private boolean enviar(String par, String tipo, String... campos) {
+        Enlace enlace = enlacesSalientes.get(par);
+        if (enlace == null) {
+            return false;
+        }
+        try {
+            enlace.enviar(codificar(tipo, campos));
+            return true;
+        } catch (IOException ex) {
+            Servidor.escribirLog("No se ha podido enviar " + tipo + " al nodo " + par + ": " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Codifica un mensaje del bus: el tipo, el número de campos y cada campo
+     * en UTF-8 precedido de su longitud, como los textos de las tramas (sin
+     * el límite de 64 KB de writeUTF).
+     */
+    private static byte[] codificar(String tipo, String... campos) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream salida = new DataOutputStream(bytes);
+        escribirCampo(salida, tipo);
+        salida.writeByte(campos.length);
+        for (String campo : campos) {
+            escribirCampo(salida, campo);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void escribirCampo(DataOutputStream salida, String campo) throws IOException {
+        byte[] bytes = campo.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Codec.LONGITUD_MAXIMA) {
+            throw new ProtocolException("Campo de " + bytes.length + " bytes, mayor que el máximo del bus");
+        }
+        salida.writeInt(bytes.length);
+        salida.write(bytes);
+    }
+
+    private static String leerCampo(DataInputStream entrada) throws IOException {
+        int longitud = entrada.readInt();
+        if (longitud < 0 || longitud > Codec.LONGITUD_MAXIMA) {
+            throw new ProtocolException("Longitud de campo no válida en el bus: " + longitud);
+        }
+        byte[] bytes = new byte[longitud];
+        entrada.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Procesa un mensaje recibido por el bus.
+     *
+     * @param enlace el enlace por el que ha llegado, para responder por él.
+     * @param tipo el tipo de mensaje.
+     * @param campos los campos del mensaje.
+     */
+    private void procesar(Enlace enlace, String tipo, String[] campos) throws IOException {
+        switch (tipo) {
+            case HOLA:
+                enlace.remoto = campos[0];
+                Enlace anterior = enlacesEntrantes.put(enlace.remoto, enlace);
+                if (anterior != null) {
+                    anterior.cerrar();
+                }
+                anunciarVista();
+                break;
+            case RECLAMAR:
+                boolean concedido = conceder(campos[1], enlace.remoto);
+                if (!campos[0].equals("0")) {
+                    enlace.enviar(codificar(RESPUESTA, campos[0], Boolean.toString(concedido)));
+                } else if (!concedido) {
+                    // Un nick reclamado al reconectarse que ya tiene otro nodo
+                    enlace.enviar(codificar(REVOCAR, campos[1]));
+                }
+                break;
+            case REVOCAR:
+                Servidor.revocarNick(campos[0]);
+                break;
+            case RESPUESTA:
+                CompletableFuture<Boolean> respuesta = peticiones.get(Long.parseLong(campos[0]));
+                if (respuesta != null) {
+                    respuesta.complete(Boolean.parseBoolean(campos[1]));
+                }
+                break;
+            case LIBERAR:
+                liberar(campos[0], enlace.remoto);
+                break;
+            case BLOQUEAR:
+                Servidor.registrarBloqueo(campos[0]);
+                break;
+            case DESBLOQUEAR:
+                Servidor.registrarDesbloqueo(campos[0]);
+                break;
+            case EMITIR:
+                encaminar(campos[0], campos[1]);
+                break;
+            case DIFUNDIDO:
+                if (Servidor.registrarDifusion(Long.parseLong(campos[0]), campos[1])) {
+                    // Se retransmite a los nodos que no están en la vista de quien lo envía
+                    VistaNodo origen = vistasRemotas.get(enlace.remoto);
+                    for (String par : pares.keySet()) {
+                        if (!par.equals(enlace.remoto) && (origen == null || !origen.miembros.contains(par))) {
+                            enviar(par, DIFUNDIDO, campos);
+                        }
+                    }
+                }
+                break;
+            case VISTA:
+                vistasRemotas.put(enlace.remoto, new VistaNodo(campos[0], Long.parseLong(campos[1]), campos[2].equals("1")));
+                actualizarEmisor();
+                break;
+            case CARGA:
+                cargaNodos.put(enlace.remoto, Integer.parseInt(campos[0]));
+                break;
+            default:
+                Servidor.escribirLog("Mensaje desconocido en el bus: " + tipo);
+        }
+    }
+
+    private void enlaceCerrado(Enlace enlace) {
+        if (enlace.saliente != null) {
+            if (enlacesSalientes.remove(enlace.saliente, enlace)) {
+                Servidor.escribirLog("Perdida la conexión con el nodo " + enlace.saliente + ".");
+                anunciarVista();
+            }
+        } else if (enlace.remoto != null && enlacesEntrantes.remove(enlace.remoto, enlace)) {
+            liberarNodo(enlace.remoto);
+            cargaNodos.remove(enlace.remoto);
+            vistasRemotas.remove(enlace.remoto);
+            anunciarVista();
+        }
+    }
+
+    /**
+     * Vista anunciada por otro nodo, con la última secuencia que conocía y si
+     * tenía clientes sin compresión.
+     */
+    private static class VistaNodo {
+
+        private final TreeSet<String> miembros;
+        private final long secuencia;
+        private final boolean sinCompresion;
+
+        private VistaNodo(String miembros, long secuencia, boolean sinCompresion) {
+            this.miembros = new TreeSet<>(List.of(miembros.split(",")));
+            this.secuencia = secuencia;
+            this.sinCompresion = sinCompresion;
+        }
+    }
+
+    /**
+     * Conexión con otro nodo. Un hilo lee y procesa los mensajes que llegan y
+     * otro escribe los que se encolan, para que el envío no bloquee a quien lo
+     * solicita.
+     */
+    private class Enlace {
+
+        private final Socket socket;
+        private final String saliente;
+        private final LinkedBlockingQueue<byte[]> pendientes;
+        private volatile String remoto;
+        private volatile boolean cerrado;
+
+        private Enlace(Socket socket, String saliente) {
+            this.socket = socket;
+            this.saliente = saliente;
+            this.remoto = saliente;
+            this.pendientes = new LinkedBlockingQueue<>();
+        }
+
+        private void iniciar() {
+            Thread lector = new Thread(this::leer, "bus-lector-" + id);
+            lector.setDaemon(true);
+            lector.start();
+            Thread escritor = new Thread(this::escribir, "bus-escritor-" + id);
+            escritor.setDaemon(true);
+            escritor.start();
+        }
+
+        private void enviar(byte[] mensaje) throws IOException {
+            if (cerrado) {
+                throw new IOException("Enlace cerrado");
+            }
+            pendientes.add(mensaje);
+        }
+
+        private void leer() {
+            try {
+                DataInputStream entrada = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    String tipo = leerCampo(entrada);
+                    String[] campos = new String[entrada.readByte()];
+                    for (int i = 0; i < campos.length; i++) {
+                        campos[i] = leerCampo(entrada);
+                    }
+                    procesar(this, tipo, campos);
+                }
+            } catch (IOException | RuntimeException ex) {
+                cerrar();
+            }
+        }
+
+        private void escribir() {
+            try {
+                DataOutputStream salida = new DataOutputStream(socket.getOutputStream());
+                while (!cerrado) {
+                    salida.write(pendientes.take());
+                    if (pendientes.isEmpty()) {
+                        salida.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException ex) {
+                cerrar();
+            }
+        }
+
+        private synchronized void cerrar() {
+            if (cerrado) {
+                return;
+            }
+            cerrado = true;
+            // Se despierta al hilo escritor si estaba esperando
+            pendientes.add(new byte[0]);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+
+            }
+            enlaceCerrado(this);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package servidor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Esta clase saca la moderación de los mensajes del hilo que lee la conexión
+ * de cada cliente. El procesado de un mensaje se divide en etapas:
+ * - Decodificación: la hace el HiloGestionClientes al leer el socket.
+ * - Moderación: se ejecuta en una de las particiones de esta clase, una por
+ * núcleo, de forma que los filtros costosos se reparten entre todos ellos.
+ * - Secuenciación y emisión: Servidor.enviarMensajePorMulticast asigna el
+ * número de secuencia y envía el mensaje.
+ * Todos los mensajes de un mismo cliente van siempre a la misma partición, que
+ * los procesa de uno en uno, por lo que nunca se reordenan los mensajes de un
+ * usuario aunque se procesen en paralelo los de usuarios distintos. Las colas
+ * de las particiones son limitadas: si se llenan, el hilo lector del cliente
+ * espera, y deja de leer del socket hasta que haya hueco.
+ *
+ * @author Ivan Martin
+ */
+public class PipelineModeracion {
+
+    private static final int CAPACIDAD_COLA = 4096;
+
+    private final Particion[] particiones;
+
+    public PipelineModeracion() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public PipelineModeracion(int numeroParticiones) {
+        particiones = new Particion[numeroParticiones];
+        for (int i = 0; i < numeroParticiones; i++) {
+            particiones[i] = new Particion(i);
+            particiones[i].start();
+        }
+    }
+
+    /**
+     * Encola la moderación de un mensaje de un cliente.
+     *
+     * @param cliente el hilo del cliente que ha enviado el mensaje.
+     * @param mensaje el mensaje recibido.
+     * @throws InterruptedException si se interrumpe la espera por una cola
+     * llena.
+     */
+    public void moderar(HiloGestionClientes cliente, String mensaje) throws InterruptedException {
+        particion(cliente).cola.put(() -> cliente.procesarMensaje(mensaje));
+    }
+
+    /**
+     * Ejecuta una tarea en la partición del cliente, después de todos los
+     * mensajes que éste tenga pendientes de moderar, y espera a que termine.
+     * Se usa para la desconexión, de forma que los mensajes enviados antes de
+     * desconectarse se procesen primero.
+     *
+     * @param cliente el hilo del cliente.
+     * @param tarea la tarea a ejecutar.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    public void ejecutarEnOrden(HiloGestionClientes cliente, Runnable tarea) throws InterruptedException {
+        FutureTask<Void> futura = new FutureTask<>(tarea, null);
+        particion(cliente).cola.put(futura);
+        try {
+            futura.get();
+        } catch (ExecutionException ex) {
+            Servidor.escribirLog("Error al procesar la desconexión de " + cliente.getNick() + ": " + ex.getCause());
+        }
+    }
+
+    /**
+     * @return el número total de mensajes pendientes de moderar.
+     */
+    public int getPendientes() {
+        int pendientes = 0;
+        for (Particion particion : particiones) {
+            pendientes += particion.cola.size();
+        }
+        return pendientes;
+    }
+
+    private Particion particion(HiloGestionClientes cliente) {
+        return particiones[Math.floorMod(Long.hashCode(cliente.getId()), particiones.length)];
+    }
+
+    /**
+     * Hilo que procesa en orden las tareas de su cola.
+     */
+    private static class Particion extends Thread {
+
+        private final BlockingQueue<Runnable> cola;
+
+        private Particion(int numero) {
+            super("moderacion-" + numero);
+            this.cola = new ArrayBlockingQueue<>(CAPACIDAD_COLA);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    cola.take().run();
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (RuntimeException ex) {
+                    Servidor.escribirLog("Error en la moderación de un mensaje: " + ex);
+                }
+            }
+        }
+    }
+}
@@ -1,13 +1,39 @@
 package servidor;
 
+import comun.Codec;
+import comun.CodecBinario;
+import comun.Configuracion;
+import comun.TipoTrama;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import javax.swing.JTextArea;
 
 /**
@@ -20,40 +46,126 @@ import javax.swing.JTextArea;
  * los clientes. Por cada cliente que accede, se inicia un HiloGestionClientes
  * para gestionar la comunicación, dejando este hilo exclusivamente para atender
  * conexiones.
+ * Al terminar el proceso, el método apagar() detiene el servidor de forma
+ * ordenada y guarda en un fichero los bloqueos, el historial y las sesiones de
+ * los clientes conectados, que se recuperan en el siguiente arranque para que
+ * los clientes reanuden su sesión sin perder mensajes.
  *
  * @author Ivan Martin
  */
 public class Servidor extends JTextArea implements Runnable {
 
     private static JTextArea log;
-    private static final String IP_MULTICAST = "231.0.0.1";
-    private static final int PUERTO_TCP = 2000;
-    private static final int PUERTO_MULTICAST = 10000;
+    // Sin interfaz, el log se escribe en la salida estándar
+    private static volatile boolean logEnConsola;
+    private static final String FICHERO_CONFIGURACION = "servidor.properties";
+    private static final long INTERVALO_LOG_RECHAZOS_MS = 1000;
 
+    // Reanudación de sesiones tras una pérdida de conexión
+    private static final int TAMANO_HISTORIAL = 1000;
+    private static final long GRACIA_REANUDACION_MS = 60000;
+    private static final int BYTES_TOKEN = 16;
+
+    // Estado que se conserva entre reinicios del servidor
+    private static final String FICHERO_ESTADO = "servidor.estado";
+    private static final int VERSION_ESTADO = 1;
+    private static final long INTERVALO_ESPERA_APAGADO_MS = 50;
+
+    private static Configuracion configuracion;
     private static ServerSocket socketServidor;
     private static InetAddress grupo;
+    private static int puertoMulticast;
     private static MulticastSocket socketMulticast;
+    private static EmisorMulticast emisor;
+    // Clientes que reciben multicast pero no admiten datagramas comprimidos
+    private static AtomicInteger clientesSinCompresion;
 
     private static List<HiloGestionClientes> clientes;
-    private static List<String> palabrasProhibidas;
+    private static volatile List<String> palabrasProhibidas;
+    private static ControlAdmision admision;
+    private static TablaSesiones sesiones;
+    private static NodoCluster nodo;
+    private static DifusionUnicast difusionUnicast;
+    private static PipelineModeracion pipeline;
+    private static DetectorSpam detectorSpam;
+    private static TrazaEventos traza;
+    private static ControlAdministracion administracion;
+
+    /* Nicks (en minúsculas) asignados o reservados en este nodo, y nicks
+    bloqueados en todo el chat. Los bloqueos son un conjunto concurrente para
+    poder añadirlos y retirarlos (desde el bus o la administración) sin el
+    bloqueo del servidor. */
+    private static Set<String> nicksEnUso;
+    private static Set<String> nicksBloqueados;
+
+    private static Map<String, SesionSuspendida> sesionesSuspendidas;
+    private static SecureRandom generadorTokens;
+    private static long secuencia;
+    /* Historial circular en orden de secuencia, desde la entrada más antigua
+    (inicioHistorial). No se indexa por el número de secuencia, ya que éste
+    salta al empezar una época (iniciarEpoca) y el historial recuperado del
+    estado guardado quedaría fuera de la ventana de las últimas secuencias. */
+    private static long[] secuenciasHistorial;
+    private static String[] textosHistorial;
+    private static int inicioHistorial;
+    private static int tamanoHistorial;
+    private static volatile boolean apagando;
 
     private Thread hilo;
+    private long ultimoLogRechazos;
+    private final Map<ControlAdmision.Rechazo, byte[]> tramasRechazo;
 
     public Servidor() {
+        configuracion = Configuracion.cargar(FICHERO_CONFIGURACION);
         clientes = new ArrayList<>();
+        int maximoConexiones = configuracion.getEntero("chat.admision.conexiones", 1000);
+        admision = new ControlAdmision(
+                maximoConexiones,
+                configuracion.getEntero("chat.admision.accesosPendientes", 64),
+                configuracion.getEntero("chat.admision.conexionesPorIp", 10),
+                configuracion.getLargo("chat.admision.ventanaMs", 10000));
+        nodo = new NodoCluster(configuracion.getTexto("chat.nodo.id", "local"),
+                configuracion.getEntero("chat.nodo.bus", 0),
+                configuracion.getTexto("chat.nodo.pares", ""));
+        // Las tramas de rechazo se codifican una sola vez, ya que se envían durante las avalanchas de conexiones
+        tramasRechazo = new EnumMap<>(ControlAdmision.Rechazo.class);
+        for (ControlAdmision.Rechazo rechazo : ControlAdmision.Rechazo.values()) {
+            tramasRechazo.put(rechazo, codificarAviso(rechazo.getMensaje()));
+        }
+        clientesSinCompresion = new AtomicInteger();
+        sesiones = new TablaSesiones(maximoConexiones,
+                configuracion.getEntero("chat.sesion.mensajesPorSegundo", 5, 1),
+                configuracion.getEntero("chat.sesion.rafaga", 10, 1));
+        difusionUnicast = new DifusionUnicast();
+        pipeline = new PipelineModeracion();
+        detectorSpam = new DetectorSpam(
+                configuracion.getEntero("chat.spam.umbral", 5, 1),
+                configuracion.getEntero("chat.spam.longitudMinima", 8, 0),
+                configuracion.getLargo("chat.spam.mensajesPorPeriodo", 2000, 1));
+        nicksEnUso = new HashSet<>();
+        nicksBloqueados = ConcurrentHashMap.newKeySet();
+        sesionesSuspendidas = new HashMap<>();
+        generadorTokens = new SecureRandom();
+        /* La secuencia la asigna el nodo emisor: al pasar a serlo, la hace
+        continuar desde el instante actual (iniciarEpoca), para que siga
+        creciendo tras un reinicio y los clientes no descarten los mensajes
+        nuevos como ya recibidos. */
+        secuencia = 0;
+        secuenciasHistorial = new long[TAMANO_HISTORIAL];
+        textosHistorial = new String[TAMANO_HISTORIAL];
+        inicioHistorial = 0;
+        tamanoHistorial = 0;
         hilo = new Thread(this);
-        palabrasProhibidas = new ArrayList<>() {
-            {
-                add("Cocacola");
-                add("Pepsi");
-                add("Danone");
-                add("Nestle");
-                add("Puleva");
-                add("Bimbo");
-                add("Pascual");
-                add("Campofrio");
-            }
-        };
+        // Se guardan en minúsculas y en una lista inmutable, para consultarla sin bloqueo
+        palabrasProhibidas = List.of("cocacola", "pepsi", "danone", "nestle",
+                "puleva", "bimbo", "pascual", "campofrio");
+        try {
+            recargarPalabrasProhibidas();
+        } catch (IOException ex) {
+            System.out.println("No se pudieron leer las palabras prohibidas: " + ex.getMessage());
+        }
+        cargarEstado();
+        abrirTraza();
         // Valores para el JTextArea
         log = this;
         this.setEditable(false);
@@ -61,77 +173,545 @@ public class Servidor extends JTextArea implements Runnable {
         this.setRows(5);
     }
 
+    /**
+     * Inicia el hilo del servidor y registra el apagado ordenado para cuando
+     * termine el proceso, ya sea desde la interfaz o por una señal del sistema.
+     */
     public void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::apagar, "apagado-servidor"));
         hilo.start();
     }
 
+    public static boolean enApagado() {
+        return apagando;
+    }
+
     public static synchronized List<HiloGestionClientes> getClientes() {
         return clientes;
     }
 
+    public static TablaSesiones getSesiones() {
+        return sesiones;
+    }
+
+    public static ControlAdmision getAdmision() {
+        return admision;
+    }
+
+    public static Configuracion getConfiguracion() {
+        return configuracion;
+    }
+
+    public static DetectorSpam getDetectorSpam() {
+        return detectorSpam;
+    }
+
+    public static PipelineModeracion getPipeline() {
+        return pipeline;
+    }
+
+    public static DifusionUnicast getDifusionUnicast() {
+        return difusionUnicast;
+    }
+
+    public static EmisorMulticast getEmisor() {
+        return emisor;
+    }
+
+    /**
+     * @return la traza donde se graban los eventos de los clientes, o null si
+     * no está activada (chat.traza.fichero vacío).
+     */
+    public static TrazaEventos getTraza() {
+        return traza;
+    }
+
+    public static NodoCluster getNodo() {
+        return nodo;
+    }
+
     /**
      * Método que comprueba que el nick recibido no está siendo usado o
-     * pertenezca a un usuario bloqueado, buscando en la lista de clientes
-     * conectados.
+     * pertenezca a un usuario bloqueado, buscando en los nicks asignados en
+     * este nodo (incluidos los reservados para reanudar una sesión).
      *
      * @param nickSolicitado el nick enviado por el cliente.
      * @return true si el nick está libre, false si está siendo ya usado.
      */
     public static synchronized boolean nickDisponible(String nickSolicitado) {
-        for (HiloGestionClientes cliente : clientes) {
-            if (cliente.getNick().equalsIgnoreCase(nickSolicitado)) {
+        purgarSesionesSuspendidas();
+        String clave = nickSolicitado.toLowerCase();
+        return !nicksEnUso.contains(clave) && !nicksBloqueados.contains(clave);
+    }
+
+    /**
+     * Método que busca nicks libres parecidos al solicitado, añadiéndole un
+     * número, para sugerirlos al cliente cuando el suyo no está disponible.
+     * Si el nick es largo, se acorta para que el número quepa en la longitud
+     * máxima, de forma que sólo se sugieren nicks que el servidor acepta.
+     *
+     * @param base el nick solicitado.
+     * @param cantidad el número de sugerencias a buscar.
+     * @return los nicks libres encontrados en este nodo.
+     */
+    public static synchronized List<String> sugerirNicks(String base, int cantidad) {
+        List<String> sugerencias = new ArrayList<>(cantidad);
+        for (int numero = 1; numero <= cantidad * 10 && sugerencias.size() < cantidad; numero++) {
+            String sufijo = Integer.toString(numero);
+            String prefijo = base.substring(0, Math.min(base.length(),
+                    HiloGestionClientes.LONGITUD_MAXIMA_NICK - sufijo.length()));
+            String sugerencia = prefijo + sufijo;
+            if (HiloGestionClientes.nickValido(sugerencia) && nickDisponible(sugerencia)) {
+                sugerencias.add(sugerencia);
+            }
+        }
+        return sugerencias;
+    }
+
+    /**
+     * Método que reserva un nick para un cliente. Primero se comprueba y
+     * reserva en este nodo, y si forma parte de un cluster se pide además al
+     * nodo árbitro del nick, sin retener el bloqueo del servidor mientras se
+     * espera su respuesta.
+     *
+     * @param nickSolicitado el nick enviado por el cliente.
+     * @return true si el nick ha quedado reservado para el cliente.
+     */
+    public static boolean reservarNick(String nickSolicitado) {
+        String clave = nickSolicitado.toLowerCase();
+        synchronized (Servidor.class) {
+            if (!nickDisponible(nickSolicitado)) {
                 return false;
             }
+            nicksEnUso.add(clave);
+        }
+        if (!nodo.reclamarNick(clave)) {
+            synchronized (Servidor.class) {
+                nicksEnUso.remove(clave);
+            }
+            return false;
         }
         return true;
     }
 
     /**
-     * Método que elimina un cliente de la lista de clientes.
+     * Libera un nick en este nodo y en su árbitro.
+     */
+    private static void liberarNick(String nick) {
+        String clave = nick.toLowerCase();
+        if (nicksEnUso.remove(clave)) {
+            nodo.liberarNick(clave);
+        }
+    }
+
+    /**
+     * Método que bloquea un nick en todo el chat, replicando el bloqueo en el
+     * resto de nodos.
+     *
+     * @param nick el nick del cliente expulsado.
+     */
+    public static void bloquearNick(String nick) {
+        String clave = nick.toLowerCase();
+        if (registrarBloqueo(clave)) {
+            nodo.difundirBloqueo(clave);
+        }
+    }
+
+    /**
+     * Método que añade un nick a la lista de bloqueados y descarta las
+     * sesiones suspendidas con ese nick, para que no se pueda volver a entrar
+     * con su token. Lo usa también el NodoCluster al recibir un bloqueo de
+     * otro nodo.
+     *
+     * @param clave el nick en minúsculas.
+     * @return true si el nick no estaba bloqueado ya.
+     */
+    public static synchronized boolean registrarBloqueo(String clave) {
+        boolean nuevo = nicksBloqueados.add(clave);
+        if (sesionesSuspendidas.values().removeIf(sesion -> sesion.nick.equalsIgnoreCase(clave))
+                && sesiones.buscar(clave) < 0) {
+            liberarNick(clave);
+        }
+        return nuevo;
+    }
+
+    /**
+     * Método que retira el bloqueo de un nick en todo el chat, replicándolo
+     * en el resto de nodos.
+     *
+     * @param nick el nick a desbloquear.
+     * @return true si el nick estaba bloqueado.
+     */
+    public static boolean desbloquearNick(String nick) {
+        String clave = nick.toLowerCase();
+        boolean estaba = registrarDesbloqueo(clave);
+        nodo.difundirDesbloqueo(clave);
+        return estaba;
+    }
+
+    /**
+     * Método que quita un nick de la lista de bloqueados. Lo usa también el
+     * NodoCluster al recibir un desbloqueo de otro nodo.
+     *
+     * @param clave el nick en minúsculas.
+     * @return true si el nick estaba bloqueado.
+     */
+    public static boolean registrarDesbloqueo(String clave) {
+        return nicksBloqueados.remove(clave);
+    }
+
+    /**
+     * Método que retira de este nodo un nick que su árbitro ha concedido a
+     * otro nodo mientras no tenían conexión. Lo conserva el nodo que lo
+     * obtuvo antes: aquí se descarta la sesión suspendida que lo reservaba, o
+     * se expulsa al cliente que lo usa, para que el nick no esté en uso en dos
+     * nodos a la vez. Lo usa el NodoCluster al recibir la revocación.
+     *
+     * @param clave el nick en minúsculas.
+     */
+    public static void revocarNick(String clave) {
+        HiloGestionClientes cliente;
+        synchronized (Servidor.class) {
+            sesionesSuspendidas.values().removeIf(sesion -> sesion.nick.equalsIgnoreCase(clave));
+            int id = sesiones.buscar(clave);
+            cliente = id < 0 ? null : sesiones.getCliente(id);
+            if (cliente == null) {
+                nicksEnUso.remove(clave);
+            }
+        }
+        escribirLog("El nick " + clave + " está en uso en otro nodo del chat. Se retira de este nodo.");
+        if (cliente != null) {
+            // La expulsión se espera en otro hilo para no detener la lectura del bus
+            Thread expulsion = new Thread(() -> {
+                try {
+                    pipeline.ejecutarEnOrden(cliente,
+                            () -> cliente.expulsar("Tu nick está en uso en otro servidor del chat. Vuelve a entrar con otro nick."));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "revocar-" + clave);
+            expulsion.setDaemon(true);
+            expulsion.start();
+        }
+    }
+
+    public static List<String> getNicksBloqueados() {
+        return new ArrayList<>(nicksBloqueados);
+    }
+
+    public static synchronized List<String> getNicksEnUso() {
+        return new ArrayList<>(nicksEnUso);
+    }
+
+    /**
+     * Método que genera un token aleatorio con el que el cliente podrá
+     * reanudar su sesión si pierde la conexión.
+     *
+     * @return el token en hexadecimal.
+     */
+    public static synchronized String generarToken() {
+        byte[] bytes = new byte[BYTES_TOKEN];
+        generadorTokens.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    /**
+     * Método que guarda la reserva del nick de un cliente que ha perdido la
+     * conexión, para que pueda recuperarla con su token durante un tiempo de
+     * gracia.
+     *
+     * @param token el token de sesión del cliente.
+     * @param nick el nick que queda reservado.
+     */
+    public static synchronized void suspenderSesion(String token, String nick) {
+        sesionesSuspendidas.put(token, new SesionSuspendida(nick,
+                System.currentTimeMillis() + GRACIA_REANUDACION_MS));
+    }
+
+    /**
+     * Método que recupera la sesión asociada a un token. Si el token
+     * pertenece a una conexión que el servidor todavía cree activa (el
+     * cliente ha detectado la caída antes que el servidor), esa conexión se
+     * sustituye por la nueva.
+     *
+     * @param token el token enviado por el cliente al reconectarse.
+     * @return el nick reservado, o null si el token no es válido, ha caducado
+     * o su nick está bloqueado.
+     */
+    public static synchronized String reanudarSesion(String token) {
+        purgarSesionesSuspendidas();
+        SesionSuspendida sesion = sesionesSuspendidas.remove(token);
+        if (sesion != null) {
+            if (nicksBloqueados.contains(sesion.nick.toLowerCase())) {
+                liberarNick(sesion.nick);
+                return null;
+            }
+            return sesion.nick;
+        }
+        for (HiloGestionClientes cliente : clientes) {
+            if (token.equals(cliente.getToken()) && !cliente.getBloqueado()
+                    && !nicksBloqueados.contains(cliente.getNick().toLowerCase())) {
+                clientes.remove(cliente);
+                cliente.sustituir();
+                return cliente.getNick();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Elimina las reservas de nick cuyo tiempo de gracia ha terminado,
+     * liberando esos nicks.
+     */
+    private static void purgarSesionesSuspendidas() {
+        long ahora = System.currentTimeMillis();
+        Iterator<SesionSuspendida> it = sesionesSuspendidas.values().iterator();
+        while (it.hasNext()) {
+            SesionSuspendida sesion = it.next();
+            if (sesion.expira <= ahora) {
+                it.remove();
+                liberarNick(sesion.nick);
+            }
+        }
+    }
+
+    private static boolean sesionSuspendida(String nick) {
+        for (SesionSuspendida sesion : sesionesSuspendidas.values()) {
+            if (sesion.nick.equalsIgnoreCase(nick)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Método que devuelve los mensajes enviados por multicast con número de
+     * secuencia posterior al indicado, para reenviarlos por TCP al cliente que
+     * reanuda su sesión. Sólo se conservan los últimos TAMANO_HISTORIAL,
+     * también los recuperados del estado guardado tras un reinicio.
+     *
+     * @param ultimaSecuencia la última secuencia que recibió el cliente.
+     * @return los mensajes perdidos, en orden.
+     */
+    public static synchronized List<EntradaHistorial> historialDesde(long ultimaSecuencia) {
+        List<EntradaHistorial> perdidos = new ArrayList<>();
+        for (int i = 0; i < tamanoHistorial; i++) {
+            int posicion = posicionHistorial(i);
+            if (secuenciasHistorial[posicion] > ultimaSecuencia) {
+                perdidos.add(new EntradaHistorial(secuenciasHistorial[posicion], textosHistorial[posicion]));
+            }
+        }
+        return perdidos;
+    }
+
+    /**
+     * Método que elimina un cliente de la lista de clientes y libera su nick,
+     * salvo que quede reservado para reanudar la sesión.
      *
      * @param cliente el hilo que solicita la desconexión.
      */
     public static synchronized void eliminarCliente(HiloGestionClientes cliente) {
         clientes.remove(cliente);
+        if (!cliente.getNick().equals("") && !sesionSuspendida(cliente.getNick())) {
+            liberarNick(cliente.getNick());
+        }
         MainServidor.actualizarListaClientes();
     }
 
     /**
      * Método que comprueba que el mensaje sea adecuado, y no contenga ninguna
-     * palabra de las que han sido prohibidas.
+     * palabra de las que han sido prohibidas. No necesita sincronización, ya
+     * que la lista de palabras no se modifica (al recargarla se sustituye por
+     * otra), por lo que la pueden ejecutar a la vez todas las particiones del
+     * PipelineModeracion.
      *
      * @param mensaje el mensaje enviado por el cliente para comprobarlo.
      * @return true si el mensaje es adecuado, false si encuentra alguna palabra
      * prohibida.
      */
-    public static synchronized boolean mensajeAdecuado(String mensaje) {
+    public static boolean mensajeAdecuado(String mensaje) {
+        String mensajeMinusculas = mensaje.toLowerCase();
         for (String palabra : palabrasProhibidas) {
-            if (mensaje.toLowerCase().contains(palabra.toLowerCase())) {
+            if (mensajeMinusculas.contains(palabra)) {
                 return false;
             }
         }
         return true;
     }
 
+    /**
+     * Método que vuelve a leer las palabras prohibidas del fichero indicado en
+     * chat.moderacion.palabras, una por línea (las que empiezan por # se
+     * ignoran). Si no se ha configurado ningún fichero, se mantiene la lista
+     * actual.
+     *
+     * @return el número de palabras prohibidas, o -1 si no hay fichero
+     * configurado.
+     * @throws IOException si no se puede leer el fichero.
+     */
+    public static int recargarPalabrasProhibidas() throws IOException {
+        String fichero = configuracion.getTexto("chat.moderacion.palabras", "");
+        if (fichero.isEmpty()) {
+            return -1;
+        }
+        List<String> palabras = new ArrayList<>();
+        for (String linea : Files.readAllLines(Path.of(fichero), StandardCharsets.UTF_8)) {
+            String palabra = linea.trim().toLowerCase();
+            if (!palabra.isEmpty() && !palabra.startsWith("#")) {
+                palabras.add(palabra);
+            }
+        }
+        palabrasProhibidas = List.copyOf(palabras);
+        return palabras.size();
+    }
+
     /**
      * Método que envía el mensaje de un cliente (después de haber sido
-     * validado) por multicast. El mensaje que cada HiloGestionClientes recibe,
-     * es enviado por este mismo socket multicast, por lo que se debe
-     * sincronizar el método.
+     * validado) por multicast. Si este nodo no es el emisor del cluster, el
+     * mensaje se reenvía al emisor para que se envíe una única vez al grupo.
      *
      * @param mensaje el mensaje ya validado que se enviará por multicast a los
      * clientes.
      */
-    public static synchronized void enviarMensajePorMulticast(String mensaje) {
-        DatagramPacket paquete = new DatagramPacket(new byte[0], 0, grupo, PUERTO_MULTICAST);
-        byte[] buffer = mensaje.getBytes();
-        paquete.setData(buffer);
-        paquete.setLength(buffer.length);
-        try {
-            socketMulticast.send(paquete);
-        } catch (IOException ex) {
-            escribirLog("Error. El mensaje no se pudo enviar a los clientes.");
+    public static void enviarMensajePorMulticast(String mensaje) {
+        if (nodo.esEmisor()) {
+            long secuenciaAsignada = emitirMulticast(mensaje);
+            nodo.difundirSecuencia(secuenciaAsignada, mensaje);
+        } else if (!nodo.reenviarAlEmisor(mensaje)) {
+            // Nodo separado de la mayoría del cluster: el mensaje se pierde
+            escribirLog("Mensaje no enviado: " + mensaje);
+        }
+    }
+
+    /**
+     * Método que inicia una época de secuencias al pasar este nodo a ser el
+     * emisor. La secuencia continúa por encima de la última que conoce este
+     * nodo, de la mayor anunciada por el resto del cluster y del instante
+     * actual, de forma que los clientes no descarten como ya recibidos los
+     * mensajes del nuevo emisor aunque el anterior llegara a números mayores.
+     *
+     * @param ultimaSecuenciaCluster la mayor secuencia anunciada por los
+     * demás nodos.
+     */
+    public static synchronized void iniciarEpoca(long ultimaSecuenciaCluster) {
+        secuencia = Math.max(Math.max(secuencia, ultimaSecuenciaCluster), System.currentTimeMillis() * 1000);
+    }
+
+    public static synchronized long getUltimaSecuencia() {
+        return secuencia;
+    }
+
+    /**
+     * Método que envía un mensaje por multicast. Se sincroniza para que los
+     * mensajes de todos los HiloGestionClientes reciban su número de secuencia
+     * y se entreguen al EmisorMulticast en el mismo orden. Cada mensaje se
+     * guarda en el historial para poder reenviarlo a los clientes que reanuden
+     * su sesión, y se entrega también a DifusionUnicast para los clientes que
+     * no reciben multicast.
+     *
+     * @param mensaje el mensaje que se enviará por multicast.
+     * @return el número de secuencia asignado al mensaje.
+     */
+    public static synchronized long emitirMulticast(String mensaje) {
+        secuencia++;
+        guardarEnHistorial(secuencia, mensaje);
+        difusionUnicast.publicar(secuencia, mensaje);
+        emisor.encolar(secuencia, mensaje);
+        return secuencia;
+    }
+
+    /**
+     * Método que guarda en el historial un mensaje que otro nodo del cluster
+     * ha enviado por multicast, para poder reenviarlo a los clientes de este
+     * nodo que reanuden su sesión, y lo entrega a los clientes de este nodo
+     * que reciben el chat por TCP.
+     *
+     * @param secuenciaRecibida el número de secuencia del mensaje.
+     * @param mensaje el texto del mensaje.
+     * @return false si el mensaje ya se había registrado (llega también
+     * retransmitido por otros nodos).
+     */
+    public static synchronized boolean registrarDifusion(long secuenciaRecibida, String mensaje) {
+        if (!guardarEnHistorial(secuenciaRecibida, mensaje)) {
+            return false;
+        }
+        secuencia = Math.max(secuencia, secuenciaRecibida);
+        difusionUnicast.publicar(secuenciaRecibida, mensaje);
+        return true;
+    }
+
+    /**
+     * Método que lleva la cuenta de los clientes que reciben multicast pero
+     * no han anunciado que admiten datagramas comprimidos. Cuando este nodo
+     * pasa a tenerlos o deja de tenerlos, se anuncia al resto del cluster.
+     *
+     * @param alta true al dar acceso a uno de esos clientes, false al
+     * desconectarse.
+     */
+    public static void registrarClienteSinCompresion(boolean alta) {
+        int clientes = alta ? clientesSinCompresion.incrementAndGet() : clientesSinCompresion.decrementAndGet();
+        if (clientes == (alta ? 1 : 0)) {
+            nodo.anunciarCompresion();
+        }
+    }
+
+    /**
+     * @return true si este nodo tiene clientes que reciben multicast sin
+     * admitir datagramas comprimidos.
+     */
+    public static boolean hayClientesSinCompresion() {
+        return clientesSinCompresion.get() > 0;
+    }
+
+    /**
+     * @return true si todos los clientes que reciben multicast, de este nodo
+     * y del resto del cluster, admiten datagramas comprimidos.
+     */
+    private static boolean compresionPermitida() {
+        return clientesSinCompresion.get() == 0 && nodo.compresionPermitida();
+    }
+
+    /**
+     * Guarda un mensaje en el historial, manteniendo el orden de secuencia
+     * aunque llegue después de otros posteriores (retransmitido por otro
+     * nodo). Si el historial está lleno, se descarta la entrada más antigua.
+     *
+     * @return false si el mensaje ya estaba en el historial, o es anterior a
+     * todo lo que se conserva.
+     */
+    private static boolean guardarEnHistorial(long secuenciaMensaje, String mensaje) {
+        // Se busca desde el final, donde cae casi siempre el mensaje
+        int destino = tamanoHistorial;
+        while (destino > 0) {
+            long anterior = secuenciasHistorial[posicionHistorial(destino - 1)];
+            if (anterior == secuenciaMensaje) {
+                return false;
+            }
+            if (anterior < secuenciaMensaje) {
+                break;
+            }
+            destino--;
+        }
+        if (tamanoHistorial == TAMANO_HISTORIAL) {
+            if (destino == 0) {
+                return false;
+            }
+            inicioHistorial = (inicioHistorial + 1) % TAMANO_HISTORIAL;
+            tamanoHistorial--;
+            destino--;
+        }
+        for (int i = tamanoHistorial; i > destino; i--) {
+            secuenciasHistorial[posicionHistorial(i)] = secuenciasHistorial[posicionHistorial(i - 1)];
+            textosHistorial[posicionHistorial(i)] = textosHistorial[posicionHistorial(i - 1)];
         }
+        secuenciasHistorial[posicionHistorial(destino)] = secuenciaMensaje;
+        textosHistorial[posicionHistorial(destino)] = mensaje;
+        tamanoHistorial++;
+        return true;
+    }
+
+    private static int posicionHistorial(int indice) {
+        return (inicioHistorial + indice) % TAMANO_HISTORIAL;
     }
 
     /**
@@ -142,30 +722,372 @@ public class Servidor extends JTextArea implements Runnable {
      * envían para ser escritos en el JTextArea.
      */
     public static synchronized void escribirLog(String mensaje) {
+        if (logEnConsola) {
+            System.out.println(mensaje);
+            return;
+        }
         log.setText(log.getText() + "\n" + mensaje);
     }
 
+    /**
+     * Hace que el log se escriba en la salida estándar en lugar de en el
+     * JTextArea, para ejecutar el servidor sin interfaz gráfica.
+     */
+    public static void escribirLogEnConsola() {
+        logEnConsola = true;
+    }
+
     @Override
     public void run() {
         try {
-            socketServidor = new ServerSocket(PUERTO_TCP);
-            setText("Servidor iniciado.\nEscuchando en puerto " + PUERTO_TCP + "...");
+            int puerto = configuracion.getPuerto();
+            socketServidor = new ServerSocket();
+            configuracion.ajustarServidor(socketServidor);
+            socketServidor.bind(new InetSocketAddress(puerto),
+                    configuracion.getEntero("chat.admision.colaConexiones", 128));
+            if (logEnConsola) {
+                escribirLog("Servidor iniciado.\nEscuchando en puerto " + puerto + "...");
+            } else {
+                setText("Servidor iniciado.\nEscuchando en puerto " + puerto + "...");
+            }
+            escribirLog(sesiones.resumenMemoria());
+            iniciarAdministracion(puerto);
 
-            grupo = InetAddress.getByName(IP_MULTICAST);
-            socketMulticast = new MulticastSocket(PUERTO_MULTICAST);
+            grupo = configuracion.getGrupoMulticast();
+            puertoMulticast = configuracion.getPuertoMulticast();
+            socketMulticast = new MulticastSocket(puertoMulticast);
+            configuracion.ajustarMulticast(socketMulticast);
+            boolean compresion = configuracion.getBooleano("chat.multicast.compresion", true);
+            emisor = new EmisorMulticast(socketMulticast, new InetSocketAddress(grupo, puertoMulticast),
+                    () -> compresion && compresionPermitida(),
+                    configuracion.getEntero("chat.multicast.tamanoLote", 1400),
+                    configuracion.getEntero("chat.multicast.tamanoLoteComprimido", 4096),
+                    configuracion.getEntero("chat.multicast.umbralCompresion", 512),
+                    configuracion.getLargo("chat.multicast.esperaLoteMs", 0));
+            emisor.start();
+            nodo.iniciar();
 
             // Escucha constante de peticiones de conexión de clientes
             while (true) {
                 Socket socketCliente = socketServidor.accept();
+                ControlAdmision.Rechazo rechazo = admision.admitir(socketCliente.getInetAddress());
+                if (rechazo != null) {
+                    rechazarConexion(socketCliente, rechazo);
+                    continue;
+                }
+                try {
+                    configuracion.ajustarTcp(socketCliente);
+                } catch (IOException ex) {
+                    // El cliente ya ha cerrado o reiniciado la conexión; se descarta sin dejar de aceptar
+                    descartarConexion(socketCliente);
+                    continue;
+                }
                 HiloGestionClientes nuevoCliente = new HiloGestionClientes(socketCliente);
                 clientes.add(nuevoCliente);
                 nuevoCliente.start();
             }
         } catch (IOException ex) {
-            escribirLog("Servicio servidor finalizado.");
+            escribirLog("Servicio servidor finalizado. (" + ex.getMessage() + ")");
         } finally {
-            cerrarRecursos();
+            if (!apagando) { // Durante el apagado, apagar() cierra los recursos al terminar
+                cerrarRecursos();
+            }
+        }
+    }
+
+    /**
+     * Método que apaga el servidor de forma ordenada:
+     * 1. Deja de aceptar conexiones.
+     * 2. Envía a cada cliente la trama APAGADO con el tiempo que debe esperar
+     * para reconectarse, y reserva su sesión.
+     * 3. Espera a que los clientes cierren la conexión y a que se procesen los
+     * mensajes que enviaron antes.
+     * 4. Espera a que se envíen por multicast los mensajes en cola.
+     * 5. Guarda los bloqueos, el historial y las sesiones en el fichero de
+     * estado.
+     * 6. Cierra los sockets.
+     * Los pasos 3 y 4 tienen como límite conjunto chat.apagado.plazoMs. Sólo
+     * tiene efecto la primera vez que se llama.
+     */
+    public void apagar() {
+        synchronized (Servidor.class) {
+            if (apagando) {
+                return;
+            }
+            apagando = true;
+        }
+        long limite = System.currentTimeMillis() + configuracion.getLargo("chat.apagado.plazoMs", 10000);
+        long esperaReconexion = configuracion.getLargo("chat.apagado.esperaReconexionMs", 5000);
+        escribirLog("Apagando el servidor...");
+        try {
+            if (socketServidor != null) {
+                socketServidor.close();
+            }
+        } catch (IOException ex) {
+
+        }
+
+        List<HiloGestionClientes> conectados;
+        synchronized (Servidor.class) {
+            conectados = new ArrayList<>(clientes);
+        }
+        /* El estado se guarda antes de avisar a los clientes, para que un
+        cliente lento no impida guardarlo, y otra vez al terminar el plazo con
+        los mensajes que se hayan difundido mientras tanto. */
+        for (HiloGestionClientes cliente : conectados) {
+            cliente.reservarSesionApagado();
+        }
+        guardarEstado();
+        for (HiloGestionClientes cliente : conectados) {
+            cliente.notificarApagado("El servidor se está reiniciando.", esperaReconexion);
+        }
+
+        boolean vaciado = esperar(() -> clientesActivos() == 0 && pipeline.getPendientes() == 0, limite)
+                && esperar(() -> emisor == null || emisor.getPendientes() == 0, limite);
+        if (!vaciado) {
+            escribirLog("El plazo de apagado ha terminado con " + clientesActivos() + " clientes conectados y "
+                    + (pipeline.getPendientes() + (emisor == null ? 0 : emisor.getPendientes())) + " mensajes pendientes.");
+        }
+
+        guardarEstado();
+        for (HiloGestionClientes cliente : conectados) {
+            cliente.cerrarConexion();
+        }
+        cerrarRecursos();
+        escribirLog("Servidor apagado.");
+    }
+
+    /**
+     * Espera a que se cumpla una condición o se alcance el límite.
+     *
+     * @return true si se ha cumplido la condición.
+     */
+    private static boolean esperar(BooleanSupplier condicion, long limite) {
+        while (!condicion.getAsBoolean()) {
+            if (System.currentTimeMillis() >= limite) {
+                return false;
+            }
+            try {
+                Thread.sleep(INTERVALO_ESPERA_APAGADO_MS);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized int clientesActivos() {
+        int activos = 0;
+        for (HiloGestionClientes cliente : clientes) {
+            if (!cliente.getBloqueado()) {
+                activos++;
+            }
         }
+        return activos;
+    }
+
+    /**
+     * Método que guarda en el fichero de estado (chat.estado.fichero) la
+     * última secuencia, los nicks bloqueados, las sesiones suspendidas y el
+     * historial de mensajes. Se escribe en un fichero temporal que después
+     * sustituye al anterior, para no dejarlo a medias si el proceso termina
+     * durante la escritura.
+     */
+    private static synchronized void guardarEstado() {
+        Path fichero = Path.of(configuracion.getTexto("chat.estado.fichero", FICHERO_ESTADO));
+        Path temporal = fichero.resolveSibling(fichero.getFileName() + ".tmp");
+        List<EntradaHistorial> historial = historialDesde(0);
+        try (DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+            salida.writeInt(VERSION_ESTADO);
+            salida.writeLong(secuencia);
+            salida.writeInt(nicksBloqueados.size());
+            for (String bloqueado : nicksBloqueados) {
+                escribirTexto(salida, bloqueado);
+            }
+            salida.writeInt(sesionesSuspendidas.size());
+            for (Map.Entry<String, SesionSuspendida> sesion : sesionesSuspendidas.entrySet()) {
+                escribirTexto(salida, sesion.getKey());
+                escribirTexto(salida, sesion.getValue().nick);
+            }
+            salida.writeInt(historial.size());
+            for (EntradaHistorial entrada : historial) {
+                salida.writeLong(entrada.getSecuencia());
+                escribirTexto(salida, entrada.getTexto());
+            }
+        } catch (IOException ex) {
+            escribirLog("Error. No se pudo guardar el estado en " + temporal + ": " + ex.getMessage());
+            return;
+        }
+        try {
+            Files.move(temporal, fichero, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            escribirLog("Estado guardado: " + nicksBloqueados.size() + " bloqueos, " + sesionesSuspendidas.size()
+                    + " sesiones y " + historial.size() + " mensajes del historial.");
+        } catch (IOException ex) {
+            escribirLog("Error. No se pudo guardar el estado en " + fichero + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Método que recupera el estado guardado en el último apagado, si existe.
+     * La secuencia continúa desde la guardada para poder reenviar el historial
+     * a los clientes que reanuden su sesión, y las sesiones recuperadas
+     * disponen de un nuevo tiempo de gracia. El fichero se borra una vez
+     * leído, para que tras una caída sin apagado ordenado no se recupere un
+     * estado antiguo con una secuencia anterior a la última enviada.
+     * Se lee completo antes de aplicarlo, de forma que un fichero incompleto
+     * se ignora entero y se conserva para poder examinarlo. Los nicks de las
+     * sesiones recuperadas se reclaman en el cluster al iniciar el NodoCluster.
+     */
+    private static synchronized void cargarEstado() {
+        Path fichero = Path.of(configuracion.getTexto("chat.estado.fichero", FICHERO_ESTADO));
+        if (!Files.isReadable(fichero)) {
+            return;
+        }
+        long secuenciaGuardada;
+        List<String> bloqueos = new ArrayList<>();
+        Map<String, SesionSuspendida> suspendidas = new HashMap<>();
+        List<EntradaHistorial> historial = new ArrayList<>();
+        try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(fichero)))) {
+            if (entrada.readInt() != VERSION_ESTADO) {
+                System.out.println("El fichero de estado " + fichero + " es de otra versión. Se ignora.");
+                return;
+            }
+            secuenciaGuardada = entrada.readLong();
+            for (int i = entrada.readInt(); i > 0; i--) {
+                bloqueos.add(leerTexto(entrada));
+            }
+            long expira = System.currentTimeMillis() + GRACIA_REANUDACION_MS;
+            for (int i = entrada.readInt(); i > 0; i--) {
+                String token = leerTexto(entrada);
+                String nick = leerTexto(entrada);
+                suspendidas.put(token, new SesionSuspendida(nick, expira));
+            }
+            for (int i = entrada.readInt(); i > 0; i--) {
+                long secuenciaMensaje = entrada.readLong();
+                historial.add(new EntradaHistorial(secuenciaMensaje, leerTexto(entrada)));
+            }
+        } catch (EOFException ex) {
+            System.out.println("El fichero de estado " + fichero + " está incompleto. Se ignora.");
+            return;
+        } catch (IOException ex) {
+            System.out.println("No se pudo leer el estado de " + fichero + ": " + ex.getMessage() + ". Se ignora.");
+            return;
+        }
+        secuencia = secuenciaGuardada;
+        nicksBloqueados.addAll(bloqueos);
+        sesionesSuspendidas.putAll(suspendidas);
+        for (SesionSuspendida suspendida : suspendidas.values()) {
+            nicksEnUso.add(suspendida.nick.toLowerCase());
+        }
+        for (EntradaHistorial entrada : historial) {
+            guardarEnHistorial(entrada.getSecuencia(), entrada.getTexto());
+        }
+        System.out.println("Recuperado el estado de " + fichero + ": " + nicksBloqueados.size() + " bloqueos y "
+                + sesionesSuspendidas.size() + " sesiones.");
+        try {
+            Files.delete(fichero);
+        } catch (IOException ex) {
+            System.out.println("No se pudo borrar el fichero de estado " + fichero + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Método que abre el puerto local de administración (chat.admin.puerto,
+     * por defecto el puerto del chat más 100, o 0 para desactivarlo). Si no
+     * se puede abrir, el servidor funciona sin él.
+     */
+    private static void iniciarAdministracion(int puerto) {
+        int puertoAdministracion = configuracion.getEntero("chat.admin.puerto", puerto + 100);
+        if (puertoAdministracion <= 0) {
+            return;
+        }
+        try {
+            administracion = new ControlAdministracion(puertoAdministracion);
+            administracion.start();
+            escribirLog("Administración en localhost:" + puertoAdministracion + ".");
+        } catch (IOException ex) {
+            escribirLog("No se pudo abrir el puerto de administración " + puertoAdministracion + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Método que empieza a grabar los eventos de los clientes en el fichero
+     * indicado en chat.traza.fichero, si lo hay.
+     */
+    private static void abrirTraza() {
+        String fichero = configuracion.getTexto("chat.traza.fichero", "");
+        if (fichero.isEmpty()) {
+            return;
+        }
+        try {
+            traza = new TrazaEventos(Path.of(fichero));
+            System.out.println("Grabando los eventos de los clientes en " + fichero + ".");
+        } catch (IOException ex) {
+            System.out.println("No se pudo crear la traza " + fichero + ": " + ex.getMessage());
+        }
+    }
+
+    private static void escribirTexto(DataOutputStream salida, String texto) throws IOException {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        salida.writeInt(bytes.length);
+        salida.write(bytes);
+    }
+
+    private static String leerTexto(DataInputStream entrada) throws IOException {
+        int longitud = entrada.readInt();
+        if (longitud < 0 || longitud > Codec.LONGITUD_MAXIMA) {
+            throw new IOException("Fichero de estado dañado");
+        }
+        byte[] bytes = new byte[longitud];
+        entrada.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Método que rechaza una conexión que no ha superado el control de
+     * admisión. Se envía el motivo al cliente y se cierra el socket sin llegar
+     * a crear un hilo para él. El log de rechazos se limita a una entrada por
+     * segundo para no saturar el JTextArea durante una avalancha de conexiones.
+     *
+     * @param socketCliente el socket de la conexión rechazada.
+     * @param rechazo el motivo del rechazo.
+     */
+    private void rechazarConexion(Socket socketCliente, ControlAdmision.Rechazo rechazo) {
+        try (socketCliente) {
+            socketCliente.getOutputStream().write(tramasRechazo.get(rechazo));
+        } catch (IOException ex) {
+
+        }
+        long ahora = System.currentTimeMillis();
+        if (ahora - ultimoLogRechazos >= INTERVALO_LOG_RECHAZOS_MS) {
+            ultimoLogRechazos = ahora;
+            escribirLog("Conexión rechazada (" + rechazo + "). " + admision.resumenMetricas());
+        }
+    }
+
+    /**
+     * Método que cierra una conexión ya admitida que no se ha podido
+     * preparar, y libera los huecos que se le reservaron en la admisión.
+     *
+     * @param socketCliente el socket de la conexión.
+     */
+    private void descartarConexion(Socket socketCliente) {
+        admision.finAcceso();
+        admision.liberarConexion();
+        try {
+            socketCliente.close();
+        } catch (IOException ex) {
+
+        }
+    }
+
+    private static byte[] codificarAviso(String texto) {
+        Codec codec = new CodecBinario();
+        ByteBuffer trama = ByteBuffer.allocate(Codec.CABECERA + Codec.longitudMaximaTexto(texto));
+        int inicio = codec.iniciar(trama, TipoTrama.AVISO);
+        codec.ponerTexto(trama, texto);
+        codec.terminar(trama, inicio);
+        return Arrays.copyOf(trama.array(), trama.position());
     }
 
     /**
@@ -174,6 +1096,16 @@ public class Servidor extends JTextArea implements Runnable {
      *
      */
     public void cerrarRecursos() {
+        nodo.detener();
+        if (administracion != null) {
+            administracion.detener();
+        }
+        if (traza != null) {
+            traza.close();
+        }
+        if (emisor != null) {
+            emisor.interrupt();
+        }
         try {
             if (socketMulticast != null) {
                 socketMulticast.close();
@@ -185,4 +1117,40 @@ public class Servidor extends JTextArea implements Runnable {
 
         }
     }
+
+    /**
+     * Mensaje del historial de multicast con su número de secuencia.
+     */
+    public static class EntradaHistorial {
+
+        private final long secuencia;
+        private final String texto;
+
+        public EntradaHistorial(long secuencia, String texto) {
+            this.secuencia = secuencia;
+            this.texto = texto;
+        }
+
+        public long getSecuencia() {
+            return secuencia;
+        }
+
+        public String getTexto() {
+            return texto;
+        }
+    }
+
+    /**
+     * Reserva del nick de un cliente que ha perdido la conexión.
+     */
+    private static class SesionSuspendida {
+
+        private final String nick;
+        private final long expira;
+
+        private SesionSuspendida(String nick, long expira) {
+            this.nick = nick;
+            this.expira = expira;
+        }
+    }
 }
@@ -0,0 +1,372 @@
+package servidor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Esta clase guarda el estado de moderación de las sesiones de los clientes
+ * en arrays de tipos primitivos (una estructura de arrays), indexados por el
+ * identificador de sesión, en lugar de en campos de cada HiloGestionClientes:
+ * - El nick, como índice a una tabla de nicks internados (una sola copia de
+ * cada nick, compartida por las conexiones que lo usan y buscada por su forma
+ * en minúsculas).
+ * - Las advertencias, las marcas de estado de la sesión y los mensajes
+ * recibidos.
+ * - El limitador de mensajes (token bucket): las fichas disponibles y el
+ * instante del último mensaje, que es también la última actividad.
+ * - Las huellas recientes para el DetectorSpam, HUELLAS_POR_CLIENTE por
+ * sesión en un único array.
+ * - El HiloGestionClientes de la sesión, para actuar sobre él (por ejemplo,
+ * desde el ControlAdministracion) sin recorrer la lista de clientes del
+ * Servidor.
+ * La capacidad es fija (el máximo de conexiones del control de admisión), por
+ * lo que los arrays nunca se copian y cada sesión puede modificar sus campos
+ * desde la partición del PipelineModeracion que procesa sus mensajes sin
+ * bloqueos. Abrir y cerrar sesiones sí se sincroniza.
+ *
+ * Las sesiones abiertas se recorren sin crear objetos con siguiente():
+ * for (int id = tabla.siguiente(0); id >= 0; id = tabla.siguiente(id + 1))
+ *
+ * @author Ivan Martin
+ */
+public class TablaSesiones {
+
+    // Marcas de estado de una sesión
+    public static final byte ABIERTA = 1;
+    public static final byte ACTIVA = 2;
+    public static final byte BLOQUEADA = 4;
+    public static final byte SIN_COMPRESION = 8;
+
+    // Las fichas del limitador se guardan en milésimas para usar enteros
+    private static final int MILESIMAS = 1000;
+
+    private final int capacidad;
+    private final int[] nicks;
+    private final byte[] marcas;
+    private final byte[] advertencias;
+    private final int[] mensajes;
+    private final int[] fichas;
+    private final long[] ultimaActividad;
+    private final long[] huellas;
+    private final HiloGestionClientes[] clientes;
+    private final int[] libres;
+    private int numeroLibres;
+    private int abiertas;
+    private volatile int mensajesPorSegundo;
+    private volatile int rafaga;
+
+    // Nicks internados: índice por nick en minúsculas, nick y número de sesiones que lo usan
+    private final Map<String, Integer> indiceNicks;
+    private String[] nicksInternados;
+    private int[] referenciasNicks;
+    private int[] nicksLibres;
+    private int numeroNicksLibres;
+    private int numeroNicks;
+
+    /**
+     * @param capacidad número máximo de sesiones abiertas a la vez.
+     * @param mensajesPorSegundo mensajes por segundo que puede enviar cada
+     * sesión de forma sostenida.
+     * @param rafaga mensajes que puede enviar seguidos antes de que se aplique
+     * el límite.
+     */
+    public TablaSesiones(int capacidad, int mensajesPorSegundo, int rafaga) {
+        this.capacidad = capacidad;
+        this.nicks = new int[capacidad];
+        this.marcas = new byte[capacidad];
+        this.advertencias = new byte[capacidad];
+        this.mensajes = new int[capacidad];
+        this.fichas = new int[capacidad];
+        this.ultimaActividad = new long[capacidad];
+        this.huellas = new long[capacidad * DetectorSpam.HUELLAS_POR_CLIENTE];
+        this.clientes = new HiloGestionClientes[capacidad];
+        this.libres = new int[capacidad];
+        for (int i = 0; i < capacidad; i++) {
+            libres[i] = capacidad - 1 - i; // Se asignan primero los identificadores bajos
+        }
+        this.numeroLibres = capacidad;
+        this.mensajesPorSegundo = mensajesPorSegundo;
+        this.rafaga = rafaga;
+        this.indiceNicks = new HashMap<>();
+        this.nicksInternados = new String[16];
+        this.referenciasNicks = new int[16];
+        this.nicksLibres = new int[16];
+    }
+
+    /**
+     * Abre una sesión para un cliente al que se le ha asignado un nick.
+     *
+     * @param nick el nick asignado.
+     * @param marcasIniciales marcas adicionales a ABIERTA y ACTIVA.
+     * @param cliente el hilo que atiende la conexión.
+     * @return el identificador de la sesión.
+     * @throws IllegalStateException si la tabla está llena, lo que no debe
+     * ocurrir mientras el control de admisión limite las conexiones a la
+     * capacidad de la tabla.
+     */
+    public synchronized int abrir(String nick, byte marcasIniciales, HiloGestionClientes cliente) {
+        if (numeroLibres == 0) {
+            throw new IllegalStateException("Tabla de sesiones llena");
+        }
+        int id = libres[--numeroLibres];
+        nicks[id] = internar(nick);
+        advertencias[id] = 0;
+        mensajes[id] = 0;
+        clientes[id] = cliente;
+        fichas[id] = rafaga * MILESIMAS;
+        ultimaActividad[id] = System.currentTimeMillis();
+        int inicio = id * DetectorSpam.HUELLAS_POR_CLIENTE;
+        for (int i = 0; i < DetectorSpam.HUELLAS_POR_CLIENTE; i++) {
+            huellas[inicio + i] = 0;
+        }
+        marcas[id] = (byte) (ABIERTA | ACTIVA | marcasIniciales);
+        abiertas++;
+        return id;
+    }
+
+    /**
+     * Cierra una sesión y libera su identificador y su referencia al nick.
+     *
+     * @param id el identificador de la sesión.
+     */
+    public synchronized void cerrar(int id) {
+        if ((marcas[id] & ABIERTA) == 0) {
+            return;
+        }
+        marcas[id] = 0;
+        clientes[id] = null;
+        liberarNick(nicks[id]);
+        libres[numeroLibres++] = id;
+        abiertas--;
+    }
+
+    /**
+     * Devuelve la siguiente sesión abierta a partir de un identificador.
+     *
+     * @param desde el primer identificador a comprobar.
+     * @return el identificador de la sesión, o -1 si no hay más.
+     */
+    public int siguiente(int desde) {
+        for (int id = desde; id < capacidad; id++) {
+            if ((marcas[id] & ABIERTA) != 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized String getNick(int id) {
+        return (marcas[id] & ABIERTA) != 0 ? nicksInternados[nicks[id]] : "";
+    }
+
+    public synchronized HiloGestionClientes getCliente(int id) {
+        return clientes[id];
+    }
+
+    /**
+     * Busca la sesión activa de un nick, sin distinguir mayúsculas.
+     *
+     * @param nick el nick a buscar.
+     * @return el identificador de la sesión, o -1 si el nick no tiene ninguna
+     * sesión activa.
+     */
+    public synchronized int buscar(String nick) {
+        Integer indice = indiceNicks.get(nick.toLowerCase());
+        if (indice == null) {
+            return -1;
+        }
+        for (int id = siguiente(0); id >= 0; id = siguiente(id + 1)) {
+            if (nicks[id] == indice && (marcas[id] & ACTIVA) != 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    public boolean tieneMarca(int id, byte marca) {
+        return (marcas[id] & marca) != 0;
+    }
+
+    public synchronized void ponerMarca(int id, byte marca) {
+        if ((marcas[id] & ABIERTA) != 0) {
+            marcas[id] |= marca;
+        }
+    }
+
+    /**
+     * Quita una marca de la sesión.
+     *
+     * @return true si la sesión tenía la marca.
+     */
+    public synchronized boolean quitarMarca(int id, byte marca) {
+        boolean tenia = (marcas[id] & marca) != 0;
+        marcas[id] &= (byte) ~marca;
+        return tenia;
+    }
+
+    /**
+     * Suma una advertencia a la sesión.
+     *
+     * @return el número de advertencias acumuladas.
+     */
+    public int advertir(int id) {
+        return ++advertencias[id];
+    }
+
+    public int getAdvertencias(int id) {
+        return advertencias[id];
+    }
+
+    public int getMensajes(int id) {
+        return mensajes[id];
+    }
+
+    /**
+     * @return las fichas disponibles de la sesión en su último mensaje, en
+     * milésimas de mensaje.
+     */
+    public int getFichas(int id) {
+        return fichas[id];
+    }
+
+    public long getUltimaActividad(int id) {
+        return ultimaActividad[id];
+    }
+
+    /**
+     * Registra un mensaje de la sesión en su limitador: recarga las fichas
+     * según el tiempo transcurrido desde el anterior y consume una.
+     *
+     * @param id el identificador de la sesión.
+     * @param ahora el instante actual en milisegundos.
+     * @return true si el mensaje está dentro del límite, false si se debe
+     * descartar.
+     */
+    public boolean consumir(int id, long ahora) {
+        mensajes[id]++;
+        long transcurrido = Math.max(0, ahora - ultimaActividad[id]);
+        long disponibles = Math.min((long) rafaga * MILESIMAS,
+                fichas[id] + transcurrido * mensajesPorSegundo);
+        ultimaActividad[id] = ahora;
+        if (disponibles < MILESIMAS) {
+            fichas[id] = (int) disponibles;
+            return false;
+        }
+        fichas[id] = (int) (disponibles - MILESIMAS);
+        return true;
+    }
+
+    /**
+     * Cambia los límites de mensajes de todas las sesiones.
+     */
+    public void ajustarLimite(int mensajesPorSegundo, int rafaga) {
+        this.mensajesPorSegundo = mensajesPorSegundo;
+        this.rafaga = rafaga;
+    }
+
+    public int getMensajesPorSegundo() {
+        return mensajesPorSegundo;
+    }
+
+    public int getRafaga() {
+        return rafaga;
+    }
+
+    /**
+     * @return el array de huellas de todas las sesiones, para el
+     * DetectorSpam.
+     */
+    public long[] getHuellas() {
+        return huellas;
+    }
+
+    /**
+     * @return la posición de las huellas de la sesión en getHuellas().
+     */
+    public int inicioHuellas(int id) {
+        return id * DetectorSpam.HUELLAS_POR_CLIENTE;
+    }
+
+    public synchronized int getAbiertas() {
+        return abiertas;
+    }
+
+    public int getCapacidad() {
+        return capacidad;
+    }
+
+    /**
+     * Calcula la memoria que ocupa cada sesión en esta tabla: los campos de
+     * los arrays de estado más la parte proporcional de la tabla de nicks
+     * internados (estimando las cabeceras de los objetos de una JVM de 64
+     * bits con punteros comprimidos). No incluye lo que cuesta la conexión
+     * del cliente fuera de la tabla: la pila de su hilo, los buffers de su
+     * CanalTramas y su cola de salida, que son la mayor parte (la memoria
+     * real por sesión la mide rendimiento.MemoriaSesiones).
+     *
+     * @return los bytes de la tabla por sesión abierta, o sólo los de los
+     * arrays si no hay ninguna.
+     */
+    public synchronized long bytesTablaPorSesion() {
+        // Nick, marcas, advertencias, mensajes, fichas, actividad, huellas, cliente y hueco libre
+        long fijos = Integer.BYTES + Byte.BYTES + Byte.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES
+                + (long) DetectorSpam.HUELLAS_POR_CLIENTE * Long.BYTES + Integer.BYTES + Integer.BYTES;
+        if (abiertas == 0) {
+            return fijos;
+        }
+        long nicksBytes = 0;
+        for (Map.Entry<String, Integer> entrada : indiceNicks.entrySet()) {
+            String nick = nicksInternados[entrada.getValue()];
+            // Entrada del HashMap (32) + clave y nick (String 24 + array 16 + caracteres, compartidos si coinciden)
+            nicksBytes += 32 + 40 + entrada.getKey().length() + 16 + Integer.BYTES * 3;
+            if (nick != entrada.getKey()) {
+                nicksBytes += 40 + nick.length();
+            }
+        }
+        return fijos + nicksBytes / abiertas;
+    }
+
+    public String resumenMemoria() {
+        return "Sesiones: " + getAbiertas() + " abiertas de " + capacidad + ", " + bytesTablaPorSesion()
+                + " bytes por sesión en la tabla (sin el hilo ni los buffers de la conexión).";
+    }
+
+    /**
+     * Devuelve el índice del nick en la tabla de internados, añadiéndolo si
+     * no está.
+     */
+    private int internar(String nick) {
+        String clave = nick.toLowerCase();
+        Integer indice = indiceNicks.get(clave);
+        if (indice != null) {
+            referenciasNicks[indice]++;
+            return indice;
+        }
+        int nuevo;
+        if (numeroNicksLibres > 0) {
+            nuevo = nicksLibres[--numeroNicksLibres];
+        } else {
+            if (numeroNicks == nicksInternados.length) {
+                int mayor = nicksInternados.length * 2;
+                nicksInternados = Arrays.copyOf(nicksInternados, mayor);
+                referenciasNicks = Arrays.copyOf(referenciasNicks, mayor);
+                nicksLibres = Arrays.copyOf(nicksLibres, mayor);
+            }
+            nuevo = numeroNicks++;
+        }
+        // Si el nick ya está en minúsculas, la clave y el nick son el mismo objeto
+        nicksInternados[nuevo] = clave.equals(nick) ? clave : nick;
+        referenciasNicks[nuevo] = 1;
+        indiceNicks.put(clave, nuevo);
+        return nuevo;
+    }
+
+    private void liberarNick(int indice) {
+        if (--referenciasNicks[indice] == 0) {
+            indiceNicks.remove(nicksInternados[indice].toLowerCase());
+            nicksInternados[indice] = null;
+            nicksLibres[numeroNicksLibres++] = indice;
+        }
+    }
+}
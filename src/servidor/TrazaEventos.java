@@ -0,0 +1,307 @@
+package servidor;
+
+import comun.Codec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Esta clase graba en un fichero binario, en el orden en que llegan, los
+ * eventos que los clientes generan en el servidor: conexiones, solicitudes de
+ * acceso, mensajes, salidas y desconexiones. La traza se puede reproducir
+ * después contra un servidor con rendimiento.ReproduccionTraza, para repetir
+ * la carga real de una hora punta con cada versión.
+ * Formato del fichero:
+ * - Cabecera: el entero MAGICO, un byte con la VERSION y el instante de inicio
+ * en milisegundos.
+ * - Un registro por evento: un byte con el tipo, los microsegundos desde el
+ * evento anterior y el identificador de la conexión (ambos como enteros de
+ * longitud variable, de 7 bits por byte), seguidos de los datos del tipo:
+ * - HOLA: las capacidades, un byte a 1 si se pide reanudar una sesión, el
+ * número de nicks candidatos y los nicks.
+ * - MENSAJE: el texto.
+ * Los textos se escriben como su longitud en bytes (entero variable) seguida
+ * de los bytes UTF-8. El token de las sesiones no se graba.
+ * Los métodos de grabación son sincronizados, de forma que el orden del
+ * fichero es el orden en que el servidor recibió los eventos. Si falla la
+ * escritura, se deja de grabar sin afectar al servicio.
+ *
+ * @author Ivan Martin
+ */
+public class TrazaEventos implements Closeable {
+
+    public static final int MAGICO = 0x43485452; // "CHTR"
+    public static final int VERSION = 1;
+
+    // Tipos de evento
+    public static final byte CONEXION = 1;
+    public static final byte HOLA = 2;
+    public static final byte MENSAJE = 3;
+    public static final byte SALIR = 4;
+    public static final byte DESCONEXION = 5;
+
+    private final Path fichero;
+    private DataOutputStream salida;
+    private long ultimoInstante;
+    private long eventos;
+
+    /**
+     * Crea el fichero de la traza, sustituyendo al anterior si existe.
+     *
+     * @param fichero el fichero donde se graba.
+     * @throws IOException si no se puede crear.
+     */
+    public TrazaEventos(Path fichero) throws IOException {
+        this.fichero = fichero;
+        this.salida = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(fichero), 1 << 16));
+        salida.writeInt(MAGICO);
+        salida.writeByte(VERSION);
+        salida.writeLong(System.currentTimeMillis());
+        ultimoInstante = System.nanoTime();
+    }
+
+    public void registrarConexion(long conexion) {
+        registrar(CONEXION, conexion, null, 0, false, null);
+    }
+
+    public void registrarHola(long conexion, int capacidades, boolean reanudar, List<String> candidatos) {
+        registrar(HOLA, conexion, null, capacidades, reanudar, candidatos);
+    }
+
+    public void registrarMensaje(long conexion, String mensaje) {
+        registrar(MENSAJE, conexion, mensaje, 0, false, null);
+    }
+
+    public void registrarSalida(long conexion) {
+        registrar(SALIR, conexion, null, 0, false, null);
+    }
+
+    public void registrarDesconexion(long conexion) {
+        registrar(DESCONEXION, conexion, null, 0, false, null);
+    }
+
+    private synchronized void registrar(byte tipo, long conexion, String texto, int capacidades,
+            boolean reanudar, List<String> candidatos) {
+        if (salida == null) {
+            return;
+        }
+        try {
+            long ahora = System.nanoTime();
+            salida.writeByte(tipo);
+            escribirVariable(salida, (ahora - ultimoInstante) / 1000);
+            escribirVariable(salida, conexion);
+            ultimoInstante = ahora;
+            if (tipo == HOLA) {
+                escribirVariable(salida, capacidades);
+                salida.writeByte(reanudar ? 1 : 0);
+                escribirVariable(salida, candidatos.size());
+                for (String candidato : candidatos) {
+                    escribirTexto(salida, candidato);
+                }
+            } else if (tipo == MENSAJE) {
+                escribirTexto(salida, texto);
+            }
+            eventos++;
+        } catch (IOException ex) {
+            Servidor.escribirLog("Error al grabar la traza " + fichero + ", se deja de grabar: " + ex.getMessage());
+            cerrarSalida();
+        }
+    }
+
+    /**
+     * @return el número de eventos grabados.
+     */
+    public synchronized long getEventos() {
+        return eventos;
+    }
+
+    /**
+     * Vuelca al fichero los eventos pendientes y lo cierra.
+     */
+    @Override
+    public synchronized void close() {
+        cerrarSalida();
+    }
+
+    private void cerrarSalida() {
+        if (salida == null) {
+            return;
+        }
+        try {
+            salida.close();
+        } catch (IOException ex) {
+
+        }
+        salida = null;
+    }
+
+    private static void escribirVariable(DataOutputStream salida, long valor) throws IOException {
+        while ((valor & ~0x7FL) != 0) {
+            salida.writeByte((int) (valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        salida.writeByte((int) valor);
+    }
+
+    private static void escribirTexto(DataOutputStream salida, String texto) throws IOException {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        escribirVariable(salida, bytes.length);
+        salida.write(bytes);
+    }
+
+    /**
+     * Evento leído de una traza. Lector.siguiente() reutiliza el mismo objeto
+     * para todos los eventos.
+     */
+    public static class Evento {
+
+        private byte tipo;
+        private long instante;
+        private long conexion;
+        private String mensaje;
+        private int capacidades;
+        private boolean reanudar;
+        private final List<String> candidatos = new ArrayList<>();
+
+        public byte getTipo() {
+            return tipo;
+        }
+
+        /**
+         * @return microsegundos desde el primer evento de la traza.
+         */
+        public long getInstante() {
+            return instante;
+        }
+
+        public long getConexion() {
+            return conexion;
+        }
+
+        public String getMensaje() {
+            return mensaje;
+        }
+
+        public int getCapacidades() {
+            return capacidades;
+        }
+
+        public boolean getReanudar() {
+            return reanudar;
+        }
+
+        public List<String> getCandidatos() {
+            return candidatos;
+        }
+    }
+
+    /**
+     * Lee de forma secuencial los eventos de una traza.
+     */
+    public static class Lector implements Closeable {
+
+        private final DataInputStream entrada;
+        private final long inicio;
+        private long instante;
+        private boolean primero = true;
+
+        public Lector(Path fichero) throws IOException {
+            entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(fichero), 1 << 16));
+            if (entrada.readInt() != MAGICO || entrada.readByte() != VERSION) {
+                entrada.close();
+                throw new IOException("El fichero " + fichero + " no es una traza de eventos compatible");
+            }
+            inicio = entrada.readLong();
+        }
+
+        /**
+         * @return el instante en milisegundos en que empezó la grabación.
+         */
+        public long getInicio() {
+            return inicio;
+        }
+
+        /**
+         * Lee el siguiente evento.
+         *
+         * @param evento el evento donde se guardan los datos leídos.
+         * @return false si se ha llegado al final de la traza.
+         * @throws IOException si la traza está dañada.
+         */
+        public boolean siguiente(Evento evento) throws IOException {
+            int tipo = entrada.read();
+            if (tipo < 0) {
+                return false;
+            }
+            try {
+                long espera = leerVariable();
+                // El primer evento marca el instante 0 de la reproducción
+                instante = primero ? 0 : instante + espera;
+                primero = false;
+                evento.tipo = (byte) tipo;
+                evento.instante = instante;
+                evento.conexion = leerVariable();
+                evento.mensaje = null;
+                evento.candidatos.clear();
+                switch (evento.tipo) {
+                    case HOLA:
+                        evento.capacidades = (int) leerVariable();
+                        evento.reanudar = entrada.readByte() != 0;
+                        for (long i = leerVariable(); i > 0; i--) {
+                            evento.candidatos.add(leerTexto());
+                        }
+                        break;
+                    case MENSAJE:
+                        evento.mensaje = leerTexto();
+                        break;
+                    case CONEXION:
+                    case SALIR:
+                    case DESCONEXION:
+                        break;
+                    default:
+                        throw new IOException("Tipo de evento desconocido en la traza: " + tipo);
+                }
+                return true;
+            } catch (EOFException ex) {
+                // Traza cortada al terminar el servidor sin cerrarla: se ignora el último evento
+                return false;
+            }
+        }
+
+        private long leerVariable() throws IOException {
+            long valor = 0;
+            for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+                int octeto = entrada.readUnsignedByte();
+                valor |= (long) (octeto & 0x7F) << desplazamiento;
+                if ((octeto & 0x80) == 0) {
+                    return valor;
+                }
+            }
+            throw new IOException("Traza dañada");
+        }
+
+        private String leerTexto() throws IOException {
+            long longitud = leerVariable();
+            if (longitud > Codec.LONGITUD_MAXIMA) {
+                throw new IOException("Traza dañada");
+            }
+            byte[] bytes = new byte[(int) longitud];
+            entrada.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            entrada.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package comun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Prueba el CodecBinario, la Trama y el CanalTramas: que los campos de una
+ * trama se leen como se escribieron, incluidos textos con caracteres de
+ * varios bytes y tramas mayores que el buffer inicial del canal, y que los
+ * datos truncados o con longitudes fuera de rango se rechazan con una
+ * ProtocolException en lugar de leer fuera de la trama.
+ *
+ * @author Ivan Martin
+ */
+public class PruebaCodec {
+
+    private static final CodecBinario CODEC = new CodecBinario();
+
+    public static void main(String[] args) throws Exception {
+        idaYVuelta();
+        tramaIncompleta();
+        longitudesDeTrama();
+        camposFueraDeLaTrama();
+        canal();
+        System.out.println("PruebaCodec: correcta");
+    }
+
+    private static void idaYVuelta() throws Exception {
+        String[] textos = {"", "hola", "añoranza €", "emoji 😀 al final"};
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int inicio = CODEC.iniciar(buffer, TipoTrama.DIFUSION);
+        CODEC.ponerEntero(buffer, -7);
+        CODEC.ponerLargo(buffer, Long.MAX_VALUE);
+        for (String texto : textos) {
+            CODEC.ponerTexto(buffer, texto);
+        }
+        CODEC.ponerTexto(buffer, "sin pareja \uD83D");
+        CODEC.terminar(buffer, inicio);
+        inicio = CODEC.iniciar(buffer, TipoTrama.SALIR);
+        CODEC.terminar(buffer, inicio);
+        buffer.flip();
+
+        Trama trama = new Trama();
+        comprobar(CODEC.decodificar(buffer, trama), "No se ha decodificado la primera trama");
+        comprobar(trama.getTipo() == TipoTrama.DIFUSION, "Tipo " + trama.getTipo());
+        comprobar(trama.leerEntero() == -7, "Entero distinto");
+        comprobar(trama.leerLargo() == Long.MAX_VALUE, "Largo distinto");
+        for (String texto : textos) {
+            String leido = trama.leerTexto();
+            comprobar(leido.equals(texto), "Texto \"" + leido + "\", se esperaba \"" + texto + "\"");
+        }
+        String sinPareja = trama.leerTexto();
+        comprobar(sinPareja.equals("sin pareja ?"), "Sustituto sin pareja codificado como \"" + sinPareja + "\"");
+        comprobar(CODEC.decodificar(buffer, trama), "No se ha decodificado la segunda trama");
+        comprobar(trama.getTipo() == TipoTrama.SALIR, "Tipo " + trama.getTipo());
+        comprobar(!buffer.hasRemaining(), "Quedan bytes tras las dos tramas");
+    }
+
+    private static void tramaIncompleta() throws Exception {
+        ByteBuffer completa = ByteBuffer.allocate(64);
+        int inicio = CODEC.iniciar(completa, TipoTrama.MENSAJE);
+        CODEC.ponerTexto(completa, "mensaje");
+        CODEC.terminar(completa, inicio);
+        completa.flip();
+        Trama trama = new Trama();
+        // Con cualquier prefijo de la trama falta algo, y no se consume nada
+        for (int longitud = 0; longitud < completa.limit(); longitud++) {
+            ByteBuffer parcial = completa.duplicate().limit(longitud);
+            comprobar(!CODEC.decodificar(parcial, trama), "Decodificada con sólo " + longitud + " bytes");
+            comprobar(parcial.position() == 0, "Se han consumido bytes de una trama incompleta");
+        }
+        comprobar(CODEC.decodificar(completa, trama), "No se ha decodificado la trama completa");
+        comprobar(trama.leerTexto().equals("mensaje"), "Texto distinto");
+    }
+
+    private static void longitudesDeTrama() {
+        for (int longitud : new int[]{0, -1, Integer.MIN_VALUE, Codec.LONGITUD_MAXIMA + 1, Integer.MAX_VALUE}) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            buffer.putInt(longitud).put(TipoTrama.SALIR.getCodigo()).flip();
+            rechazada(() -> CODEC.decodificar(buffer, new Trama()), "longitud de trama " + longitud);
+        }
+        ByteBuffer desconocida = ByteBuffer.allocate(16);
+        desconocida.putInt(1).put((byte) 127).flip();
+        rechazada(() -> CODEC.decodificar(desconocida, new Trama()), "código de trama desconocido");
+    }
+
+    private static void camposFueraDeLaTrama() throws Exception {
+        // Trama con un entero, seguida de otra que no se debe leer como parte de ella
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int inicio = CODEC.iniciar(buffer, TipoTrama.AVISO);
+        CODEC.ponerEntero(buffer, 5);
+        CODEC.terminar(buffer, inicio);
+        inicio = CODEC.iniciar(buffer, TipoTrama.MENSAJE);
+        CODEC.ponerTexto(buffer, "siguiente");
+        CODEC.terminar(buffer, inicio);
+        buffer.flip();
+        Trama trama = new Trama();
+        CODEC.decodificar(buffer, trama);
+        rechazada(trama::leerLargo, "largo más allá del final");
+        rechazada(trama::leerTexto, "texto de 5 bytes en una trama de 4");
+
+        for (int longitud : new int[]{-1, Integer.MAX_VALUE}) {
+            ByteBuffer texto = ByteBuffer.allocate(64);
+            inicio = CODEC.iniciar(texto, TipoTrama.MENSAJE);
+            CODEC.ponerEntero(texto, longitud);
+            texto.put(new byte[8]);
+            CODEC.terminar(texto, inicio);
+            texto.flip();
+            Trama conTexto = new Trama();
+            CODEC.decodificar(texto, conTexto);
+            rechazada(conTexto::leerTexto, "longitud de texto " + longitud);
+        }
+    }
+
+    private static void canal() throws Exception {
+        // Mayor que el buffer inicial del canal, para que tenga que crecer al leer
+        String grande = "x".repeat(100 * 1024);
+        ByteArrayOutputStream enviado = new ByteArrayOutputStream();
+        CanalTramas emisor = new CanalTramas(CODEC, new ByteArrayInputStream(new byte[0]), enviado);
+        emisor.enviar(TipoTrama.MENSAJE, grande);
+        emisor.enviar(TipoTrama.MENSAJE, "después");
+        byte[] bytes = enviado.toByteArray();
+
+        CanalTramas receptor = new CanalTramas(CODEC, new ByteArrayInputStream(bytes), new ByteArrayOutputStream());
+        comprobar(receptor.leer().leerTexto().equals(grande), "Trama grande distinta");
+        comprobar(receptor.leer().leerTexto().equals("después"), "Trama siguiente distinta");
+        try {
+            receptor.leer();
+            throw new AssertionError("Se ha leído una trama tras el final");
+        } catch (EOFException ex) {
+            // Esperado
+        }
+    }
+
+    private static void rechazada(Lectura lectura, String caso) {
+        try {
+            lectura.leer();
+        } catch (ProtocolException ex) {
+            return;
+        } catch (RuntimeException ex) {
+            throw new AssertionError("Se esperaba ProtocolException con " + caso + ", no " + ex, ex);
+        }
+        throw new AssertionError("No se ha rechazado una trama con " + caso);
+    }
+
+    private static void comprobar(boolean condicion, String mensaje) {
+        if (!condicion) {
+            throw new AssertionError(mensaje);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Lectura {
+
+        Object leer() throws ProtocolException;
+    }
+}
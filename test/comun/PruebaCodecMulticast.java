@@ -0,0 +1,143 @@
+package comun;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Prueba el CodecMulticast: que los lotes, comprimidos o no, se decodifican
+ * con los mismos mensajes y secuencias, que ningún datagrama supera el
+ * tamaño máximo de UDP, y que los datagramas truncados o con una longitud
+ * original fuera de rango se rechazan con una ProtocolException.
+ *
+ * @author Ivan Martin
+ */
+public class PruebaCodecMulticast {
+
+    private static final int TAMANO_LOTE = 4096;
+    private static final int UMBRAL_COMPRESION = 512;
+
+    public static void main(String[] args) throws Exception {
+        CodecMulticast codec = new CodecMulticast();
+        try {
+            idaYVuelta(codec);
+            limites(codec);
+            datagramasNoValidos(codec);
+        } finally {
+            codec.cerrar();
+        }
+        System.out.println("PruebaCodecMulticast: correcta");
+    }
+
+    private static void idaYVuelta(CodecMulticast codec) throws Exception {
+        List<String> mensajes = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            mensajes.add("ana: hola, ¿qué tal? jaja " + i);
+        }
+        for (boolean comprimir : new boolean[]{false, true}) {
+            codec.iniciarLote();
+            for (int i = 0; i < mensajes.size(); i++) {
+                comprobar(codec.anadir(100 + i, mensajes.get(i), TAMANO_LOTE), "No cabe el mensaje " + i);
+            }
+            int longitud = codec.cerrarLote(comprimir, UMBRAL_COMPRESION);
+            byte[] datagrama = codec.getDatagrama();
+            boolean comprimido = (datagrama[0] & CodecMulticast.COMPRIMIDO) != 0;
+            comprobar(comprimido == comprimir, "Lote comprimido: " + comprimido + ", se pedía " + comprimir);
+            comprobar(!comprimir || longitud < codec.getTamanoLote(), "La compresión no ha reducido el lote");
+
+            List<String> recibidos = new ArrayList<>();
+            List<Long> secuencias = new ArrayList<>();
+            new CodecMulticast().decodificar(datagrama.clone(), longitud, (secuencia, mensaje) -> {
+                secuencias.add(secuencia);
+                recibidos.add(mensaje);
+            });
+            comprobar(recibidos.equals(mensajes), "Mensajes distintos al decodificar (comprimir " + comprimir + ")");
+            comprobar(secuencias.get(0) == 100 && secuencias.get(secuencias.size() - 1) == 100 + mensajes.size() - 1,
+                    "Secuencias distintas: " + secuencias);
+        }
+    }
+
+    private static void limites(CodecMulticast codec) throws Exception {
+        // Un lote lleno de texto que no se comprime no puede superar el máximo de un datagrama
+        Random aleatorio = new Random(7);
+        codec.iniciarLote();
+        int mensajes = 0;
+        while (codec.anadir(mensajes, textoAleatorio(aleatorio, 1000), Integer.MAX_VALUE)) {
+            mensajes++;
+        }
+        comprobar(mensajes > 1, "El lote lleno sólo tiene " + mensajes + " mensajes");
+        for (boolean comprimir : new boolean[]{false, true}) {
+            int longitud = codec.cerrarLote(comprimir, UMBRAL_COMPRESION);
+            comprobar(longitud <= CodecMulticast.TAMANO_MAXIMO_DATAGRAMA,
+                    "Datagrama de " + longitud + " bytes (comprimir " + comprimir + ")");
+            int[] recibidos = {0};
+            new CodecMulticast().decodificar(codec.getDatagrama().clone(), longitud, (secuencia, mensaje) -> recibidos[0]++);
+            comprobar(recibidos[0] == mensajes, "Recibidos " + recibidos[0] + " de " + mensajes + " mensajes");
+        }
+
+        // Un mensaje que no cabe en un datagrama no se añade, ni siquiera en un lote vacío
+        codec.iniciarLote();
+        comprobar(!codec.anadir(1, "x".repeat(CodecMulticast.TAMANO_MAXIMO_DATAGRAMA), Integer.MAX_VALUE),
+                "Se ha añadido un mensaje mayor que un datagrama");
+        comprobar(codec.getMensajesLote() == 0 && codec.getTamanoLote() == 1, "El lote no ha quedado vacío");
+    }
+
+    private static void datagramasNoValidos(CodecMulticast codec) throws Exception {
+        CodecMulticast receptor = new CodecMulticast();
+        try {
+            rechazado(receptor, new byte[0], "datagrama vacío");
+
+            codec.iniciarLote();
+            codec.anadir(1, "un mensaje que se va a truncar", TAMANO_LOTE);
+            int longitud = codec.cerrarLote(false, UMBRAL_COMPRESION);
+            rechazado(receptor, Arrays.copyOf(codec.getDatagrama(), longitud - 3), "trama truncada");
+
+            codec.iniciarLote();
+            for (int i = 0; i < 40; i++) {
+                codec.anadir(i, "luis: quedamos luego para el partido " + i, TAMANO_LOTE);
+            }
+            longitud = codec.cerrarLote(true, UMBRAL_COMPRESION);
+            byte[] comprimido = Arrays.copyOf(codec.getDatagrama(), longitud);
+            comprobar((comprimido[0] & CodecMulticast.COMPRIMIDO) != 0, "El lote de prueba no se ha comprimido");
+            rechazado(receptor, Arrays.copyOf(comprimido, 3), "cabecera comprimida truncada");
+            rechazado(receptor, Arrays.copyOf(comprimido, longitud / 2), "datos comprimidos truncados");
+            for (int original : new int[]{-1, Codec.LONGITUD_MAXIMA + 1}) {
+                byte[] alterado = comprimido.clone();
+                ByteBuffer.wrap(alterado).putInt(1, original);
+                rechazado(receptor, alterado, "longitud original " + original);
+            }
+        } finally {
+            receptor.cerrar();
+        }
+    }
+
+    private static String textoAleatorio(Random aleatorio, int longitud) {
+        StringBuilder texto = new StringBuilder(longitud);
+        for (int i = 0; i < longitud; i++) {
+            texto.append((char) ('!' + aleatorio.nextInt(90)));
+        }
+        return texto.toString();
+    }
+
+    private static void rechazado(CodecMulticast receptor, byte[] datagrama, String caso) throws IOException {
+        try {
+            receptor.decodificar(datagrama, datagrama.length, (secuencia, mensaje) -> {
+            });
+        } catch (ProtocolException ex) {
+            return;
+        } catch (RuntimeException ex) {
+            throw new AssertionError("Se esperaba ProtocolException con " + caso + ", no " + ex, ex);
+        }
+        throw new AssertionError("No se ha rechazado un datagrama con " + caso);
+    }
+
+    private static void comprobar(boolean condicion, String mensaje) {
+        if (!condicion) {
+            throw new AssertionError(mensaje);
+        }
+    }
+}
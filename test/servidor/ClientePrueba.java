@@ -0,0 +1,100 @@
+package servidor;
+
+import comun.CanalTramas;
+import comun.TipoTrama;
+import comun.Trama;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Cliente mínimo del protocolo para las pruebas: pide acceso y lee las
+ * tramas del servidor una a una. Recibe el chat por TCP (sin multicast),
+ * salvo que se indiquen otras capacidades.
+ *
+ * @author Ivan Martin
+ */
+class ClientePrueba implements AutoCloseable {
+
+    private static final int VERSION_PROTOCOLO = 3;
+    private static final int PLAZO_LECTURA_MS = 10000;
+
+    private final Socket socket;
+    private final CanalTramas canal;
+
+    ClientePrueba(int puerto) throws IOException {
+        socket = new Socket("localhost", puerto);
+        socket.setSoTimeout(PLAZO_LECTURA_MS);
+        canal = new CanalTramas(socket);
+        esperar(TipoTrama.AVISO); // Bienvenida
+    }
+
+    /**
+     * Pide acceso con un nick y espera la respuesta.
+     *
+     * @param nick el nick.
+     * @param token el token de la sesión a reanudar, o "" si no la hay.
+     * @param ultimaSecuencia la última secuencia recibida.
+     * @param capacidades las capacidades que anuncia el cliente.
+     * @return la trama ACEPTADO o RECHAZADO.
+     */
+    Trama pedirAcceso(String nick, String token, long ultimaSecuencia, int capacidades) throws IOException {
+        canal.iniciar(TipoTrama.HOLA);
+        canal.ponerEntero(VERSION_PROTOCOLO);
+        canal.ponerEntero(capacidades);
+        canal.ponerTexto(token);
+        canal.ponerLargo(ultimaSecuencia);
+        canal.ponerEntero(1);
+        canal.ponerTexto(nick);
+        canal.terminar();
+        canal.vaciar();
+        Trama respuesta;
+        do {
+            respuesta = canal.leer();
+        } while (respuesta.getTipo() != TipoTrama.ACEPTADO && respuesta.getTipo() != TipoTrama.RECHAZADO);
+        return respuesta;
+    }
+
+    /**
+     * Pide acceso con un nick nuevo y comprueba que se concede.
+     *
+     * @return el token de la sesión.
+     */
+    String entrar(String nick) throws IOException {
+        Trama respuesta = pedirAcceso(nick, "", 0, 0);
+        ServidorPrueba.comprobar(respuesta.getTipo() == TipoTrama.ACEPTADO, "Acceso rechazado a " + nick);
+        respuesta.leerTexto();
+        return respuesta.leerTexto();
+    }
+
+    void enviar(String mensaje) throws IOException {
+        canal.enviar(TipoTrama.MENSAJE, mensaje);
+    }
+
+    void salir() throws IOException {
+        canal.enviar(TipoTrama.SALIR);
+    }
+
+    /**
+     * Lee tramas hasta recibir una del tipo indicado.
+     *
+     * @return la trama recibida.
+     * @throws IOException si la conexión se cierra antes.
+     */
+    Trama esperar(TipoTrama tipo) throws IOException {
+        Trama trama;
+        do {
+            trama = canal.leer();
+        } while (trama.getTipo() != tipo);
+        return trama;
+    }
+
+    Trama leer() throws IOException {
+        return canal.leer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+        socket.close();
+    }
+}
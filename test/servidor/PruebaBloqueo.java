@@ -0,0 +1,49 @@
+package servidor;
+
+import static servidor.ServidorPrueba.comprobar;
+
+import comun.TipoTrama;
+import comun.Trama;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Prueba que un nick bloqueado desde la administración mientras su sesión
+ * está suspendida no puede volver a entrar con el token de esa sesión.
+ *
+ * @author Ivan Martin
+ */
+public class PruebaBloqueo {
+
+    public static void main(String[] args) throws Exception {
+        Path estado = ServidorPrueba.ficheroTemporal("bloqueo");
+        try (ServidorPrueba servidor = new ServidorPrueba(estado)) {
+            String token;
+            long secuencia;
+            try (ClientePrueba cliente = servidor.conectar()) {
+                token = cliente.entrar("ana");
+                secuencia = cliente.esperar(TipoTrama.DIFUSION).leerLargo();
+            } // Se corta la conexión sin SALIR: la sesión queda suspendida
+            esperarDesconexion(servidor, "ana");
+
+            List<String> respuesta = servidor.administrar("bloquear ana");
+            comprobar(respuesta.get(0).equals("OK"), "Bloqueo rechazado: " + respuesta);
+
+            try (ClientePrueba cliente = servidor.conectar()) {
+                Trama trama = cliente.pedirAcceso("ana", token, secuencia, 0);
+                comprobar(trama.getTipo() == TipoTrama.RECHAZADO, "Se ha reanudado la sesión de un nick bloqueado");
+            }
+        }
+        System.out.println("PruebaBloqueo: correcta");
+    }
+
+    private static void esperarDesconexion(ServidorPrueba servidor, String nick) throws Exception {
+        for (int intento = 0; intento < 500; intento++) {
+            if (servidor.administrar("sesiones").stream().noneMatch(linea -> linea.contains(" " + nick + " "))) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("El servidor no ha detectado la desconexión de " + nick);
+    }
+}
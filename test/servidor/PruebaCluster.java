@@ -0,0 +1,68 @@
+package servidor;
+
+import comun.TipoTrama;
+import comun.Trama;
+import java.io.IOException;
+
+/**
+ * Prueba que un mensaje mayor que 64 KB enviado a un nodo que no es el
+ * emisor llega por el bus al emisor del cluster y se difunde a los clientes
+ * de los dos nodos.
+ *
+ * @author Ivan Martin
+ */
+public class PruebaCluster {
+
+    private static final int LONGITUD_MENSAJE = 100 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int busA = ServidorPrueba.puertoLibre();
+        int busB = ServidorPrueba.puertoLibre();
+        try (ServidorPrueba nodoA = new ServidorPrueba(ServidorPrueba.ficheroTemporal("clusterA"),
+                "chat.nodo.id=A", "chat.nodo.bus=" + busA, "chat.nodo.pares=B@localhost:" + busB);
+                ServidorPrueba nodoB = new ServidorPrueba(ServidorPrueba.ficheroTemporal("clusterB"),
+                        "chat.nodo.id=B", "chat.nodo.bus=" + busB, "chat.nodo.pares=A@localhost:" + busA)) {
+            esperarBus(nodoA);
+            esperarBus(nodoB);
+            try (ClientePrueba ana = nodoA.conectar();
+                    ClientePrueba bea = nodoB.conectar()) {
+                ana.entrar("ana");
+                bea.entrar("bea");
+                String mensaje = "x".repeat(LONGITUD_MENSAJE);
+                bea.enviar(mensaje);
+                recibir(ana, "bea: " + mensaje);
+                recibir(bea, "bea: " + mensaje);
+            }
+        }
+        System.out.println("PruebaCluster: correcta");
+    }
+
+    /**
+     * Espera a que el nodo conozca la carga de los dos nodos, es decir, a que
+     * se hayan conectado por el bus.
+     */
+    private static void esperarBus(ServidorPrueba nodo) throws Exception {
+        for (int intento = 0; intento < 500; intento++) {
+            if (nodo.administrar("metricas").stream()
+                    .anyMatch(linea -> linea.matches("Carga de los nodos: A=\\d+ B=\\d+"))) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("Los nodos no se han conectado por el bus");
+    }
+
+    /**
+     * Lee difusiones hasta recibir el texto indicado, o falla si deja de
+     * recibirlas.
+     */
+    private static void recibir(ClientePrueba cliente, String texto) throws IOException {
+        while (true) {
+            Trama difusion = cliente.esperar(TipoTrama.DIFUSION);
+            difusion.leerLargo();
+            if (difusion.leerTexto().equals(texto)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package servidor;
+
+import static servidor.ServidorPrueba.comprobar;
+
+import comun.TipoTrama;
+import comun.Trama;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prueba que un cliente que reanuda su sesión tras un reinicio del servidor
+ * recibe los mensajes que se perdió, recuperados del estado guardado al
+ * apagarse, con sus números de secuencia originales.
+ *
+ * @author Ivan Martin
+ */
+public class PruebaReanudacion {
+
+    private static final int MENSAJES = 3;
+
+    public static void main(String[] args) throws Exception {
+        Path estado = ServidorPrueba.ficheroTemporal("reanudacion");
+        String token;
+        long secuenciaEntrada;
+        List<Long> secuencias = new ArrayList<>();
+
+        try (ServidorPrueba servidor = new ServidorPrueba(estado);
+                ClientePrueba cliente = servidor.conectar()) {
+            token = cliente.entrar("ana");
+            secuenciaEntrada = cliente.esperar(TipoTrama.DIFUSION).leerLargo();
+            for (int i = 1; i <= MENSAJES; i++) {
+                cliente.enviar("mensaje " + i);
+                Trama difusion = cliente.esperar(TipoTrama.DIFUSION);
+                secuencias.add(difusion.leerLargo());
+                String texto = difusion.leerTexto();
+                comprobar(texto.equals("ana: mensaje " + i), "Difusión inesperada: " + texto);
+            }
+            servidor.iniciarApagado();
+            cliente.esperar(TipoTrama.APAGADO);
+            cliente.close();
+            servidor.apagar();
+        }
+
+        try (ServidorPrueba servidor = new ServidorPrueba(estado);
+                ClientePrueba cliente = servidor.conectar()) {
+            // Se reanuda como si sólo se hubiera recibido el mensaje de entrada
+            Trama respuesta = cliente.pedirAcceso("ana", token, secuenciaEntrada, 0);
+            comprobar(respuesta.getTipo() == TipoTrama.ACEPTADO, "No se ha aceptado la reanudación");
+            List<Long> reenviadas = new ArrayList<>();
+            while (true) {
+                Trama difusion = cliente.esperar(TipoTrama.DIFUSION);
+                long secuencia = difusion.leerLargo();
+                String texto = difusion.leerTexto();
+                if (texto.contains("ha recuperado la conexión")) {
+                    break;
+                }
+                if (texto.startsWith("ana: mensaje ")) {
+                    reenviadas.add(secuencia);
+                }
+            }
+            comprobar(reenviadas.equals(secuencias),
+                    "Mensajes reenviados " + reenviadas + ", se esperaban " + secuencias);
+        }
+        System.out.println("PruebaReanudacion: correcta");
+    }
+}
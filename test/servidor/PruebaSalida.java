@@ -0,0 +1,71 @@
+package servidor;
+
+import static servidor.ServidorPrueba.comprobar;
+
+import comun.TipoTrama;
+import comun.Trama;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prueba que todos los clientes que salen con SALIR reciben TERMINAR_SESION
+ * antes de que el servidor cierre la conexión, aunque salgan a la vez y
+ * tengan difusiones pendientes en su cola de salida.
+ *
+ * @author Ivan Martin
+ */
+public class PruebaSalida {
+
+    private static final int CLIENTES = 100;
+
+    public static void main(String[] args) throws Exception {
+        Path estado = ServidorPrueba.ficheroTemporal("salida");
+        try (ServidorPrueba servidor = new ServidorPrueba(estado,
+                "chat.admision.conexionesPorIp=100000")) {
+            List<ClientePrueba> clientes = new ArrayList<>();
+            try {
+                for (int i = 0; i < CLIENTES; i++) {
+                    ClientePrueba cliente = servidor.conectar();
+                    clientes.add(cliente);
+                    cliente.entrar("cliente" + i);
+                }
+                // Cada entrada y cada salida se difunde al resto, por lo que las colas no están vacías al salir
+                for (ClientePrueba cliente : clientes) {
+                    cliente.salir();
+                }
+                int sinFin = 0;
+                for (ClientePrueba cliente : clientes) {
+                    if (!recibirFin(cliente)) {
+                        sinFin++;
+                    }
+                }
+                comprobar(sinFin == 0, sinFin + " de " + CLIENTES + " clientes no han recibido TERMINAR_SESION");
+            } finally {
+                for (ClientePrueba cliente : clientes) {
+                    cliente.close();
+                }
+            }
+        }
+        System.out.println("PruebaSalida: correcta");
+    }
+
+    /**
+     * Lee hasta TERMINAR_SESION o hasta que se cierra la conexión.
+     *
+     * @return true si ha llegado TERMINAR_SESION.
+     */
+    private static boolean recibirFin(ClientePrueba cliente) throws IOException {
+        try {
+            Trama trama;
+            do {
+                trama = cliente.leer();
+            } while (trama.getTipo() != TipoTrama.TERMINAR_SESION);
+            return true;
+        } catch (EOFException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package servidor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Servidor arrancado en una JVM aparte para las pruebas, sin interfaz, en
+ * puertos libres (el del chat y el de administración), sin traza, y con el
+ * fichero de estado indicado. Se apaga con una señal, como el servidor real, de forma que
+ * guarda su estado y avisa a los clientes del apagado.
+ *
+ * @author Ivan Martin
+ */
+class ServidorPrueba implements AutoCloseable {
+
+    private static final long PLAZO_MS = 30000;
+
+    private final Process proceso;
+    private final int puerto;
+    private final int puertoAdministracion;
+
+    /**
+     * @param estado el fichero de estado del servidor.
+     * @param propiedades propiedades del sistema adicionales ("clave=valor").
+     */
+    ServidorPrueba(Path estado, String... propiedades) throws IOException, InterruptedException {
+        puerto = puertoLibre();
+        puertoAdministracion = puertoLibre();
+        List<String> comando = new ArrayList<>();
+        comando.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        comando.add("-Dchat.puerto=" + puerto);
+        comando.add("-Dchat.admin.puerto=" + puertoAdministracion);
+        comando.add("-Dchat.traza.fichero=");
+        comando.add("-Dchat.estado.fichero=" + estado);
+        for (String propiedad : propiedades) {
+            comando.add("-D" + propiedad);
+        }
+        comando.add("-cp");
+        comando.add(System.getProperty("java.class.path"));
+        comando.add("servidor.MainServidor");
+        comando.add("--sin-interfaz");
+        proceso = new ProcessBuilder(comando)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        esperarArranque();
+    }
+
+    int getPuerto() {
+        return puerto;
+    }
+
+    ClientePrueba conectar() throws IOException {
+        return new ClientePrueba(puerto);
+    }
+
+    /**
+     * Ejecuta un comando en el puerto de administración.
+     *
+     * @param comando el comando, como se escribiría con nc.
+     * @return la respuesta: el estado ("OK" o "ERROR ...") y sus líneas.
+     */
+    List<String> administrar(String comando) throws IOException {
+        try (Socket socket = new Socket("localhost", puertoAdministracion);
+                PrintWriter salida = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            salida.println(comando);
+            List<String> respuesta = new ArrayList<>();
+            String linea;
+            while ((linea = entrada.readLine()) != null && !linea.equals(".")) {
+                respuesta.add(linea);
+            }
+            return respuesta;
+        }
+    }
+
+    /**
+     * Empieza a apagar el servidor como lo haría el sistema (SIGTERM), sin
+     * esperar a que termine, para que los clientes reciban el aviso.
+     */
+    void iniciarApagado() {
+        proceso.destroy();
+    }
+
+    /**
+     * Apaga el servidor como lo haría el sistema (SIGTERM) y espera a que
+     * termine, tras guardar su estado.
+     */
+    void apagar() throws InterruptedException {
+        proceso.destroy();
+        if (!proceso.waitFor(PLAZO_MS, TimeUnit.MILLISECONDS)) {
+            proceso.destroyForcibly();
+            throw new AssertionError("El servidor no se ha apagado en " + PLAZO_MS + " ms");
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        if (proceso.isAlive()) {
+            apagar();
+        }
+    }
+
+    private void esperarArranque() throws InterruptedException {
+        long limite = System.currentTimeMillis() + PLAZO_MS;
+        while (System.currentTimeMillis() < limite) {
+            if (!proceso.isAlive()) {
+                throw new AssertionError("El servidor terminó al arrancar (código " + proceso.exitValue() + ")");
+            }
+            try {
+                new Socket("localhost", puerto).close();
+                return;
+            } catch (IOException ex) {
+                Thread.sleep(20);
+            }
+        }
+        throw new AssertionError("El servidor no ha arrancado en " + PLAZO_MS + " ms");
+    }
+
+    static Path ficheroTemporal(String prefijo) throws IOException {
+        File fichero = File.createTempFile(prefijo, ".estado");
+        fichero.delete();
+        fichero.deleteOnExit();
+        return fichero.toPath();
+    }
+
+    static int puertoLibre() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void comprobar(boolean condicion, String mensaje) {
+        if (!condicion) {
+            throw new AssertionError(mensaje);
+        }
+    }
+}